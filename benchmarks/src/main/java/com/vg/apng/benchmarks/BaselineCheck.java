@@ -0,0 +1,161 @@
+package com.vg.apng.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compare a JMH run written with {@code -rf csv} against a stored baseline. Time per operation and, when the run
+ * used {@code -prof gc}, normalized allocation per operation are checked; every result that got worse by more than
+ * the tolerance is reported and makes the exit status 1. Results the baseline does not have are listed as new, so a
+ * benchmark added without regenerating the baseline does not go unchecked silently.
+ * <p>
+ * Usage: {@code java -cp target/benchmarks.jar com.vg.apng.benchmarks.BaselineCheck baseline.csv results.csv
+ * [tolerance]} where tolerance is a fraction and defaults to 0.10.
+ */
+public class BaselineCheck {
+    static final String ALLOC_NORM = "gc.alloc.rate.norm";
+    /** Allocation differences below this many bytes per operation are noise, not regressions. */
+    static final double ALLOC_SLACK = 64;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: BaselineCheck baseline.csv results.csv [tolerance]");
+            System.exit(2);
+        }
+        double tolerance = args.length > 2 ? Double.parseDouble(args[2]) : 0.10;
+        Map<String, Result> baseline = read(args[0]);
+        Map<String, Result> current = read(args[1]);
+
+        int regressions = 0;
+        int unchecked = 0;
+        for (Map.Entry<String, Result> e : current.entrySet()) {
+            Result now = e.getValue();
+            if (!isChecked(now)) {
+                continue;
+            }
+            Result before = baseline.get(e.getKey());
+            if (before == null) {
+                unchecked++;
+                System.out.printf("+ %-100s %14s %14.3f %-10s new, not in baseline%n", e.getKey(), "", now.score,
+                        now.unit);
+                continue;
+            }
+            double change = (now.score - before.score) / before.score;
+            boolean worse = now.isHigherBetter() ? change < -tolerance : change > tolerance;
+            if (now.isAllocation() && Math.abs(now.score - before.score) < ALLOC_SLACK) {
+                worse = false;
+            }
+            if (worse) {
+                regressions++;
+            }
+            System.out.printf("%s %-100s %14.3f %14.3f %-10s %+7.1f%%%n", worse ? "!" : " ", e.getKey(), before.score,
+                    now.score, now.unit, change * 100);
+        }
+        for (String key : baseline.keySet()) {
+            if (!current.containsKey(key) && isChecked(baseline.get(key))) {
+                System.out.printf("? %-100s not in results%n", key);
+            }
+        }
+
+        System.out.println(regressions + " regression(s) beyond " + Math.round(tolerance * 100) + "%");
+        if (unchecked > 0) {
+            System.out.println(unchecked + " result(s) not in the baseline, regenerate it to check them");
+        }
+        System.exit(regressions == 0 ? 0 : 1);
+    }
+
+    private static boolean isChecked(Result result) {
+        return !result.isSecondary() || result.isAllocation();
+    }
+
+    /**
+     * @return the results by benchmark name and parameters
+     */
+    static Map<String, Result> read(String path) throws IOException {
+        Map<String, Result> results = new LinkedHashMap<String, Result>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(path),
+                StandardCharsets.UTF_8));
+        try {
+            List<String> header = parseLine(in.readLine());
+            int benchmark = header.indexOf("Benchmark");
+            int score = header.indexOf("Score");
+            int unit = header.indexOf("Unit");
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                List<String> row = parseLine(line);
+                StringBuilder key = new StringBuilder(row.get(benchmark));
+                for (int i = 0; i < header.size(); i++) {
+                    if (header.get(i).startsWith("Param: ") && !row.get(i).isEmpty()) {
+                        key.append(' ').append(header.get(i).substring(7)).append('=').append(row.get(i));
+                    }
+                }
+                String name = row.get(benchmark);
+                results.put(key.toString(), new Result(name, Double.parseDouble(row.get(score).replace(',', '.')),
+                        row.get(unit)));
+            }
+        } finally {
+            in.close();
+        }
+        return results;
+    }
+
+    static List<String> parseLine(String line) {
+        List<String> fields = new ArrayList<String>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                if (quoted && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else {
+                    quoted = !quoted;
+                }
+            } else if (c == ',' && !quoted) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    static class Result {
+        final String name;
+        final double score;
+        final String unit;
+
+        Result(String name, double score, String unit) {
+            this.name = name;
+            this.score = score;
+            this.unit = unit;
+        }
+
+        /** Secondary results are the ones added by profilers, named {@code benchmark:metric}. */
+        boolean isSecondary() {
+            return name.indexOf(':') >= 0;
+        }
+
+        boolean isAllocation() {
+            return name.endsWith(ALLOC_NORM);
+        }
+
+        /** Throughput is better when higher, time and allocation per operation when lower. */
+        boolean isHigherBetter() {
+            return unit.startsWith("ops/");
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.vg.apng.benchmarks;
+
+import com.vg.apng.Gray;
+
+/**
+ * Deterministic frame content for the benchmarks.
+ */
+public enum Content {
+    /**
+     * Flat rectangles sliding over a flat background with a few hard edged stripes, like screen captures or
+     * rendered UI. Long runs, compresses extremely well.
+     */
+    SYNTHETIC {
+        @Override
+        void fill(byte[] pixels, int width, int height, int index) {
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    int v = 32;
+                    if (((x + index * 4) / 48 + y / 40) % 5 == 0) {
+                        v = 200;
+                    } else if (y % 24 < 2) {
+                        v = 96;
+                    }
+                    pixels[y * width + x] = (byte) v;
+                }
+            }
+        }
+    },
+    /**
+     * Smooth moving gradients with some noise, roughly as compressible as camera content.
+     */
+    NATURAL {
+        @Override
+        void fill(byte[] pixels, int width, int height, int index) {
+            long seed = index * 0x9E3779B97F4A7C15L;
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    seed = seed * 6364136223846793005L + 1442695040888963407L;
+                    int noise = (int) (seed >>> 61);
+                    pixels[y * width + x] = (byte) (((x + index) ^ (y >> 2)) + noise);
+                }
+            }
+        }
+    };
+
+    abstract void fill(byte[] pixels, int width, int height, int index);
+
+    /**
+     * @param width the frame width
+     * @param height the frame height
+     * @param index the frame number, content moves from frame to frame
+     * @return a new frame
+     */
+    public Gray frame(int width, int height, int index) {
+        byte[] pixels = new byte[width * height];
+        fill(pixels, width, height, index);
+        return new Gray(width, height, pixels);
+    }
+
+    /**
+     * @param resolution the frame size as {@code WIDTHxHEIGHT}
+     * @param count the number of frames
+     * @return consecutive frames
+     */
+    public Gray[] frames(String resolution, int count) {
+        int[] size = parseResolution(resolution);
+        Gray[] frames = new Gray[count];
+        for (int i = 0; i < count; i++) {
+            frames[i] = frame(size[0], size[1], i);
+        }
+        return frames;
+    }
+
+    static int[] parseResolution(String resolution) {
+        int x = resolution.indexOf('x');
+        return new int[] { Integer.parseInt(resolution.substring(0, x)), Integer.parseInt(resolution.substring(x + 1)) };
+    }
+}
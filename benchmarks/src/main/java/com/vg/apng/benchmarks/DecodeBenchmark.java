@@ -0,0 +1,165 @@
+package com.vg.apng.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.vg.apng.APNG;
+import com.vg.apng.APNGFrameIterator;
+import com.vg.apng.APNGRandomAccess;
+import com.vg.apng.APNGReader;
+import com.vg.apng.APNGWriter;
+import com.vg.apng.FilterStrategy;
+import com.vg.apng.FrameInfo;
+import com.vg.apng.FramePool;
+import com.vg.apng.FrameSink;
+import com.vg.apng.Gray;
+
+/**
+ * Decode whole animations, from a file and frame by frame from a stream. The filter strategy the file was written
+ * with decides which unfilter paths the decoder runs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecodeBenchmark {
+    @Param({ "320x240", "1280x720" })
+    public String resolution;
+
+    @Param({ "1", "16" })
+    public int frameCount;
+
+    @Param({ "SYNTHETIC", "NATURAL" })
+    public Content content;
+
+    @Param({ "NONE", "PAETH", "MIN_SUM" })
+    public FilterStrategy filter;
+
+    private byte[] bytes;
+    private File file;
+    private APNGReader pooledReader;
+    private APNGReader parallelReader;
+    private APNGReader previewReader;
+    private APNGRandomAccess randomAccess;
+
+    @Setup
+    public void setup() throws IOException {
+        APNGWriter writer = new APNGWriter();
+        writer.setFilterStrategy(filter);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.write(content.frames(resolution, frameCount), out, APNG.INFINITE_LOOP);
+        bytes = out.toByteArray();
+
+        file = File.createTempFile("decode", ".png");
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            fos.write(bytes);
+        } finally {
+            fos.close();
+        }
+
+        pooledReader = new APNGReader();
+        pooledReader.setFramePool(new FramePool(true, 64L << 20));
+        parallelReader = new APNGReader();
+        parallelReader.setExecutor(ForkJoinPool.commonPool());
+        previewReader = new APNGReader();
+        previewReader.setPreviewFactor(4);
+        randomAccess = new APNGRandomAccess(file);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        randomAccess.close();
+        file.delete();
+    }
+
+    @Benchmark
+    public void read(Blackhole bh) throws IOException {
+        bh.consume(APNG.read(file));
+    }
+
+    @Benchmark
+    public void readParallel(Blackhole bh) throws IOException {
+        bh.consume(parallelReader.read(file));
+    }
+
+    @Benchmark
+    public void readPreview(Blackhole bh) throws IOException {
+        bh.consume(previewReader.read(file));
+    }
+
+    @Benchmark
+    public void frames(Blackhole bh) throws IOException {
+        APNGFrameIterator it = APNG.frames(new ByteArrayInputStream(bytes));
+        try {
+            while (it.hasNext()) {
+                bh.consume(it.next());
+            }
+        } finally {
+            it.close();
+        }
+    }
+
+    @Benchmark
+    public void framesPooled(Blackhole bh) throws IOException {
+        APNGFrameIterator it = pooledReader.frames(Channels.newChannel(new ByteArrayInputStream(bytes)));
+        try {
+            while (it.hasNext()) {
+                Gray gray = it.next();
+                bh.consume(gray);
+                gray.close();
+            }
+        } finally {
+            it.close();
+        }
+    }
+
+    @Benchmark
+    public void readSink(final Blackhole bh) throws IOException {
+        new APNGReader().read(Channels.newChannel(new ByteArrayInputStream(bytes)), new FrameSink() {
+            @Override
+            public ByteBuffer buffer(FrameInfo info) {
+                return null;
+            }
+
+            @Override
+            public void frame(FrameInfo info, ByteBuffer pixels) {
+                bh.consume(pixels.get(pixels.limit() - 1));
+            }
+        });
+    }
+
+    @Benchmark
+    public void seekLast(Blackhole bh) throws IOException {
+        randomAccess.clearCache();
+        bh.consume(randomAccess.frame(frameCount - 1));
+    }
+
+    @Benchmark
+    public void seekCached(Blackhole bh) throws IOException {
+        bh.consume(randomAccess.frame(frameCount - 1));
+    }
+}
@@ -0,0 +1,84 @@
+package com.vg.apng.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vg.apng.APNG;
+import com.vg.apng.APNGWriter;
+import com.vg.apng.FilterStrategy;
+import com.vg.apng.Gray;
+
+/**
+ * Encode whole animations on the caller's thread, per resolution, frame count, content and deflate level. The held
+ * variants repeat every frame four times, with and without merging duplicates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncodeBenchmark {
+    @Param({ "320x240", "1280x720" })
+    public String resolution;
+
+    @Param({ "1", "16" })
+    public int frameCount;
+
+    @Param({ "SYNTHETIC", "NATURAL" })
+    public Content content;
+
+    @Param({ "1", "6", "9" })
+    public int level;
+
+    private Gray[] frames;
+    private Gray[] held;
+    private APNGWriter writer;
+    private APNGWriter mergingWriter;
+
+    @Setup
+    public void setup() {
+        frames = content.frames(resolution, frameCount);
+        writer = new APNGWriter();
+        writer.setFilterStrategy(FilterStrategy.MIN_SUM);
+        writer.setCompressionLevel(level);
+
+        // a capture taken four times per change of the content, every frame its own copy
+        held = new Gray[frameCount * 4];
+        for (int i = 0; i < held.length; i++) {
+            Gray frame = frames[i / 4];
+            held[i] = new Gray(frame.width, frame.height, frame.data.array().clone());
+        }
+        mergingWriter = new APNGWriter();
+        mergingWriter.setFilterStrategy(FilterStrategy.MIN_SUM);
+        mergingWriter.setCompressionLevel(level);
+        mergingWriter.setMergeDuplicates(true);
+    }
+
+    @Benchmark
+    public void encode() throws IOException {
+        writer.write(frames, new NullOutputStream(), APNG.INFINITE_LOOP);
+    }
+
+    @Benchmark
+    public void encodeHeld() throws IOException {
+        writer.write(held, new NullOutputStream(), APNG.INFINITE_LOOP);
+    }
+
+    @Benchmark
+    public void encodeHeldMerged() throws IOException {
+        mergingWriter.write(held, new NullOutputStream(), APNG.INFINITE_LOOP);
+    }
+}
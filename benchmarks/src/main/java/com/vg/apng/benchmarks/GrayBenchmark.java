@@ -0,0 +1,108 @@
+package com.vg.apng.benchmarks;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vg.apng.Gray;
+import com.vg.apng.PointOps;
+
+/**
+ * The image operations of {@link Gray} on natural content.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GrayBenchmark {
+    @Param({ "640x480", "1920x1080" })
+    public String resolution;
+
+    private Gray gray;
+    private Rectangle center;
+    private BufferedImage grayImage;
+    private BufferedImage rgbImage;
+    private PointOps pointOps;
+    private Gray target;
+
+    @Setup
+    public void setup() {
+        gray = Content.NATURAL.frames(resolution, 1)[0];
+        center = new Rectangle(gray.width / 4, gray.height / 4, gray.width / 2, gray.height / 2);
+        grayImage = gray.toBufferedImage();
+        rgbImage = new BufferedImage(gray.width, gray.height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = rgbImage.createGraphics();
+        try {
+            g.drawImage(grayImage, 0, 0, null);
+        } finally {
+            g.dispose();
+        }
+        pointOps = new PointOps().stretch(2).gamma(0.8).equalize();
+        target = new Gray(gray.width, gray.height);
+    }
+
+    @Benchmark
+    public Gray scaleBilinearDown() {
+        return gray.scaleBilinear(gray.width / 2, gray.height / 2);
+    }
+
+    @Benchmark
+    public Gray scaleBilinearUp() {
+        return gray.scaleBilinear(gray.width * 3 / 2, gray.height * 3 / 2);
+    }
+
+    @Benchmark
+    public Gray scaleNN() {
+        return gray.scaleNN(gray.width / 2, gray.height / 2);
+    }
+
+    @Benchmark
+    public Gray equalizeHist() {
+        return gray.equalizeHist();
+    }
+
+    @Benchmark
+    public Gray pointOpsChain() {
+        return pointOps.apply(gray, target);
+    }
+
+    @Benchmark
+    public Gray getSubimage() {
+        return gray.getSubimage(center);
+    }
+
+    @Benchmark
+    public Gray fromGrayBufferedImage() {
+        return Gray.fromBufferedImage(grayImage);
+    }
+
+    @Benchmark
+    public Gray fromRgbBufferedImage() {
+        return Gray.fromBufferedImage(rgbImage);
+    }
+
+    @Benchmark
+    public BufferedImage toBufferedImage() {
+        return gray.toBufferedImage();
+    }
+
+    @Benchmark
+    public BufferedImage asBufferedImage() {
+        return gray.asBufferedImage();
+    }
+}
@@ -0,0 +1,16 @@
+package com.vg.apng.benchmarks;
+
+import java.io.OutputStream;
+
+/**
+ * Discards everything, so that encode benchmarks measure the encoder and not the output.
+ */
+class NullOutputStream extends OutputStream {
+    @Override
+    public void write(int b) {
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+    }
+}
@@ -0,0 +1,63 @@
+package com.vg.apng.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vg.apng.APNG;
+import com.vg.apng.APNGWriter;
+import com.vg.apng.Gray;
+
+/**
+ * How frame compression scales with the number of threads of the writer's executor; 0 compresses on the caller's
+ * thread.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParallelEncodeBenchmark {
+    @Param({ "0", "1", "2", "4" })
+    public int threads;
+
+    private Gray[] frames;
+    private APNGWriter writer;
+    private ForkJoinPool pool;
+
+    @Setup
+    public void setup() {
+        frames = Content.NATURAL.frames("640x480", 16);
+        writer = new APNGWriter();
+        if (threads > 0) {
+            pool = new ForkJoinPool(threads);
+            writer.setExecutor(pool);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    @Benchmark
+    public void encode() throws IOException {
+        writer.write(frames, new NullOutputStream(), APNG.INFINITE_LOOP);
+    }
+}
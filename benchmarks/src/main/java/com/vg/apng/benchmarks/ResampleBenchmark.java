@@ -0,0 +1,53 @@
+package com.vg.apng.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vg.apng.Gray;
+import com.vg.apng.ResampleFilter;
+import com.vg.apng.Resampler;
+
+/**
+ * Resize a 1080p frame into a reused target with every kernel.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResampleBenchmark {
+    @Param({ "NEAREST", "BOX", "BILINEAR", "BICUBIC", "LANCZOS3" })
+    public ResampleFilter filter;
+
+    @Param({ "640x360", "2880x1620" })
+    public String target;
+
+    private Gray src;
+    private Gray dst;
+    private Resampler resampler;
+
+    @Setup
+    public void setup() {
+        src = Content.NATURAL.frames("1920x1080", 1)[0];
+        int[] size = Content.parseResolution(target);
+        dst = new Gray(size[0], size[1]);
+        resampler = new Resampler(filter);
+    }
+
+    @Benchmark
+    public Gray resize() {
+        return resampler.resize(src, dst);
+    }
+}
@@ -1,9 +1,12 @@
 package com.vg.apng;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
 
 /**
  * The library main class. Contains static utility methods to read and write Animated PNG.
@@ -17,6 +20,8 @@ public class APNG {
     public static final int fdAT_SIG = 0x66644154;
     public static final int fcTL_SIG = 0x6663544c;
     public static final int IEND_SIG = 0x49454e44;
+    public static final int tRNS_SIG = 0x74524e53;
+    public static final int PLTE_SIG = 0x504c5445;
 
     public static final byte[] PNG_SIG = new byte[]{(byte) 0x89, 0x50, 0x4e, 0x47, 0x0d, 0x0a, 0x1a, 0x0a}; //http://www.w3.org/TR/PNG/#5PNG-file-signature
 
@@ -28,6 +33,13 @@ public class APNG {
 
     public static final int INFINITE_LOOP = 0;
 
+    // fcTL dispose and blend operations
+    public static final byte DISPOSE_OP_NONE = 0;
+    public static final byte DISPOSE_OP_BACKGROUND = 1;
+    public static final byte DISPOSE_OP_PREVIOUS = 2;
+    public static final byte BLEND_OP_SOURCE = 0;
+    public static final byte BLEND_OP_OVER = 1;
+
     /**
      * Write an APNG image to a file. Basically a shortcut to {@link APNGWriter#write(Gray[], File, int)}.
      * @param grays the grayscale images to write
@@ -50,6 +62,29 @@ public class APNG {
         new APNGWriter().write(grays, os, loopCount);
     }
 
+    /**
+     * Open a streaming write session on a File. Basically a shortcut to {@link APNGWriter#open(File, int)}.
+     * @param file the File to write to
+     * @param loopCount the number of time to loop the animation (0 means infinite)
+     * @return the session to add frames to
+     * @throws IOException if the specified File is invalid
+     */
+    public static APNGWriterSession open(File file, int loopCount) throws IOException {
+        return new APNGWriter().open(file, loopCount);
+    }
+
+    /**
+     * Open a streaming write session on an OutputStream. Basically a shortcut to
+     * {@link APNGWriter#open(OutputStream, int, int)}.
+     * @param os the OutputStream to write to
+     * @param frameCount the number of frames that will be added
+     * @param loopCount the number of time to loop the animation (0 means infinite)
+     * @return the session to add frames to
+     */
+    public static APNGWriterSession open(OutputStream os, int frameCount, int loopCount) {
+        return new APNGWriter().open(os, frameCount, loopCount);
+    }
+
     /**
      * Read an APNG from a File. Basically a shortcut to {@link APNGReader#read(File)}.
      * @param file the File to read
@@ -59,4 +94,39 @@ public class APNG {
     public static Gray[] read(File file) throws IOException {
         return new APNGReader().read(file);
     }
-}
\ No newline at end of file
+
+    /**
+     * Read an APNG from a File through memory-mapped windows instead of a heap copy of the whole file. Supports files
+     * larger than 2 GB.
+     * @param file the File to read
+     * @return an array of grayscale images
+     * @throws IOException if the specified File is invalid
+     */
+    public static Gray[] readMapped(File file) throws IOException {
+        APNGReader reader = new APNGReader();
+        reader.setMemoryMapped(true);
+        return reader.read(file);
+    }
+
+    /**
+     * Lazily read an APNG from an InputStream one frame at a time. Basically a shortcut to
+     * {@link APNGReader#frames(java.nio.channels.ReadableByteChannel)}.
+     * @param is the InputStream to read
+     * @return the frame iterator, to be closed by the caller
+     * @throws IOException if the stream does not start with an APNG header
+     */
+    public static APNGFrameIterator frames(InputStream is) throws IOException {
+        return new APNGReader().frames(Channels.newChannel(is));
+    }
+
+    /**
+     * Lazily read an APNG from a File one frame at a time. Basically a shortcut to
+     * {@link APNGReader#frames(java.nio.channels.ReadableByteChannel)}.
+     * @param file the File to read
+     * @return the frame iterator, to be closed by the caller
+     * @throws IOException if the specified File is invalid
+     */
+    public static APNGFrameIterator frames(File file) throws IOException {
+        return new APNGReader().frames(new FileInputStream(file).getChannel());
+    }
+}
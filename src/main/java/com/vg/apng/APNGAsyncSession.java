@@ -0,0 +1,390 @@
+package com.vg.apng;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An APNG write session that never encodes on the caller's thread. Added frames are copied into a bounded queue and
+ * go through three stages: a filter stage taking frames off the queue in order, a compress stage deflating filtered
+ * frames concurrently, and a write stage writing the compressed frames in order. Each stage runs on its own
+ * {@link APNGWriter#setStageExecutors executor}.
+ * <p>
+ * When frames come in faster than they are encoded the {@link APNGWriter#setBackPressure(BackPressure) back-pressure}
+ * policy either blocks the caller, drops the frame or merges duplicates. Dropped and merged frames extend the delay
+ * of the frame before them, so the animation keeps its length; the write stage holds one frame back for that.
+ * <p>
+ * Frames are added from one thread at a time. {@link #finish()} returns a future that completes once the file has
+ * been finalized and closed, or completes exceptionally with the first error of any stage.
+ *
+ * @see APNGWriter#openAsync(java.io.File, int)
+ */
+public class APNGAsyncSession implements Closeable {
+    private static final Slot END = new Slot(null, 0);
+    private static final AtomicInteger THREADS = new AtomicInteger();
+    private static final long POLL_MILLIS = 50;
+
+    private final APNGWriterSession session;
+    private final BackPressure backPressure;
+    private final DuplicateFrames duplicates;
+    private final Executor compressExecutor;
+    private final BlockingQueue<Slot> queue;
+    private final BlockingQueue<Slot> encoded;
+    private final FramePool copies = new FramePool();
+    private final CompletableFuture<Void> done = new CompletableFuture<Void>();
+    private final List<ExecutorService> ownedExecutors = new ArrayList<ExecutorService>();
+    private volatile Throwable failure;
+
+    private Slot last;
+    private int framesAdded;
+    private int framesDropped;
+    private int framesCoalesced;
+    private boolean finished;
+
+    APNGAsyncSession(APNGWriter writer, APNGWriterSession session) {
+        this.session = session;
+        this.backPressure = writer.getBackPressure();
+        this.duplicates = backPressure == BackPressure.COALESCE || writer.isMergeDuplicates()
+                ? new DuplicateFrames() : null;
+        this.queue = new ArrayBlockingQueue<Slot>(writer.getQueueCapacity());
+        this.encoded = new ArrayBlockingQueue<Slot>(writer.getMaxFramesInFlight() + 1);
+
+        Executor filterExecutor = writer.getFilterExecutor();
+        Executor compress = writer.getCompressExecutor();
+        Executor writeExecutor = writer.getWriteExecutor();
+        if (filterExecutor == null || compress == null || writeExecutor == null) {
+            ExecutorService threads = newThreadPerTaskExecutor();
+            ownedExecutors.add(threads);
+            filterExecutor = filterExecutor != null ? filterExecutor : threads;
+            compress = compress != null ? compress : threads;
+            writeExecutor = writeExecutor != null ? writeExecutor : threads;
+        }
+        this.compressExecutor = compress;
+        filterExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                filterLoop();
+            }
+        });
+        writeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        });
+    }
+
+    /**
+     * Queue a frame. The Gray is copied, so it can be reused as soon as this method returns.
+     * @param gray the grayscale image to append to the animation
+     * @return true if the frame was queued, false if it was dropped or merged into the previous frame
+     * @throws IOException if a stage has failed, or the caller was interrupted while blocked
+     */
+    public boolean addFrame(Gray gray) throws IOException {
+        if (finished) {
+            throw new IllegalStateException("session is finished");
+        }
+        checkFailure();
+        if (duplicates != null && duplicates.isDuplicate(gray) && last != null
+                && (long) last.delay.get() + gray.getDelay() <= DuplicateFrames.MAX_DELAY) {
+            last.delay.addAndGet(gray.getDelay());
+            framesCoalesced++;
+            return false;
+        }
+        if (backPressure == BackPressure.DROP && last != null && queue.remainingCapacity() == 0) {
+            if (duplicates != null) {
+                duplicates.reset();
+            }
+            last.delay.addAndGet(gray.getDelay());
+            framesDropped++;
+            return false;
+        }
+
+        Gray copy = copies.allocate(gray.width, gray.height, gray.getDelay());
+        copy.getData().put(gray.getData());
+        Slot slot = new Slot(copy, gray.getDelay());
+        try {
+            put(slot);
+        } catch (InterruptedIOException e) {
+            if (duplicates != null) {
+                duplicates.reset();
+            }
+            throw e;
+        }
+        last = slot;
+        framesAdded++;
+        checkFailure();
+        return true;
+    }
+
+    /**
+     * Stop accepting frames and let the stages drain. Calling it again returns the same future.
+     * @return a future completing once the last frame and the IEND chunk have been written and the output closed
+     */
+    public CompletableFuture<Void> finish() {
+        if (!finished) {
+            finished = true;
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    // after a failure the filter stage has stopped taking, and the write stage completes the future
+                    offer(queue, END);
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return done;
+    }
+
+    /**
+     * {@link #finish() Finish} the session and wait until the file is finalized.
+     * @throws IOException if a stage failed or the caller was interrupted
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            finish().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while finishing");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * @return the number of frames queued, each of which becomes a frame of the animation
+     */
+    public int getFramesAdded() {
+        return framesAdded;
+    }
+
+    /**
+     * @return the number of frames dropped because the queue was full
+     * @see BackPressure#DROP
+     */
+    public int getFramesDropped() {
+        return framesDropped;
+    }
+
+    /**
+     * @return the number of frames merged into an identical previous frame
+     * @see BackPressure#COALESCE
+     * @see APNGWriter#setMergeDuplicates(boolean)
+     */
+    public int getFramesCoalesced() {
+        return framesCoalesced;
+    }
+
+    /**
+     * @return the settings frames are compressed with, known once the first frame has been encoded when auto-tuning
+     */
+    public CompressionSettings getCompressionSettings() {
+        return session.getCompressionSettings();
+    }
+
+    private void filterLoop() {
+        try {
+            while (failure == null) {
+                Slot slot = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (slot == null) {
+                    continue;
+                }
+                if (slot == END) {
+                    break;
+                }
+                try {
+                    slot.frame = session.encode(slot.gray, compressExecutor);
+                } catch (Throwable e) {
+                    fail(e);
+                } finally {
+                    slot.gray.close();
+                }
+                if (slot.frame != null && !offer(encoded, slot)) {
+                    slot.frame.compressed.cancel(false);
+                }
+            }
+        } catch (InterruptedException e) {
+            fail(e);
+        }
+        // frames still queued after a failure are never encoded
+        for (Slot slot = queue.poll(); slot != null; slot = queue.poll()) {
+            if (slot != END) {
+                slot.gray.close();
+            }
+        }
+        // the write stage takes until END even after a failure, so this does not block for long
+        boolean interrupted = false;
+        while (true) {
+            try {
+                encoded.put(END);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeLoop() {
+        CodecContext ctx = CodecContext.acquire();
+        boolean interrupted = false;
+        try {
+            Slot held = null;
+            while (true) {
+                Slot slot;
+                try {
+                    slot = encoded.take();
+                } catch (InterruptedException e) {
+                    // keep taking until END, so the filter stage never blocks on a full queue
+                    fail(e);
+                    interrupted = true;
+                    continue;
+                }
+                if (failure != null) {
+                    if (slot == END) {
+                        break;
+                    }
+                    slot.frame.compressed.cancel(false);
+                    continue;
+                }
+                try {
+                    // a frame is written once the next one has arrived, since it can still be extended until then
+                    if (held != null) {
+                        held.frame.delay = held.delay.get();
+                        session.write(held.frame, ctx);
+                    }
+                    held = slot;
+                } catch (Throwable e) {
+                    fail(e);
+                }
+                if (slot == END) {
+                    break;
+                }
+            }
+        } finally {
+            ctx.release();
+            try {
+                if (failure != null) {
+                    session.abort();
+                }
+                session.close();
+            } catch (Throwable e) {
+                fail(e);
+            }
+            for (ExecutorService executor : ownedExecutors) {
+                executor.shutdown();
+            }
+            if (failure != null) {
+                done.completeExceptionally(failure);
+            } else {
+                done.complete(null);
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private synchronized void fail(Throwable e) {
+        if (failure == null) {
+            failure = e;
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        Throwable e = failure;
+        if (e != null) {
+            throw new IOException("encoding failed", e);
+        }
+    }
+
+    private void put(Slot slot) throws IOException {
+        boolean queued;
+        try {
+            queued = offer(queue, slot);
+        } catch (InterruptedException e) {
+            slot.gray.close();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for room in the queue");
+        }
+        if (!queued) {
+            slot.gray.close();
+            checkFailure();
+        }
+    }
+
+    /**
+     * Wait for room in a queue, giving up once a stage has failed, since the stage behind it may have stopped taking.
+     * @return true if the slot was queued, false if a stage failed first
+     */
+    private boolean offer(BlockingQueue<Slot> queue, Slot slot) throws InterruptedException {
+        while (failure == null) {
+            if (queue.offer(slot, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return a virtual thread per task executor on runtimes that have one, daemon threads otherwise
+     */
+    static ExecutorService newThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            // before Java 21, or virtual threads are a disabled preview
+        } catch (UnsupportedOperationException e) {
+            // virtual threads are not supported by this runtime
+        }
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "apng-async-" + THREADS.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    private static class Slot {
+        public final Gray gray;
+        public final AtomicInteger delay;
+        public APNGWriterSession.PendingFrame frame;
+
+        public Slot(Gray gray, int delay) {
+            this.gray = gray;
+            this.delay = new AtomicInteger(delay);
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package com.vg.apng;
+
+import static com.vg.apng.APNG.IDAT_SIG;
+import static com.vg.apng.APNG.fcTL_SIG;
+import static com.vg.apng.APNG.fdAT_SIG;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Lazily decode an APNG one frame at a time. Chunks are pulled from the channel through a small fixed buffer, so
+ * memory use does not depend on the file size and the first frame is available before the rest of the stream has
+ * arrived.
+ * <p>
+ * Frames are returned as stored, or rendered onto the full canvas when the reader
+ * {@link APNGReader#setComposite(boolean) composites}. I/O errors are thrown from {@link #next()} as
+ * {@link UncheckedIOException}. {@link #next(FrameSink)} hands frames to a sink instead, decoding into memory the
+ * caller provides.
+ *
+ * @see APNG#frames(java.io.InputStream)
+ * @see APNGReader#frames(ReadableByteChannel)
+ */
+public class APNGFrameIterator implements Iterator<Gray>, Closeable {
+    public static final int BUFFER_SIZE = 16 * 1024;
+
+    private final ChunkReader chunks;
+    private final CodecContext ctx = CodecContext.acquire();
+    private final FrameDecoder decoder = ctx.decoder();
+    private final ImageHeader header = new ImageHeader();
+    private final Compositor compositor;
+    private final FrameListener listener;
+    private final FramePool framePool;
+    private final int shift;
+    private final FrameInfo info = new FrameInfo();
+    private final GraySink graySink = new GraySink();
+    private ByteBuffer framePixels = ByteBuffer.allocate(0);
+    private ByteBuffer framePixelsView = framePixels;
+
+    private int framesRead;
+    private boolean closed;
+
+    APNGFrameIterator(ReadableByteChannel ch, APNGReader reader) throws IOException {
+        this.chunks = new ChunkReader(ch, BUFFER_SIZE);
+        this.listener = reader.getListener();
+        this.framePool = reader.getFramePool();
+        try {
+            readHeader();
+            decoder.setFormat(header.bitDepth, header.sampleToGray());
+            this.shift = reader.previewShift(header);
+            this.compositor = reader.newCompositor(header, shift);
+            int mask = (1 << shift) - 1;
+            info.frameCount = header.frameCount;
+            info.canvasWidth = (header.width + mask) >> shift;
+            info.canvasHeight = (header.height + mask) >> shift;
+        } catch (IOException e) {
+            close();
+            throw e;
+        } catch (RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the canvas width declared in IHDR
+     */
+    public int getWidth() {
+        return header.width;
+    }
+
+    /**
+     * @return the canvas height declared in IHDR
+     */
+    public int getHeight() {
+        return header.height;
+    }
+
+    /**
+     * @return the number of frames declared in acTL
+     */
+    public int getFrameCount() {
+        return header.frameCount;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !closed && framesRead < header.frameCount;
+    }
+
+    /**
+     * Decode the next frame into a new image, or one taken from the reader's {@link FramePool}.
+     */
+    @Override
+    public Gray next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        try {
+            return readFrame();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        ctx.release();
+        chunks.close();
+    }
+
+    private void readHeader() throws IOException {
+        chunks.readSignature();
+        while (chunks.next()) {
+            int type = chunks.getType();
+            if (type == IDAT_SIG || type == fcTL_SIG) {
+                chunks.pushBack();
+                break;
+            }
+            if (ImageHeader.isHeaderChunk(type)) {
+                header.read(type, chunks.body());
+            }
+        }
+        if (!header.isAnimated()) {
+            throw new IOException("acTL not found");
+        }
+    }
+
+    private Gray readFrame() throws IOException {
+        decodeFrame(graySink);
+        Gray gray = graySink.gray;
+        graySink.gray = null;
+        return gray;
+    }
+
+    /**
+     * Decode the next frame into a sink, without allocating anything per frame unless a listener is set or the frame
+     * is larger than any before it.
+     * @param sink receives the frame
+     * @throws NoSuchElementException if there are no more frames
+     * @throws IOException if the channel fails, or the sink does
+     */
+    public void next(FrameSink sink) throws IOException {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        decodeFrame(sink);
+    }
+
+    private void decodeFrame(FrameSink sink) throws IOException {
+        boolean timed = listener != null || FrameEvents.isRecording();
+        long t = timed ? System.nanoTime() : 0;
+        while (true) {
+            if (!chunks.next()) {
+                throw new EOFException("fcTL expected but not found");
+            }
+            if (chunks.getType() == fcTL_SIG) {
+                break;
+            }
+        }
+        // read in place rather than through FCTL.read, to not allocate per frame
+        ByteBuffer fctl = chunks.body();
+        fctl.getInt(); // seqNumber
+        int width = fctl.getInt();
+        int height = fctl.getInt();
+        int x = fctl.getInt();
+        int y = fctl.getInt();
+        int delay = FCTL.getDelay(fctl.getShort(), fctl.getShort());
+        byte disposeOp = fctl.get();
+        byte blendOp = fctl.get();
+        FrameStats stats = timed ? new FrameStats(false, framesRead, width, height) : null;
+
+        // the frame as decoded, reduced for previews unless it is reduced after compositing
+        int frameShift = compositor != null ? 0 : shift;
+        int mask = (1 << frameShift) - 1;
+        int frameX = x >> frameShift;
+        int frameY = y >> frameShift;
+        int frameWidth = ((x & mask) + width + mask) >> frameShift;
+        int frameHeight = ((y & mask) + height + mask) >> frameShift;
+
+        info.index = framesRead;
+        info.delay = delay;
+        info.disposeOp = disposeOp;
+        info.blendOp = blendOp;
+        if (compositor == null) {
+            info.x = frameX;
+            info.y = frameY;
+            info.width = frameWidth;
+            info.height = frameHeight;
+        } else {
+            info.x = 0;
+            info.y = 0;
+            info.width = info.canvasWidth;
+            info.height = info.canvasHeight;
+        }
+        ByteBuffer dst = sink.buffer(info);
+        if (dst != null && dst.remaining() < info.width * info.height) {
+            throw new IllegalArgumentException("sink buffer has " + dst.remaining() + " bytes remaining, "
+                    + info.width * info.height + " needed");
+        }
+
+        ByteBuffer target = dst;
+        if (compositor != null || dst == null) {
+            if (framePixels.capacity() < frameWidth * frameHeight) {
+                framePixels = ByteBuffer.allocate(frameWidth * frameHeight);
+                framePixelsView = framePixels.asReadOnlyBuffer();
+            }
+            framePixels.clear();
+            target = framePixels;
+        }
+        decoder.begin(width, height, frameShift, x & mask, y & mask, target, stats);
+        if (stats != null) {
+            stats.lap(FrameStats.Stage.READ, t);
+        }
+
+        while (!decoder.isComplete()) {
+            if (stats != null) {
+                t = System.nanoTime();
+            }
+            if (!chunks.next()) {
+                throw new EOFException("truncated frame data");
+            }
+            int type = chunks.getType();
+            if (type == fdAT_SIG) {
+                chunks.readInt(); // seqNumber
+            } else if (type != IDAT_SIG) {
+                throw new IOException("fdAT or IDAT expected but not found");
+            }
+            for (ByteBuffer block = chunks.bodyBlock(); block.hasRemaining(); block = chunks.bodyBlock()) {
+                if (stats != null) {
+                    stats.lap(FrameStats.Stage.READ, t);
+                }
+                if (decoder.feed(block)) {
+                    break;
+                }
+                if (stats != null) {
+                    t = System.nanoTime();
+                }
+            }
+        }
+
+        framesRead++;
+        if (stats != null) {
+            t = System.nanoTime();
+        }
+        ByteBuffer pixels = dst;
+        if (compositor != null) {
+            compositor.compose(frameX, frameY, frameWidth, frameHeight, disposeOp, blendOp, framePixels);
+            if (dst != null) {
+                compositor.copyTo(dst);
+            } else {
+                pixels = compositor.view();
+            }
+        } else if (dst == null) {
+            framePixelsView.clear();
+            framePixelsView.limit(frameWidth * frameHeight);
+            pixels = framePixelsView;
+        }
+        if (stats != null) {
+            stats.lap(FrameStats.Stage.COMPOSITE, t);
+        }
+        sink.frame(info, pixels);
+        if (stats != null) {
+            stats.report(listener);
+        }
+    }
+
+    /**
+     * Decodes {@link #next()} frames into new or pooled images.
+     */
+    private class GraySink implements FrameSink {
+        Gray gray;
+
+        @Override
+        public ByteBuffer buffer(FrameInfo info) {
+            gray = framePool != null ? framePool.allocate(info.width, info.height, info.delay)
+                    : new Gray(info.width, info.height, info.delay);
+            return gray.getData();
+        }
+
+        @Override
+        public void frame(FrameInfo info, ByteBuffer pixels) {
+        }
+    }
+}
@@ -0,0 +1,310 @@
+package com.vg.apng;
+
+import static com.vg.apng.APNG.BLEND_OP_SOURCE;
+import static com.vg.apng.APNG.DISPOSE_OP_BACKGROUND;
+import static com.vg.apng.APNG.DISPOSE_OP_PREVIOUS;
+import static com.vg.apng.APNG.PNG_SIG;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Seek to any frame of an APNG without decoding the whole animation. Opening the file scans its chunk headers once
+ * into an index of frame offsets and timing, which can be kept in a sidecar file for the next time. A frame is then
+ * rendered by decoding only the frames it depends on: compositing starts from the closest earlier frame that does
+ * not depend on the canvas before it, or from a cached frame, and replays from there.
+ * <p>
+ * Rendered frames go into a least recently used cache bounded by size, so seeking back to a frame, or stepping
+ * forward from it, costs a cache lookup and at most one frame decode. Frames are always full-canvas composited
+ * frames, as with {@link APNGReader#setComposite(boolean)}.
+ * <p>
+ * The file is mapped rather than read into the heap. Not thread-safe.
+ */
+public class APNGRandomAccess implements Closeable {
+    private final WindowedInput in;
+    private final ImageHeader header;
+    private final FrameIndex index;
+    private final Compositor compositor;
+    private final LinkedHashMap<Integer, Gray> cache = new LinkedHashMap<Integer, Gray>(16, 0.75f, true);
+    private long maxCachedBytes = 64L << 20;
+    private long cachedBytes;
+    private int decodedFrames;
+    private ByteBuffer scratch;
+
+    /**
+     * Open an APNG, scanning it for its frames.
+     * @param file the APNG to read
+     * @throws IOException if the file cannot be read
+     */
+    public APNGRandomAccess(File file) throws IOException {
+        this(file, null);
+    }
+
+    /**
+     * Open an APNG with a sidecar index. The index is read from the sidecar if it was built from the current
+     * content of the file, otherwise the file is scanned and the sidecar is written.
+     * @param file the APNG to read
+     * @param sidecar the index file, or null to always scan
+     * @throws IOException if the file cannot be read or the sidecar cannot be written
+     */
+    public APNGRandomAccess(File file, File sidecar) throws IOException {
+        this.in = new WindowedInput(new FileInputStream(file).getChannel(), WindowedInput.DEFAULT_WINDOW_SIZE);
+        try {
+            in.position(PNG_SIG.length);
+            this.header = APNGReader.readHeader(in);
+            FrameIndex index = sidecar != null ? FrameIndex.load(sidecar, file) : null;
+            if (index == null || index.size() != header.frameCount) {
+                index = FrameIndex.build(in, header);
+                if (sidecar != null) {
+                    index.save(sidecar, file);
+                }
+            }
+            this.index = index;
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        } catch (RuntimeException e) {
+            in.close();
+            throw e;
+        }
+        this.compositor = new Compositor(header.width, header.height, header.transparentGray);
+    }
+
+    /**
+     * Keep rendered frames up to the given total size. Lowering it evicts frames right away.
+     * @param maxCachedBytes the cache size in bytes, 64 MiB by default; 0 to cache nothing
+     */
+    public void setCacheSize(long maxCachedBytes) {
+        if (maxCachedBytes < 0) {
+            throw new IllegalArgumentException("cache size must not be negative");
+        }
+        this.maxCachedBytes = maxCachedBytes;
+        evict();
+    }
+
+    public long getCacheSize() {
+        return maxCachedBytes;
+    }
+
+    /**
+     * @return the bytes held by cached frames
+     */
+    public long getCachedBytes() {
+        return cachedBytes;
+    }
+
+    /**
+     * @return the number of frames decoded so far, to tell how many seeks were served from the cache
+     */
+    public int getDecodedFrames() {
+        return decodedFrames;
+    }
+
+    public int getWidth() {
+        return header.width;
+    }
+
+    public int getHeight() {
+        return header.height;
+    }
+
+    public int getFrameCount() {
+        return index.size();
+    }
+
+    /**
+     * @return the loop count from the acTL chunk, 0 for infinite
+     */
+    public int getLoopCount() {
+        return header.loopCount;
+    }
+
+    /**
+     * @return the sum of all frame delays in milliseconds
+     */
+    public long getDuration() {
+        return index.starts[index.size()];
+    }
+
+    /**
+     * @return the delay of frame {@code i} in milliseconds
+     */
+    public int getDelay(int i) {
+        checkIndex(i);
+        return index.fctls[i].getDelay();
+    }
+
+    /**
+     * @return the time frame {@code i} is shown at, in milliseconds from the start of the animation
+     */
+    public long getStartTime(int i) {
+        checkIndex(i);
+        return index.starts[i];
+    }
+
+    /**
+     * Find the frame shown at a point in time. Times past the end wrap around, as when the animation loops.
+     * @param time milliseconds from the start of the animation
+     * @return the index of the frame shown at that time
+     */
+    public int frameAt(long time) {
+        if (time < 0) {
+            throw new IllegalArgumentException("negative time " + time);
+        }
+        long duration = getDuration();
+        return index.frameAt(duration > 0 ? time % duration : 0);
+    }
+
+    /**
+     * Render a frame. The returned image is a read-only view of the cached frame; copy it to modify it.
+     * @param i the frame index
+     * @return the full-canvas frame, with the frame's delay
+     * @throws IOException if the file cannot be read
+     */
+    public Gray frame(int i) throws IOException {
+        checkIndex(i);
+        Gray cached = cache.get(i);
+        if (cached == null) {
+            cached = render(i);
+        }
+        return new Gray(cached.width, cached.height, cached.getData().asReadOnlyBuffer(), cached.getDelay());
+    }
+
+    /**
+     * Drop every cached frame.
+     */
+    public void clearCache() {
+        cache.clear();
+        cachedBytes = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        clearCache();
+        in.close();
+    }
+
+    private void checkIndex(int i) {
+        if (i < 0 || i >= index.size()) {
+            throw new IndexOutOfBoundsException("frame " + i + " of " + index.size());
+        }
+    }
+
+    /**
+     * Composite frame {@code i}, starting from the closest earlier cached frame or independent frame.
+     */
+    private Gray render(int i) throws IOException {
+        int start = i;
+        while (true) {
+            if (start < i) {
+                Gray cached = cache.get(start);
+                if (cached != null && disposeOp(start) != DISPOSE_OP_PREVIOUS) {
+                    compositor.restore(index.fctls[start], disposeOp(start), cached.getData());
+                    start++;
+                    break;
+                }
+            }
+            if (isIndependent(start, i)) {
+                compositor.reset();
+                break;
+            }
+            start--;
+        }
+
+        CodecContext ctx = CodecContext.acquire();
+        try {
+            FrameDecoder decoder = ctx.decoder();
+            decoder.setFormat(header.bitDepth, header.sampleToGray());
+            Gray gray = null;
+            for (int f = start; f <= i; f++) {
+                FCTL fctl = index.fctls[f];
+                ByteBuffer pixels = decode(decoder, f);
+                compositor.compose(fctl, pixels);
+                gray = compositor.snapshot(fctl.getDelay());
+                put(f, gray);
+            }
+            return gray;
+        } finally {
+            ctx.release();
+        }
+    }
+
+    /**
+     * @return whether compositing can start at frame {@code f} from a cleared canvas to render frame {@code target}
+     */
+    private boolean isIndependent(int f, int target) {
+        if (f == 0) {
+            return true;
+        }
+        FCTL prev = index.fctls[f - 1];
+        if (disposeOp(f - 1) == DISPOSE_OP_BACKGROUND && coversCanvas(prev)) {
+            return true; // the canvas before f is cleared anyway
+        }
+        FCTL fctl = index.fctls[f];
+        boolean opaque = fctl.blendOp == BLEND_OP_SOURCE || header.transparentGray < 0;
+        // disposing f to previous would need the canvas before it
+        return opaque && coversCanvas(fctl) && (f == target || fctl.disposeOp != DISPOSE_OP_PREVIOUS);
+    }
+
+    private boolean coversCanvas(FCTL fctl) {
+        return fctl.x <= 0 && fctl.y <= 0 && fctl.x + fctl.width >= header.width
+                && fctl.y + fctl.height >= header.height;
+    }
+
+    /**
+     * @return the dispose op frame {@code f} is disposed with, the first frame reverting to background
+     */
+    private byte disposeOp(int f) {
+        byte op = index.fctls[f].disposeOp;
+        return f == 0 && op == DISPOSE_OP_PREVIOUS ? DISPOSE_OP_BACKGROUND : op;
+    }
+
+    private ByteBuffer decode(FrameDecoder decoder, int f) throws IOException {
+        FCTL fctl = index.fctls[f];
+        int size = fctl.width * fctl.height;
+        if (scratch == null || scratch.capacity() < size) {
+            scratch = ByteBuffer.allocate(size);
+        }
+        ByteBuffer pixels = scratch.duplicate();
+        pixels.clear().limit(size);
+        pixels = pixels.slice();
+        decoder.begin(fctl.width, fctl.height, pixels, null);
+        long[] offsets = index.offsets[f];
+        int[] lengths = index.lengths[f];
+        for (int c = 0; c < offsets.length; c++) {
+            in.position(offsets[c]);
+            if (decoder.feed(in.slice(lengths[c]))) {
+                decodedFrames++;
+                return pixels;
+            }
+        }
+        throw new RuntimeException("fdAT or IDAT expected but not found");
+    }
+
+    private void put(int f, Gray gray) {
+        long size = (long) gray.width * gray.height;
+        if (size > maxCachedBytes) {
+            return;
+        }
+        Gray old = cache.put(f, gray);
+        if (old != null) {
+            cachedBytes -= (long) old.width * old.height;
+        }
+        cachedBytes += size;
+        evict();
+    }
+
+    private void evict() {
+        Iterator<Gray> it = cache.values().iterator();
+        while (cachedBytes > maxCachedBytes && it.hasNext()) {
+            Gray gray = it.next();
+            cachedBytes -= (long) gray.width * gray.height;
+            it.remove();
+        }
+    }
+}
@@ -1,26 +1,180 @@
 package com.vg.apng;
 
 import static com.vg.apng.APNG.IDAT_SIG;
+import static com.vg.apng.APNG.IEND_SIG;
 import static com.vg.apng.APNG.PNG_SIG;
-import static com.vg.apng.APNG.acTL_SIG;
 import static com.vg.apng.APNG.fcTL_SIG;
 import static com.vg.apng.APNG.fdAT_SIG;
 
-import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
-import java.util.zip.DataFormatException;
-import java.util.zip.Inflater;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * Read an APNG back into grayscale images.
  *
  * @see APNGReader#read(File)
+ * @see APNGReader#frames(ReadableByteChannel)
+ * @see APNGReader#read(File, FrameSink)
  */
-class APNGReader {
+public class APNGReader {
+    private boolean memoryMapped;
+    private boolean composite;
+    private FrameListener listener;
+    private FramePool framePool;
+    private ExecutorService executor;
+    private int previewFactor = 1;
+    private int previewWidth;
+    private int previewHeight;
+    int windowSize = WindowedInput.DEFAULT_WINDOW_SIZE;
+
+    /**
+     * Read through {@link FileChannel#map} windows instead of copying the whole file into the heap first. Files that
+     * do not fit into a single heap buffer are always mapped.
+     *
+     * @param memoryMapped true to map the file
+     */
+    public void setMemoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+    }
+
+    /**
+     * Render every frame onto the full canvas, honoring frame offsets, dispose ops and blend ops, instead of returning
+     * each frame's own rectangle as stored.
+     * <p>
+     * Off by default, here and in the {@link APNG} read helpers, for compatibility: {@link APNGWriter} writes frames
+     * of different sizes each at its own size, and callers read them back as such, while compositing would clip
+     * every frame to the canvas of the first. Turn it on for files with sub-frame rectangles, such as those written
+     * with {@link APNGWriter#setDeltaFrames(boolean)}, or dispose and blend ops.
+     *
+     * @param composite true to return full-canvas frames
+     */
+    public void setComposite(boolean composite) {
+        this.composite = composite;
+    }
+
+    public boolean isComposite() {
+        return composite;
+    }
+
+    /**
+     * Report the stage timings, compressed size and compression ratio of every decoded frame. Frames are only timed
+     * while a listener is set or the {@code com.vg.apng.Frame} Flight Recorder event is recording.
+     *
+     * @param listener the listener, or null (the default) for none
+     */
+    public void setListener(FrameListener listener) {
+        this.listener = listener;
+    }
+
+    public FrameListener getListener() {
+        return listener;
+    }
+
+    /**
+     * Take decoded frames from a pool instead of allocating them, so that a decode loop closing every frame once it
+     * is done with it reaches a steady state without allocation.
+     *
+     * @param framePool the pool, or null (the default) to allocate every frame
+     */
+    public void setFramePool(FramePool framePool) {
+        this.framePool = framePool;
+    }
+
+    public FramePool getFramePool() {
+        return framePool;
+    }
+
+    /**
+     * Decode the frames of {@link #read(File)} concurrently. The chunk headers are scanned once to find the data of
+     * every frame, then each frame is inflated and unfiltered by its own task; compositing and listener callbacks
+     * still happen in frame order.
+     *
+     * @param executor the executor or fork-join pool to decode frames on, not shut down by the reader; null (the
+     *                 default) to decode on the caller's thread
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Decode reduced previews for thumbnails and contact sheets. Every block of {@code factor} by {@code factor}
+     * pixels is averaged into one pixel while scanlines are unfiltered, so only the reduced frames and two
+     * scanlines are held in memory. Blocks are aligned to the canvas; a block on the edge of a frame that does not
+     * start on a block boundary averages only the pixels of that frame.
+     * <p>
+     * When {@link #setComposite(boolean) compositing}, frames are composited onto a full-size canvas and only the
+     * blocks each frame touches are averaged again, since a frame covering part of a block must not replace the
+     * rest of it.
+     *
+     * @param factor a power of two from 1 (the default, full size) to 256
+     */
+    public void setPreviewFactor(int factor) {
+        if (factor < 1 || factor > 256 || Integer.bitCount(factor) != 1) {
+            throw new IllegalArgumentException("preview factor must be a power of two from 1 to 256, got " + factor);
+        }
+        this.previewFactor = factor;
+        this.previewWidth = 0;
+        this.previewHeight = 0;
+    }
+
+    /**
+     * Decode reduced previews at the largest power of two reduction that still leaves the canvas at least
+     * {@code width} by {@code height}; scale the frames the rest of the way if an exact size is needed.
+     *
+     * @param width the smallest preview width
+     * @param height the smallest preview height
+     * @see #setPreviewFactor(int)
+     */
+    public void setPreviewSize(int width, int height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("bad preview size " + width + "x" + height);
+        }
+        this.previewFactor = 1;
+        this.previewWidth = width;
+        this.previewHeight = height;
+    }
+
+    /**
+     * @return the preview reduction for a canvas, as a shift
+     */
+    int previewShift(ImageHeader header) {
+        if (previewWidth == 0) {
+            return Integer.numberOfTrailingZeros(previewFactor);
+        }
+        int shift = 0;
+        while (shift < 8 && (header.width + (2 << shift) - 1) >> (shift + 1) >= previewWidth
+                && (header.height + (2 << shift) - 1) >> (shift + 1) >= previewHeight) {
+            shift++;
+        }
+        return shift;
+    }
+
+    /**
+     * @return a compositor for the canvas, rendering it reduced by {@code 2^shift}, or null if frames are not
+     *         composited
+     */
+    Compositor newCompositor(ImageHeader header, int shift) {
+        if (!composite) {
+            return null;
+        }
+        return new Compositor(header.width, header.height, header.transparentGray, shift);
+    }
 
     /**
      * Read an APNG back into an array of grayscale images.
@@ -30,118 +184,293 @@ class APNGReader {
      * @throws IOException if the specified File is invalid
      */
     public Gray[] read(File file) throws IOException {
-        ByteBuffer in = readFile(file);
-        in.position(PNG_SIG.length);
-        int frameCount = nextACTL(in).frameCount;
+        WindowedInput in = openFile(file);
+        try {
+            in.position(PNG_SIG.length);
+            ImageHeader header = readHeader(in);
 
-        Gray[] grays = new Gray[frameCount];
+            if (executor != null) {
+                return readParallel(in, header);
+            }
 
-        for (int i = 0; i < frameCount; i++) {
-            grays[i] = readFrame(in);
-        }
+            Gray[] grays = new Gray[header.frameCount];
 
-        return grays;
+            byte[] lut = header.sampleToGray();
+            int shift = previewShift(header);
+            CodecContext ctx = CodecContext.acquire();
+            FrameDecoder decoder = ctx.decoder();
+            decoder.setFormat(header.bitDepth, lut);
+            Compositor compositor = newCompositor(header, shift);
+            try {
+                for (int i = 0; i < grays.length; i++) {
+                    grays[i] = readFrame(in, decoder, compositor, i, shift);
+                }
+            } finally {
+                ctx.release();
+            }
+
+            return grays;
+        } finally {
+            in.close();
+        }
     }
 
-    private Gray readFrame(ByteBuffer in) {
-        FCTL fctl = nextFCTL(in);
-        ByteBuffer data = nextData(in);
-        ByteBuffer decompressed = decompress(data);
-        ByteBuffer pixels = unfilter(fctl.width, fctl.height, decompressed);
-        return new Gray(fctl.width, fctl.height, pixels);
+    /**
+     * Open a lazy frame iterator on a channel. Chunks are pulled through a small fixed buffer and one frame is
+     * decoded per {@link APNGFrameIterator#next()}.
+     *
+     * @param ch the channel to read from
+     * @return the frame iterator, to be closed by the caller
+     * @throws IOException if the channel does not start with an APNG header
+     */
+    public APNGFrameIterator frames(ReadableByteChannel ch) throws IOException {
+        return new APNGFrameIterator(ch, this);
     }
 
-    private ByteBuffer unfilter(int width, int height, ByteBuffer data) {
-        ByteBuffer pixels = ByteBuffer.allocate(width * height);
+    /**
+     * Decode an APNG into a sink, one frame at a time, with no allocation per frame. Frames are delivered in order on
+     * the calling thread; the {@link #setExecutor(ExecutorService) executor} and {@link #setFramePool(FramePool) frame
+     * pool} are not used.
+     *
+     * @param file the File to read from
+     * @param sink receives every frame
+     * @throws IOException if the specified File is invalid, or the sink fails
+     */
+    public void read(File file, FrameSink sink) throws IOException {
+        read(new FileInputStream(file).getChannel(), sink);
+    }
 
-        while (data.hasRemaining()) {
-            int filterType = data.get();
-            if (filterType != 0) {
-                throw new RuntimeException("unsupported filter type " + filterType);
+    /**
+     * Decode an APNG into a sink, one frame at a time, with no allocation per frame.
+     *
+     * @param ch the channel to read from, closed when done
+     * @param sink receives every frame
+     * @throws IOException if the channel fails or does not hold an APNG, or the sink fails
+     * @see #read(File, FrameSink)
+     */
+    public void read(ReadableByteChannel ch, FrameSink sink) throws IOException {
+        APNGFrameIterator it = frames(ch);
+        try {
+            while (it.hasNext()) {
+                it.next(sink);
             }
-
-            data.limit(data.position() + width); // one line
-            pixels.put(data);
-            data.limit(data.capacity());
+        } finally {
+            it.close();
         }
+    }
 
-        return pixels;
+    private Gray readFrame(WindowedInput in, FrameDecoder decoder, Compositor compositor, int index, int shift)
+            throws IOException {
+        boolean timed = listener != null || FrameEvents.isRecording();
+        long t = timed ? System.nanoTime() : 0;
+        FCTL fctl = nextFCTL(in);
+        FrameStats stats = timed ? new FrameStats(false, index, fctl.width, fctl.height) : null;
+        if (stats != null) {
+            stats.lap(FrameStats.Stage.READ, t);
+        }
+        // composited frames are reduced after compositing
+        FCTL reduced = fctl.reduce(compositor != null ? 0 : shift);
+        Gray gray = framePool != null ? framePool.allocate(reduced.width, reduced.height, fctl.getDelay())
+                : new Gray(reduced.width, reduced.height, fctl.getDelay());
+        decoder.begin(fctl, compositor != null ? 0 : shift, gray.getData(), stats);
+        if (stats == null) {
+            while (!decoder.feed(nextData(in))) {
+                // frame data split over several chunks
+            }
+        } else {
+            boolean complete;
+            do {
+                t = System.nanoTime();
+                ByteBuffer data = nextData(in);
+                stats.lap(FrameStats.Stage.READ, t);
+                complete = decoder.feed(data);
+            } while (!complete);
+            t = System.nanoTime();
+        }
+        if (compositor != null) {
+            compositor.compose(fctl, gray.getData());
+            gray.close();
+            gray = compositor.snapshot(fctl.getDelay(), framePool);
+        }
+        if (stats != null) {
+            stats.lap(FrameStats.Stage.COMPOSITE, t);
+            stats.report(listener);
+        }
+        return gray;
     }
 
-    private ByteBuffer decompress(ByteBuffer data) {
-        Inflater inflater = new Inflater();
-        inflater.setInput(data.array(), data.arrayOffset() + data.position(), data.remaining());
+    private Gray[] readParallel(WindowedInput in, ImageHeader header) throws IOException {
+        boolean timed = listener != null || FrameEvents.isRecording();
+        final int bitDepth = header.bitDepth;
+        final byte[] lut = header.sampleToGray();
+        // composited frames are reduced after compositing
+        final int shift = composite ? 0 : previewShift(header);
+        int n = header.frameCount;
+        final FCTL[] fctls = new FCTL[n];
+        final Gray[] grays = new Gray[n];
+        final FrameStats[] stats = new FrameStats[n];
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(n);
+
+        // index pass: frame control and data chunks of every frame, as views into the input
+        for (int i = 0; i < n; i++) {
+            long t = timed ? System.nanoTime() : 0;
+            final FCTL fctl = nextFCTL(in);
+            final List<ByteBuffer> data = new ArrayList<ByteBuffer>();
+            while (nextIsData(in)) {
+                data.add(nextData(in));
+            }
+            fctls[i] = fctl;
+            FCTL reduced = fctl.reduce(shift);
+            grays[i] = framePool != null ? framePool.allocate(reduced.width, reduced.height, fctl.getDelay())
+                    : new Gray(reduced.width, reduced.height, fctl.getDelay());
+            if (timed) {
+                stats[i] = new FrameStats(false, i, fctl.width, fctl.height);
+                stats[i].lap(FrameStats.Stage.READ, t);
+            }
+            final Gray gray = grays[i];
+            final FrameStats frameStats = stats[i];
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    CodecContext ctx = CodecContext.acquire();
+                    try {
+                        FrameDecoder decoder = ctx.decoder();
+                        decoder.setFormat(bitDepth, lut);
+                        decoder.begin(fctl, shift, gray.getData(), frameStats);
+                        for (ByteBuffer chunk : data) {
+                            if (decoder.feed(chunk)) {
+                                return null;
+                            }
+                        }
+                        throw new RuntimeException("fdAT or IDAT expected but not found");
+                    } finally {
+                        ctx.release();
+                    }
+                }
+            });
+        }
 
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        byte[] buffer = new byte[1024];
-        while (!inflater.finished()) {
+        List<Future<Void>> decoded;
+        try {
+            decoded = executor.invokeAll(tasks);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while decoding");
+        }
+        for (Future<Void> frame : decoded) {
             try {
-                int count = inflater.inflate(buffer);
-                out.write(buffer, 0, count);
-            } catch (DataFormatException e) {
-                throw new RuntimeException(e);
+                frame.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while decoding");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IOException(cause);
             }
         }
 
-        inflater.end();
-
-        return ByteBuffer.wrap(out.toByteArray());
+        Compositor compositor = newCompositor(header, previewShift(header));
+        for (int i = 0; i < n; i++) {
+            long t = timed ? System.nanoTime() : 0;
+            if (compositor != null) {
+                compositor.compose(fctls[i], grays[i].getData());
+                grays[i].close();
+                grays[i] = compositor.snapshot(fctls[i].getDelay(), framePool);
+            }
+            if (timed) {
+                stats[i].lap(FrameStats.Stage.COMPOSITE, t);
+                stats[i].report(listener);
+            }
+        }
+        return grays;
     }
 
-    private ByteBuffer readFile(File file) throws IOException {
-        ByteBuffer in = ByteBuffer.allocate((int) file.length());
-
-        ReadableByteChannel ch = new FileInputStream(file).getChannel();
+    private WindowedInput openFile(File file) throws IOException {
+        FileChannel ch = new FileInputStream(file).getChannel();
+        if (memoryMapped || ch.size() > Integer.MAX_VALUE) {
+            return new WindowedInput(ch, windowSize);
+        }
         try {
-            ch.read(in);
+            return new WindowedInput(readFile(ch));
         } finally {
             ch.close();
         }
+    }
+
+    private ByteBuffer readFile(FileChannel ch) throws IOException {
+        ByteBuffer in = ByteBuffer.allocate((int) ch.size());
+
+        while (in.hasRemaining()) {
+            if (ch.read(in) < 0) {
+                throw new EOFException();
+            }
+        }
 
         in.flip();
 
         return in;
     }
 
-    private ACTL nextACTL(ByteBuffer in) {
+    static ImageHeader readHeader(WindowedInput in) throws IOException {
+        ImageHeader header = new ImageHeader();
         while (true) {
+            long chunkStart = in.position();
             int chunkLen = in.getInt();
             int sig = in.getInt();
 
-            if (sig == acTL_SIG) {
-                int frameCount = in.getInt();
-                in.getInt(); // loop count
-                in.getInt(); // crc
-                return new ACTL(frameCount);
+            if (sig == IDAT_SIG || sig == fcTL_SIG || sig == IEND_SIG) {
+                in.position(chunkStart);
+                break;
+            }
+            if (ImageHeader.isHeaderChunk(sig)) {
+                header.read(sig, in.slice(chunkLen));
+                in.skip(4); // crc
+            } else {
+                in.skip((chunkLen & 0xffffffffL) + 4);
             }
-
-            in.position(in.position() + chunkLen + 4);
         }
+        if (!header.isAnimated()) {
+            throw new RuntimeException("acTL not found");
+        }
+        return header;
     }
 
-    private FCTL nextFCTL(ByteBuffer in) {
-        in.getInt(); // chunkLen
-        int sig = in.getInt();
+    static FCTL nextFCTL(WindowedInput in) throws IOException {
+        while (true) {
+            long chunkLen = in.getInt() & 0xffffffffL;
+            int sig = in.getInt();
 
-        if (sig != fcTL_SIG) {
-            throw new RuntimeException("fcTL expected but not found");
-        }
+            if (sig == fcTL_SIG) {
+                FCTL fctl = FCTL.read(in.slice((int) chunkLen));
+                in.getInt();        // crc
+                return fctl;
+            }
+            if (sig == IEND_SIG) {
+                throw new RuntimeException("fcTL expected but not found");
+            }
 
-        in.getInt();        // seqNumber
-        int width = in.getInt();
-        int height = in.getInt();
-        in.getInt();        // x position
-        in.getInt();        // y position
-        in.getShort();      // fps num
-        in.getShort();      // fps den
-        in.get();  	        // dispose 1:clear, 0: do nothing, 2: revert
-        in.get();          	// blend   1:blend, 0: overwrite
-        in.getInt();        // crc
+            in.skip(chunkLen + 4);  // default image, leftover data of the previous frame, ancillary chunks
+        }
+    }
 
-        return new FCTL(width, height);
+    static boolean nextIsData(WindowedInput in) throws IOException {
+        long start = in.position();
+        if (start + 8 > in.size()) {
+            return false;
+        }
+        in.skip(4);
+        int sig = in.getInt();
+        in.position(start);
+        return sig == IDAT_SIG || sig == fdAT_SIG;
     }
 
-    private ByteBuffer nextData(ByteBuffer in) {
+    static ByteBuffer nextData(WindowedInput in) throws IOException {
         int chunkLen = in.getInt();
         int sig = in.getInt();
         int dataSize = chunkLen;
@@ -153,29 +482,10 @@ class APNGReader {
             throw new RuntimeException("fdAT or IDAT expected but not found");
         }
 
-        ByteBuffer data = in.duplicate();
-        data.limit(in.position() + dataSize);
+        ByteBuffer data = in.slice(dataSize);
 
-        in.position(in.position() + dataSize + 4);
+        in.skip(4); // crc
 
         return data;
     }
-
-    private static class ACTL {
-        public final int frameCount;
-
-        public ACTL(int frameCount) {
-            this.frameCount = frameCount;
-        }
-    }
-
-    private static class FCTL {
-        public final int width;
-        public final int height;
-
-        public FCTL(int width, int height) {
-            this.width = width;
-            this.height = height;
-        }
-    }
 }
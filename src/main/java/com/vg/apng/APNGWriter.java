@@ -2,30 +2,37 @@ package com.vg.apng;
 
 import static com.vg.apng.APNG.IDAT_SIG;
 import static com.vg.apng.APNG.IHDR_SIG;
+import static com.vg.apng.APNG.PLTE_SIG;
 import static com.vg.apng.APNG.PNG_SIG;
 import static com.vg.apng.APNG.acTL_SIG;
 import static com.vg.apng.APNG.fcTL_SIG;
 import static com.vg.apng.APNG.fdAT_SIG;
 
+import java.awt.Rectangle;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.OutputStream;
 import java.io.IOException;
-import java.io.ByteArrayOutputStream;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
 import java.util.zip.CRC32;
 import java.util.zip.Deflater;
-import java.util.zip.DeflaterOutputStream;
 
 /**
  * Create APNG from grayscale images.
  *
  * @see APNGWriter#write(Gray[], File, int)
  * @see APNGWriter#write(Gray[], OutputStream, int)
+ * @see APNGWriter#open(File, int)
  */
-class APNGWriter {
+public class APNGWriter {
     public static final byte ZERO = 0;
 
     public static final int CHUNK_DELTA =
@@ -49,6 +56,271 @@ class APNGWriter {
             0x60, (byte) 0x82 //ae4260820
     };
 
+    private ExecutorService executor;
+    private int maxFramesInFlight = 2 * Runtime.getRuntime().availableProcessors();
+    private ForkJoinPool deflatePool;
+    private FilterStrategy filterStrategy = FilterStrategy.NONE;
+    private int compressionLevel = 9;
+    private int deflateStrategy = Deflater.DEFAULT_STRATEGY;
+    private boolean autoTune;
+    private double autoTuneBudget = Double.POSITIVE_INFINITY;
+    private boolean deltaFrames;
+    private boolean mergeDuplicates;
+    private boolean reduceBitDepth = true;
+    private FrameListener listener;
+    private int deflateBlockSize = ParallelDeflate.DEFAULT_BLOCK_SIZE;
+    private int queueCapacity = 4;
+    private BackPressure backPressure = BackPressure.BLOCK;
+    private Executor filterExecutor;
+    private Executor compressExecutor;
+    private Executor writeExecutor;
+
+    /**
+     * Compress frames concurrently on the given executor. Chunks are still written in frame order with consecutive
+     * sequence numbers. Pass null (the default) to compress on the caller's thread.
+     * @param executor the executor or fork-join pool to compress frames on, not shut down by the writer
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Limit the number of frames held in memory while they are being compressed in parallel.
+     * @param maxFramesInFlight the maximum number of frames queued or being compressed, defaults to twice the number
+     *                          of available processors
+     */
+    public void setMaxFramesInFlight(int maxFramesInFlight) {
+        if (maxFramesInFlight <= 0) {
+            throw new IllegalArgumentException("maxFramesInFlight must be positive");
+        }
+        this.maxFramesInFlight = maxFramesInFlight;
+    }
+
+    public int getMaxFramesInFlight() {
+        return maxFramesInFlight;
+    }
+
+    /**
+     * @param queueCapacity how many frames an {@link #openAsync(File, int) asynchronous session} holds before it
+     *                      applies back-pressure, 4 by default
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("queueCapacity must be positive");
+        }
+        this.queueCapacity = queueCapacity;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * @param backPressure what an asynchronous session does with a frame when its queue is full,
+     *                     {@link BackPressure#BLOCK} by default
+     */
+    public void setBackPressure(BackPressure backPressure) {
+        this.backPressure = backPressure;
+    }
+
+    public BackPressure getBackPressure() {
+        return backPressure;
+    }
+
+    /**
+     * Choose where the stages of an asynchronous session run. The filter and write stages each occupy one thread of
+     * their executor for the lifetime of the session. Null executors (the default) are replaced by a virtual thread
+     * per task executor where the runtime has one, and by daemon threads otherwise; the compress stage falls back to
+     * {@link #setExecutor(ExecutorService) the executor} first. Executors passed in are not shut down.
+     * @param filterExecutor the executor filtering frames in order
+     * @param compressExecutor the executor compressing filtered frames concurrently
+     * @param writeExecutor the executor writing compressed frames in order
+     */
+    public void setStageExecutors(Executor filterExecutor, Executor compressExecutor, Executor writeExecutor) {
+        this.filterExecutor = filterExecutor;
+        this.compressExecutor = compressExecutor;
+        this.writeExecutor = writeExecutor;
+    }
+
+    Executor getFilterExecutor() {
+        return filterExecutor;
+    }
+
+    Executor getCompressExecutor() {
+        return compressExecutor != null ? compressExecutor : executor;
+    }
+
+    Executor getWriteExecutor() {
+        return writeExecutor;
+    }
+
+    /**
+     * Choose how the PNG filter of each scanline is picked. Filtering turns smooth content into small residuals that
+     * deflate much better; {@link FilterStrategy#MIN_SUM} is a good choice for natural and gradient content.
+     * @param filterStrategy the strategy, {@link FilterStrategy#NONE} by default
+     */
+    public void setFilterStrategy(FilterStrategy filterStrategy) {
+        this.filterStrategy = filterStrategy;
+    }
+
+    public FilterStrategy getFilterStrategy() {
+        return filterStrategy;
+    }
+
+    /**
+     * @param compressionLevel the deflate level, 0 (stored) to 9 (the default, smallest and slowest)
+     */
+    public void setCompressionLevel(int compressionLevel) {
+        if (compressionLevel < 0 || compressionLevel > 9) {
+            throw new IllegalArgumentException("compressionLevel must be between 0 and 9");
+        }
+        this.compressionLevel = compressionLevel;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * @param deflateStrategy {@link Deflater#DEFAULT_STRATEGY} (the default), {@link Deflater#FILTERED} or
+     *                        {@link Deflater#HUFFMAN_ONLY}
+     */
+    public void setDeflateStrategy(int deflateStrategy) {
+        if (deflateStrategy != Deflater.DEFAULT_STRATEGY && deflateStrategy != Deflater.FILTERED
+                && deflateStrategy != Deflater.HUFFMAN_ONLY) {
+            throw new IllegalArgumentException("unknown deflate strategy " + deflateStrategy);
+        }
+        this.deflateStrategy = deflateStrategy;
+    }
+
+    public int getDeflateStrategy() {
+        return deflateStrategy;
+    }
+
+    /**
+     * @return the filter strategy, compression level and deflate strategy set on this writer
+     */
+    public CompressionSettings getCompressionSettings() {
+        return new CompressionSettings(filterStrategy, compressionLevel, deflateStrategy);
+    }
+
+    /**
+     * Pick the filter strategy, compression level and deflate strategy per session instead of using the ones set
+     * on the writer. Bands of scanlines sampled from the first frame are compressed with every candidate
+     * combination (on the {@link #setExecutor(ExecutorService) executor} if there is one) and the smallest result
+     * within the {@link #setAutoTuneBudget(double) CPU budget} is used for all frames of the session.
+     * @param autoTune true to tune every session on its first frame, false (the default) to use the writer settings
+     * @see APNGWriterSession#getTuneResult()
+     */
+    public void setAutoTune(boolean autoTune) {
+        this.autoTune = autoTune;
+    }
+
+    public boolean isAutoTune() {
+        return autoTune;
+    }
+
+    /**
+     * Limit the CPU time auto-tuning may choose to spend. When no candidate fits, the fastest one is used.
+     * @param nanosPerPixel the maximum filter plus deflate time per pixel measured on the sample, unlimited by
+     *                      default
+     */
+    public void setAutoTuneBudget(double nanosPerPixel) {
+        if (!(nanosPerPixel > 0)) {
+            throw new IllegalArgumentException("nanosPerPixel must be positive");
+        }
+        this.autoTuneBudget = nanosPerPixel;
+    }
+
+    public double getAutoTuneBudget() {
+        return autoTuneBudget;
+    }
+
+    /**
+     * Write every frame after the first as the bounding box of the pixels that changed since the previous frame,
+     * drawn over the unchanged canvas (dispose op none, blend op source). Frames whose size differs from the
+     * previous frame are written whole.
+     * <p>
+     * Read such files back with {@link APNGReader#setComposite(boolean)} turned on; the {@link APNG} read helpers
+     * and a default reader return every frame after the first as its rectangle only.
+     * @param deltaFrames true to write dirty rectangles, false (the default) to write every frame whole
+     */
+    public void setDeltaFrames(boolean deltaFrames) {
+        this.deltaFrames = deltaFrames;
+    }
+
+    public boolean isDeltaFrames() {
+        return deltaFrames;
+    }
+
+    /**
+     * Fold every frame identical to the frame before it into that frame by extending its delay, instead of encoding
+     * the same pixels again; common in screen and dashboard captures. Duplicates are found by hash and confirmed by
+     * a full compare. The acTL frame count only covers the frames written, so streaming sessions merge only when
+     * they write to a file or a seekable channel, where the count is patched on close.
+     * @param mergeDuplicates true to merge duplicate frames, false (the default) to write every frame
+     */
+    public void setMergeDuplicates(boolean mergeDuplicates) {
+        this.mergeDuplicates = mergeDuplicates;
+    }
+
+    public boolean isMergeDuplicates() {
+        return mergeDuplicates;
+    }
+
+    /**
+     * Let {@link #write(Gray[], OutputStream, int)} scan the gray levels of all frames first and write 1, 2 or 4 bit
+     * grayscale or a 1, 2 or 4 bit palette when the animation uses few enough levels, such as masks, charts and
+     * terminal captures. Lossless; streaming sessions can not see their frames up front and always write 8 bit.
+     * @param reduceBitDepth true (the default) to pick the narrowest format that holds every level exactly
+     */
+    public void setReduceBitDepth(boolean reduceBitDepth) {
+        this.reduceBitDepth = reduceBitDepth;
+    }
+
+    public boolean isReduceBitDepth() {
+        return reduceBitDepth;
+    }
+
+    /**
+     * Report the stage timings, compressed size and compression ratio of every written frame. Frames are only timed
+     * while a listener is set or the {@code com.vg.apng.Frame} Flight Recorder event is recording.
+     * @param listener the listener, or null (the default) for none
+     */
+    public void setListener(FrameListener listener) {
+        this.listener = listener;
+    }
+
+    public FrameListener getListener() {
+        return listener;
+    }
+
+    /**
+     * @return true if frames have to be timed
+     */
+    boolean isInstrumented() {
+        return listener != null || FrameEvents.isRecording();
+    }
+
+    /**
+     * Split frames larger than {@code blockSize} into blocks that are deflated on several threads and joined into a
+     * single zlib stream, pigz style. Meant for very large frames; can be combined with
+     * {@link #setExecutor(ExecutorService)}. Pass a null pool (the default) to deflate every frame on one thread.
+     * @param pool the pool to deflate blocks on, not shut down by the writer
+     * @param blockSize the number of filtered bytes per block, at least 32 KB keeps the ratio close to serial deflate
+     */
+    public void setParallelDeflate(ForkJoinPool pool, int blockSize) {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("blockSize must be positive");
+        }
+        this.deflatePool = pool;
+        this.deflateBlockSize = blockSize;
+    }
+
     /**
      * Write an APNG image to a file.
      * @param grays the grayscale images to write
@@ -72,46 +344,117 @@ class APNGWriter {
             throw new RuntimeException("grays[] is empty");
         }
 
-        WritableByteChannel out = Channels.newChannel(os);
-        
+        if (mergeDuplicates) {
+            grays = DuplicateFrames.merge(grays);
+        }
+        PixelFormat format = reduceBitDepth ? PixelFormat.choose(grays) : PixelFormat.GRAY8;
+        APNGWriterSession session = new APNGWriterSession(this, Channels.newChannel(os), grays.length, loopCount,
+                format);
         try {
-            out.write(ByteBuffer.wrap(PNG_SIG));
-            out.write(makeIHDRChunk(grays[0].width, grays[0].height));
-            out.write(make_acTLChunk(grays.length, loopCount));
+            for (Gray gray : grays) {
+                session.addFrame(gray);
+            }
+        } finally {
+            session.close();
+        }
+    }
 
-            for (int i = 0, seq = 0; i < grays.length; i++) {
+    /**
+     * Open a streaming write session on a file. The acTL frame count is patched when the session is closed.
+     * @param file the File to write to
+     * @param loopCount the number of time to loop the animation (0 means infinite)
+     * @return the session to add frames to
+     * @throws IOException if the specified File is invalid
+     */
+    public APNGWriterSession open(File file, int loopCount) throws IOException {
+        return open(new FileOutputStream(file).getChannel(), loopCount);
+    }
 
-                short[] delay = getFractionFromDelay(grays[i].getDelay());
+    /**
+     * Open a streaming write session on a seekable channel. The acTL frame count is patched when the session is
+     * closed.
+     * @param ch the channel to write to
+     * @param loopCount the number of time to loop the animation (0 means infinite)
+     * @return the session to add frames to
+     */
+    public APNGWriterSession open(SeekableByteChannel ch, int loopCount) {
+        return new APNGWriterSession(this, ch, 0, loopCount, PixelFormat.GRAY8);
+    }
 
-                out.write(makeFCTL(grays[i].width, grays[i].height, seq++, delay[0], delay[1]));
-                out.write(makeDAT(seq, i == 0, filterTypeNone(grays[i].width, grays[i].height, grays[i].getData())));
+    /**
+     * Open a streaming write session on an OutputStream. Since the stream can not be rewound, exactly
+     * {@code frameCount} frames have to be added before the session is closed.
+     * @param os the OutputStream to write to
+     * @param frameCount the number of frames that will be added
+     * @param loopCount the number of time to loop the animation (0 means infinite)
+     * @return the session to add frames to
+     */
+    public APNGWriterSession open(OutputStream os, int frameCount, int loopCount) {
+        return open(Channels.newChannel(os), frameCount, loopCount);
+    }
 
-                if (i > 0) seq++;
-            }
+    /**
+     * Open a streaming write session on a channel with a declared frame count.
+     * @param ch the channel to write to
+     * @param frameCount the number of frames that will be added
+     * @param loopCount the number of time to loop the animation (0 means infinite)
+     * @return the session to add frames to
+     */
+    public APNGWriterSession open(WritableByteChannel ch, int frameCount, int loopCount) {
+        if (frameCount <= 0) {
+            throw new IllegalArgumentException("frameCount must be positive");
+        }
+        return new APNGWriterSession(this, ch, frameCount, loopCount, PixelFormat.GRAY8);
+    }
 
-            out.write(ByteBuffer.wrap(IEND_ARR));
-        } finally {
-            out.close();
+    /**
+     * Open an asynchronous write session on a file. Frames are filtered, compressed and written on background
+     * threads, and {@link BackPressure} decides what happens when they are added faster than they are encoded.
+     * @param file the File to write to
+     * @param loopCount the number of time to loop the animation (0 means infinite)
+     * @return the session to add frames to
+     * @throws IOException if the specified File is invalid
+     */
+    public APNGAsyncSession openAsync(File file, int loopCount) throws IOException {
+        return new APNGAsyncSession(this, open(file, loopCount));
+    }
+
+    /**
+     * Open an asynchronous write session on an OutputStream. Exactly {@code frameCount} frames have to be added, so
+     * the back-pressure must be {@link BackPressure#BLOCK} and duplicates must not be merged.
+     * @param os the OutputStream to write to
+     * @param frameCount the number of frames that will be added
+     * @param loopCount the number of time to loop the animation (0 means infinite)
+     * @return the session to add frames to
+     */
+    public APNGAsyncSession openAsync(OutputStream os, int frameCount, int loopCount) {
+        if (backPressure != BackPressure.BLOCK) {
+            throw new IllegalStateException(backPressure + " changes the frame count, which needs a seekable output");
+        }
+        if (mergeDuplicates) {
+            throw new IllegalStateException("merged duplicates change the frame count, which needs a seekable output");
         }
+        return new APNGAsyncSession(this, open(os, frameCount, loopCount));
     }
-    
+
     /**
      * Credits to Joop Eggen from Stack Overflow.
      * @param delayms the delay to change into fraction
      * @return an array containing the numerator and the denominator
      * @see <a href="https://stackoverflow.com/a/31586500/8810915">https://stackoverflow.com/a/31586500/8810915</a>
      */
-    private static short[] getFractionFromDelay(int delayms) {
+    static short[] getFractionFromDelay(int delayms) {
         double x = delayms;
         x /= 1000;
         final double eps = 0.000001;
-        int pfound = (int) Math.round(x);
+        // both are unsigned 16 bit, which merged frames can reach: clamp to the longest delay an fcTL holds
+        int pfound = (int) Math.min(Math.round(x), 0xffff);
         int qfound = 1;
         double errorfound = Math.abs(x - pfound);
         double error = 1;
         for (int q = 2; q < 100 && error > eps; ++q) {
             int p = (int) (x * q);
-            for (int i = 0; i < 2; ++i) { // below and above x
+            for (int i = 0; i < 2 && p <= 0xffff; ++i) { // below and above x
                 error = Math.abs(x - ((double) p / q));
                 if (error < errorfound) {
                     pfound = p;
@@ -124,18 +467,32 @@ class APNGWriter {
         return new short[] { (short) pfound, (short) qfound };
     }
 
-    private ByteBuffer makeIHDRChunk(int width, int height) { //http://www.w3.org/TR/PNG/#11IHDR
+    ByteBuffer makeIHDRChunk(int width, int height, PixelFormat format) { //http://www.w3.org/TR/PNG/#11IHDR
         ByteBuffer bb = ByteBuffer.allocate(IHDR_TOTAL_LEN);
         bb.putInt(IHDR_DATA_LEN);
         bb.putInt(IHDR_SIG);
         bb.putInt(width);
         bb.putInt(height);
-        bb.put((byte) 8); // bits per plane
-        bb.put(ZERO); //type Greyscale
+        bb.put((byte) format.bitDepth); // bits per plane
+        bb.put((byte) format.colorType); //type Greyscale or indexed
         bb.put(ZERO); //compression
         bb.put(ZERO); //filter
         bb.put(ZERO); //interlace
-        addChunkCRC(bb);
+        addChunkCRC(bb, new CRC32());
+        bb.flip();
+        return bb;
+    }
+
+    ByteBuffer makePLTEChunk(byte[] palette) { //http://www.w3.org/TR/PNG/#11PLTE
+        ByteBuffer bb = ByteBuffer.allocate(3 * palette.length + CHUNK_DELTA);
+        bb.putInt(3 * palette.length);
+        bb.putInt(PLTE_SIG);
+        for (byte gray : palette) {
+            bb.put(gray);
+            bb.put(gray);
+            bb.put(gray);
+        }
+        addChunkCRC(bb, new CRC32());
         bb.flip();
         return bb;
     }
@@ -146,12 +503,16 @@ class APNGWriter {
         bb.putInt(acTL_SIG);
         bb.putInt(frameCount);
         bb.putInt(loopCount); // 0 : infinite
-        addChunkCRC(bb);
+        addChunkCRC(bb, new CRC32());
         bb.flip();
         return bb;
     }
 
-    private void addChunkCRC(ByteBuffer chunkBuffer) {
+    ByteBuffer makeIENDChunk() {
+        return ByteBuffer.wrap(IEND_ARR);
+    }
+
+    private void addChunkCRC(ByteBuffer chunkBuffer, CRC32 crc) {
         if (chunkBuffer.remaining() != 4)           //CRC32 size 4
             throw new IllegalArgumentException();
 
@@ -160,24 +521,17 @@ class APNGWriter {
         if (size <= 0)
             throw new IllegalArgumentException();
 
-        chunkBuffer.position(4);             //size not covered by CRC
-        byte[] bytes = new byte[size];     // CRC covers only this
-        chunkBuffer.get(bytes);
-        chunkBuffer.putInt(crc(bytes));
+        ByteBuffer covered = chunkBuffer.duplicate(); // CRC covers type and data, not the size
+        covered.limit(chunkBuffer.position());
+        covered.position(4);
+        crc.reset();
+        crc.update(covered);
+        chunkBuffer.putInt((int) crc.getValue());
     }
 
-    private int crc(byte[] buf) {
-        return crc(buf, 0, buf.length);
-    }
-
-    private int crc(byte[] buf, int off, int len) {
-        CRC32 crc = new CRC32();
-        crc.update(buf, off, len);
-        return (int) crc.getValue();
-    }
-
-    private ByteBuffer makeFCTL(int width, int height, int seqNumber, short delay_num, short delay_den) {
-        ByteBuffer bb = ByteBuffer.allocate(fcTL_TOTAL_LEN);
+    ByteBuffer makeFCTL(CodecContext ctx, int width, int height, int x, int y, int seqNumber, short delay_num,
+            short delay_den, byte disposeOp, byte blendOp) {
+        ByteBuffer bb = ctx.chunkBuffer(fcTL_TOTAL_LEN);
 
         bb.putInt(fcTL_DATA_LEN);
         bb.putInt(fcTL_SIG);
@@ -185,14 +539,14 @@ class APNGWriter {
         bb.putInt(seqNumber);
         bb.putInt(width);
         bb.putInt(height);
-        bb.putInt(0);               // x position
-        bb.putInt(0);               // y position
+        bb.putInt(x);               // x position
+        bb.putInt(y);               // y position
         bb.putShort(delay_num);     // fps num
         bb.putShort(delay_den);     // fps den
-        bb.put((byte) 1);           //dispose 1:clear, 0: do nothing, 2: revert
-        bb.put(ZERO);               //blend   1:blend, 0: overwrite
+        bb.put(disposeOp);          //dispose 1:clear, 0: do nothing, 2: revert
+        bb.put(blendOp);            //blend   1:blend, 0: overwrite
 
-        addChunkCRC(bb);
+        addChunkCRC(bb, ctx.crc);
 
         bb.flip();
 
@@ -200,26 +554,45 @@ class APNGWriter {
     }
 
 
-    private ByteBuffer filterTypeNone(int width, int height, ByteBuffer in) {
-        int size = in.remaining();
-        ByteBuffer out = ByteBuffer.allocate(size + height);
-
-        for (int lineOffset = 0; lineOffset < size; lineOffset += width) {
-            out.put(ZERO); // "none" filter
-
-            in.limit(lineOffset + width);
-            in.position(lineOffset);
-            out.put(in);
+    /**
+     * Filter a frame or a rectangle of it, packing narrow samples first.
+     * @param owned true to return a newly allocated buffer, false to use the context's scratch buffer
+     */
+    ByteBuffer filterFrame(CodecContext ctx, CompressionSettings settings, PixelFormat format, Gray gray,
+            Rectangle r, boolean owned) {
+        ScanlineFilter filter = ctx.filter(settings.filter, settings.level);
+        if (format.isGray8()) {
+            int size = (r.width + 1) * r.height;
+            byte[] out = owned ? new byte[size] : ctx.filteredBuffer(size);
+            return filter.filter(r.width, r.height, gray.getData(), r.y * gray.width + r.x, gray.width, out);
         }
-
-        out.flip();
-
-        return out;
+        int rowBytes = format.rowBytes(r.width);
+        byte[] packed = ctx.packedBuffer(rowBytes * r.height);
+        format.pack(gray, r, packed);
+        int size = (rowBytes + 1) * r.height;
+        byte[] out = owned ? new byte[size] : ctx.filteredBuffer(size);
+        return filter.filter(rowBytes, r.height, ByteBuffer.wrap(packed), 0, rowBytes, out);
     }
 
-    private ByteBuffer makeDAT(int seqNumber, boolean idat, ByteBuffer buffer) {
-        ByteBuffer compressed = compress(buffer, 9);
+    /**
+     * Compress filtered scanlines into a zlib stream.
+     * @param owned true to return a newly allocated buffer, false to use the context's scratch buffer
+     */
+    ByteBuffer compressFrame(ByteBuffer filtered, CompressionSettings settings, CodecContext ctx, boolean owned) {
+        if (deflatePool != null && filtered.remaining() > deflateBlockSize) {
+            return ParallelDeflate.compress(filtered, settings.level, settings.strategy, deflateBlockSize,
+                    deflatePool);
+        }
+        return compress(filtered, settings.level, settings.strategy, ctx, owned);
+    }
 
+    /**
+     * Frame the compressed data as an IDAT or fdAT chunk without copying it: the length, type and sequence number
+     * header and the CRC go into buffers of their own, to be written around the payload with a gathering write.
+     * @param chunks receives the header, the payload and the CRC at {@code offset}
+     */
+    void makeDAT(CodecContext ctx, int seqNumber, boolean idat, ByteBuffer compressed, ByteBuffer[] chunks,
+            int offset) {
         int sig = idat ? IDAT_SIG : fdAT_SIG;
         boolean needSeqNum = !idat;
 
@@ -228,38 +601,65 @@ class APNGWriter {
         if (needSeqNum)
             size +=4;
 
-        ByteBuffer bb = ByteBuffer.allocate(size + CHUNK_DELTA);
-
-        bb.putInt(size);
-        bb.putInt(sig);
+        ByteBuffer header = ctx.chunkHeader();
+        header.putInt(size);
+        header.putInt(sig);
         if (needSeqNum) {
-            bb.putInt(seqNumber);
+            header.putInt(seqNumber);
         }
-        bb.put(compressed);
-
-        addChunkCRC(bb);
+        header.flip();
+
+        CRC32 crc = ctx.crc;
+        crc.reset();
+        ByteBuffer covered = header.duplicate(); // CRC covers type and data, not the size
+        covered.position(4);
+        crc.update(covered);
+        crc.update(compressed.duplicate());
+        ByteBuffer crcBuffer = ctx.chunkCRC();
+        crcBuffer.putInt((int) crc.getValue());
+        crcBuffer.flip();
+
+        chunks[offset] = header;
+        chunks[offset + 1] = compressed;
+        chunks[offset + 2] = crcBuffer;
+    }
 
-        bb.flip();
-        return bb;
+    /**
+     * Write buffers completely, with as few system calls as the channel allows.
+     */
+    static void writeFully(WritableByteChannel out, ByteBuffer[] srcs) throws IOException {
+        if (out instanceof GatheringByteChannel) {
+            GatheringByteChannel ch = (GatheringByteChannel) out;
+            while (srcs[srcs.length - 1].hasRemaining()) {
+                ch.write(srcs);
+            }
+        } else {
+            for (ByteBuffer src : srcs) {
+                while (src.hasRemaining()) {
+                    out.write(src);
+                }
+            }
+        }
     }
 
-    private ByteBuffer compress(ByteBuffer in, int level) {
+    private ByteBuffer compress(ByteBuffer in, int level, int strategy, CodecContext ctx, boolean owned) {
         int remaining = in.remaining();
-        Deflater deflater = new Deflater(remaining > 42 ? level : 0);
-
-        int size = remaining + 20;
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(size);
-        DeflaterOutputStream dos = new DeflaterOutputStream(baos, deflater, 0x2000, false);
-        WritableByteChannel wbc = Channels.newChannel(dos);
-        try {
-            wbc.write(in);
-            dos.finish();
-            dos.flush();
-            dos.close();
-        } catch (IOException e) {
-            throw new IllegalStateException(e);
+        Deflater deflater = ctx.deflater(remaining > 42 ? level : 0, strategy);
+        deflater.setInput(in);
+        deflater.finish();
+
+        // deflate bound: stored blocks plus the zlib wrapper
+        int bound = remaining + (remaining >> 3) + (remaining >> 6) + 64;
+        // an owned buffer is deflated into directly so that the payload is never copied afterwards
+        byte[] out = owned ? new byte[bound] : ctx.compressedBuffer(bound);
+        int size = 0;
+        while (!deflater.finished()) {
+            if (size == out.length) {
+                out = owned ? Arrays.copyOf(out, size + (size >> 1)) : ctx.growCompressedBuffer(size);
+            }
+            size += deflater.deflate(out, size, out.length - size);
         }
 
-        return ByteBuffer.wrap(baos.toByteArray());
+        return ByteBuffer.wrap(out, 0, size);
     }
 }
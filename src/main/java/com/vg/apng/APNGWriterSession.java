@@ -0,0 +1,409 @@
+package com.vg.apng;
+
+import java.awt.Rectangle;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+/**
+ * A streaming APNG write session. Every frame is encoded and written as soon as it is added, so only one frame has
+ * to be held in memory at a time.
+ * <p>
+ * When the session writes to a {@link SeekableByteChannel} the acTL frame count is patched on {@link #close()}.
+ * Otherwise the frame count has to be declared up front and exactly that many frames must be added.
+ * <p>
+ * If the writer has an {@link APNGWriter#setExecutor(ExecutorService) executor}, frames are compressed concurrently
+ * and written in order as they complete.
+ * <p>
+ * When the writer {@link APNGWriter#setMergeDuplicates(boolean) merges duplicates} and the output is seekable, a
+ * frame identical to the previous one only extends the delay of that frame; if it has already been written, its
+ * fcTL chunk is rewritten in place.
+ *
+ * @see APNGWriter#open(java.io.File, int)
+ * @see APNGWriter#open(java.io.OutputStream, int, int)
+ */
+public class APNGWriterSession implements Closeable {
+    private final APNGWriter writer;
+    private final WritableByteChannel out;
+    private final int declaredFrameCount;
+    private final int loopCount;
+    private final PixelFormat format;
+
+    private final CodecContext ctx;
+    private final DirtyRegion dirtyRegion;
+    private final DuplicateFrames duplicates;
+    private final Deque<PendingFrame> pending = new ArrayDeque<PendingFrame>();
+    private final ByteBuffer[] frameChunks = new ByteBuffer[4];
+    private CompressionSettings settings;
+    private TuneResult tuneResult;
+    private PendingFrame lastWritten;
+
+    private long acTLPosition = -1;
+    private int frameCount;
+    private int framesMerged;
+    private int framesWritten;
+    private int seq;
+    private boolean failed;
+    private boolean closed;
+
+    APNGWriterSession(APNGWriter writer, WritableByteChannel out, int declaredFrameCount, int loopCount,
+            PixelFormat format) {
+        if (declaredFrameCount <= 0 && !(out instanceof SeekableByteChannel)) {
+            throw new IllegalArgumentException("frame count must be declared for a non-seekable output");
+        }
+        this.writer = writer;
+        this.out = out;
+        this.declaredFrameCount = declaredFrameCount;
+        this.loopCount = loopCount;
+        this.format = format;
+        this.ctx = CodecContext.acquire();
+        this.dirtyRegion = writer.isDeltaFrames() ? new DirtyRegion() : null;
+        this.duplicates = writer.isMergeDuplicates() && isSeekable() ? new DuplicateFrames() : null;
+        this.settings = writer.getCompressionSettings();
+    }
+
+    /**
+     * Encode a frame and write it out. When the writer has an executor the frame is compressed in the background
+     * and written once all frames before it have been written; the Gray can be reused as soon as this method returns.
+     * @param gray the grayscale image to append to the animation
+     * @throws IOException if the underlying output fails
+     */
+    public void addFrame(Gray gray) throws IOException {
+        ExecutorService executor = writer.getExecutor();
+        try {
+            if (duplicates != null && merge(gray)) {
+                return;
+            }
+            if (executor != null) {
+                while (pending.size() >= writer.getMaxFramesInFlight()) {
+                    writePending(pending.poll(), ctx);
+                }
+            }
+            PendingFrame frame = encode(gray, executor);
+            if (executor == null) {
+                writePending(frame, ctx);
+            } else {
+                pending.add(frame);
+            }
+        } catch (IOException e) {
+            failed = true;
+            throw e;
+        } catch (RuntimeException e) {
+            failed = true;
+            throw e;
+        }
+    }
+
+    /**
+     * Filter a frame and start compressing it; the first frame also writes the header. Frames must be encoded in
+     * order, on one thread at a time.
+     * @param executor the executor to compress on, or null to compress on the calling thread
+     * @return the frame to {@link #write} once every frame before it has been written
+     */
+    PendingFrame encode(Gray gray, Executor executor) throws IOException {
+        if (closed) {
+            throw new IllegalStateException("session is closed");
+        }
+        if (!isSeekable() && frameCount >= declaredFrameCount) {
+            throw new IllegalStateException("declared frame count " + declaredFrameCount + " exceeded");
+        }
+
+        try {
+            if (frameCount == 0) {
+                writeHeader(gray);
+                if (writer.isAutoTune()) {
+                    tuneResult = AutoTuner.tune(gray, format, writer.getAutoTuneBudget(),
+                            writer.getExecutor());
+                    settings = tuneResult.chosen;
+                }
+            }
+
+            Rectangle region = dirtyRegion == null ? null : dirtyRegion.update(gray);
+            if (region == null) {
+                region = gray.getBounds();
+            }
+            byte disposeOp = dirtyRegion == null ? APNG.DISPOSE_OP_BACKGROUND : APNG.DISPOSE_OP_NONE;
+
+            final CompressionSettings settings = this.settings;
+            final FrameStats stats = writer.isInstrumented()
+                    ? new FrameStats(true, frameCount, region.width, region.height) : null;
+            long t = stats == null ? 0 : System.nanoTime();
+            Future<ByteBuffer> compressed;
+            if (executor == null) {
+                ByteBuffer filtered = writer.filterFrame(ctx, settings, format, gray, region, false);
+                if (stats != null) {
+                    t = stats.lap(FrameStats.Stage.FILTER, t);
+                }
+                compressed = CompletableFuture.completedFuture(writer.compressFrame(filtered, settings, ctx, false));
+                if (stats != null) {
+                    stats.lap(FrameStats.Stage.DEFLATE, t);
+                }
+            } else {
+                final ByteBuffer filtered = writer.filterFrame(ctx, settings, format, gray, region, true);
+                if (stats != null) {
+                    stats.lap(FrameStats.Stage.FILTER, t);
+                }
+                compressed = CompletableFuture.supplyAsync(new Supplier<ByteBuffer>() {
+                    @Override
+                    public ByteBuffer get() {
+                        long start = stats == null ? 0 : System.nanoTime();
+                        CodecContext worker = CodecContext.acquire();
+                        try {
+                            return writer.compressFrame(filtered, settings, worker, true);
+                        } finally {
+                            worker.release();
+                            if (stats != null) {
+                                stats.lap(FrameStats.Stage.DEFLATE, start);
+                            }
+                        }
+                    }
+                }, executor);
+            }
+            frameCount++;
+            return new PendingFrame(region, gray.getDelay(), disposeOp, APNG.BLEND_OP_SOURCE, compressed, stats);
+        } catch (IOException e) {
+            failed = true;
+            throw e;
+        } catch (RuntimeException e) {
+            failed = true;
+            throw e;
+        }
+    }
+
+    /**
+     * Write an encoded frame. Frames must be written in the order they were encoded, on one thread at a time.
+     * @param ctx the context to build chunks with, confined to the writing thread
+     */
+    void write(PendingFrame frame, CodecContext ctx) throws IOException {
+        try {
+            writePending(frame, ctx);
+        } catch (IOException e) {
+            failed = true;
+            throw e;
+        } catch (RuntimeException e) {
+            failed = true;
+            throw e;
+        }
+    }
+
+    /**
+     * Make {@link #close()} close the output without finalizing it.
+     */
+    void abort() {
+        failed = true;
+    }
+
+    /**
+     * @return the settings frames are compressed with, known once the first frame has been added when auto-tuning
+     */
+    public CompressionSettings getCompressionSettings() {
+        return settings;
+    }
+
+    /**
+     * @return the trials auto-tuning chose the settings from, or null if the writer does not auto-tune or no frame
+     *         has been added yet
+     * @see APNGWriter#setAutoTune(boolean)
+     */
+    public TuneResult getTuneResult() {
+        return tuneResult;
+    }
+
+    /**
+     * @return the number of frames added so far, not counting merged duplicates
+     */
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * @return the number of frames merged into an identical previous frame
+     * @see APNGWriter#setMergeDuplicates(boolean)
+     */
+    public int getFramesMerged() {
+        return framesMerged;
+    }
+
+    /**
+     * Write the frames still being compressed and the IEND chunk, patch the acTL frame count if needed and close the
+     * output. If a previous {@link #addFrame(Gray)} failed the output is closed without being finalized.
+     * @throws IOException if the underlying output fails
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            if (failed) {
+                return;
+            }
+            if (frameCount == 0) {
+                throw new IllegalStateException("no frames were added");
+            }
+
+            while (!pending.isEmpty()) {
+                writePending(pending.poll(), ctx);
+            }
+
+            out.write(writer.makeIENDChunk());
+
+            if (frameCount != declaredFrameCount) {
+                if (!isSeekable()) {
+                    throw new IllegalStateException("declared " + declaredFrameCount + " frames but " + frameCount
+                            + " were added");
+                }
+                patchFrameCount();
+            }
+        } finally {
+            for (PendingFrame frame : pending) {
+                frame.compressed.cancel(false);
+            }
+            pending.clear();
+            ctx.release();
+            out.close();
+        }
+    }
+
+    private void writePending(PendingFrame frame, CodecContext ctx) throws IOException {
+        ByteBuffer compressed;
+        try {
+            compressed = frame.compressed.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while compressing frame " + framesWritten);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+        FrameStats stats = frame.stats;
+        long t = stats == null ? 0 : System.nanoTime();
+
+        if (duplicates != null) {
+            frame.position = ((SeekableByteChannel) out).position();
+            lastWritten = frame;
+        }
+        // fcTL, data chunk header, payload and CRC go out in one gathering write
+        frame.seqNumber = seq++;
+        frameChunks[0] = makeFCTL(frame, ctx);
+        writer.makeDAT(ctx, seq, framesWritten == 0, compressed, frameChunks, 1);
+        if (stats != null) {
+            stats.compressedBytes = compressed.remaining();
+            t = stats.lap(FrameStats.Stage.CRC, t);
+        }
+        APNGWriter.writeFully(out, frameChunks);
+        Arrays.fill(frameChunks, null);
+        if (stats != null) {
+            stats.lap(FrameStats.Stage.WRITE, t);
+            stats.report(writer.getListener());
+        }
+
+        if (framesWritten > 0) seq++;
+        framesWritten++;
+    }
+
+    private ByteBuffer makeFCTL(PendingFrame frame, CodecContext ctx) {
+        short[] delay = APNGWriter.getFractionFromDelay(frame.delay);
+        Rectangle r = frame.region;
+        return writer.makeFCTL(ctx, r.width, r.height, r.x, r.y, frame.seqNumber, delay[0], delay[1],
+                frame.disposeOp, frame.blendOp);
+    }
+
+    /**
+     * Extend the delay of the previous frame if {@code gray} is identical to it.
+     * @return true if the frame was merged
+     */
+    private boolean merge(Gray gray) throws IOException {
+        if (closed) {
+            throw new IllegalStateException("session is closed");
+        }
+        if (!duplicates.isDuplicate(gray)) {
+            return false;
+        }
+        PendingFrame last = pending.isEmpty() ? lastWritten : pending.peekLast();
+        if (last == null || (long) last.delay + gray.getDelay() > DuplicateFrames.MAX_DELAY) {
+            return false;
+        }
+        last.delay += gray.getDelay();
+        if (last == lastWritten) {
+            SeekableByteChannel ch = (SeekableByteChannel) out;
+            long end = ch.position();
+            ch.position(last.position);
+            ByteBuffer fctl = makeFCTL(last, ctx);
+            while (fctl.hasRemaining()) {
+                ch.write(fctl);
+            }
+            ch.position(end);
+        }
+        framesMerged++;
+        return true;
+    }
+
+    private void writeHeader(Gray first) throws IOException {
+        out.write(ByteBuffer.wrap(APNG.PNG_SIG));
+        out.write(writer.makeIHDRChunk(first.width, first.height, format));
+        if (format.palette != null) {
+            out.write(writer.makePLTEChunk(format.palette));
+        }
+        if (isSeekable()) {
+            acTLPosition = ((SeekableByteChannel) out).position();
+        }
+        out.write(writer.make_acTLChunk(Math.max(declaredFrameCount, 0), loopCount));
+    }
+
+    private void patchFrameCount() throws IOException {
+        SeekableByteChannel ch = (SeekableByteChannel) out;
+        long end = ch.position();
+        ch.position(acTLPosition);
+        ByteBuffer acTL = writer.make_acTLChunk(frameCount, loopCount);
+        while (acTL.hasRemaining()) {
+            ch.write(acTL);
+        }
+        ch.position(end);
+    }
+
+    private boolean isSeekable() {
+        return out instanceof SeekableByteChannel;
+    }
+
+    static class PendingFrame {
+        public final Rectangle region;
+        public int delay;
+        public final byte disposeOp;
+        public final byte blendOp;
+        public final Future<ByteBuffer> compressed;
+        public final FrameStats stats;
+        public int seqNumber;
+        public long position = -1;
+
+        public PendingFrame(Rectangle region, int delay, byte disposeOp, byte blendOp, Future<ByteBuffer> compressed,
+                FrameStats stats) {
+            this.region = region;
+            this.delay = delay;
+            this.disposeOp = disposeOp;
+            this.blendOp = blendOp;
+            this.compressed = compressed;
+            this.stats = stats;
+        }
+    }
+}
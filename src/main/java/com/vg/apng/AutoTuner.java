@@ -0,0 +1,180 @@
+package com.vg.apng;
+
+import java.awt.Rectangle;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+
+/**
+ * Pick compression settings by trial: bands of scanlines sampled from a frame are filtered with every candidate
+ * filter strategy and each result is deflated with every candidate level and deflate strategy, timing both steps.
+ * Sampling whole bands of consecutive rows keeps the row-to-row correlation the up, average and Paeth filters and
+ * the deflate window depend on. Bands are packed to the pixel format the frames are written in first, so that
+ * trials see the same rows the encoder will.
+ */
+class AutoTuner {
+    static final int SAMPLE_BANDS = 8;
+    static final int BAND_ROWS = 16;
+    /** Candidates this much larger than the smallest are still considered, and the fastest of them wins. */
+    static final double SIZE_TOLERANCE = 0.01;
+
+    private static final FilterStrategy[] FILTERS = { FilterStrategy.NONE, FilterStrategy.SUB, FilterStrategy.UP,
+            FilterStrategy.PAETH, FilterStrategy.MIN_SUM };
+    private static final int[] LEVELS = { 1, 3, 6, 9 };
+
+    /**
+     * @param gray the frame to sample
+     * @param format the pixel format the frames are written in
+     * @param budget the maximum time per sampled pixel, in nanoseconds
+     * @param executor the executor to run trials on, or null to run them on the caller's thread
+     * @return the chosen settings and all trials
+     */
+    static TuneResult tune(Gray gray, PixelFormat format, double budget, ExecutorService executor) {
+        final int width = gray.width;
+        final int height = gray.height;
+        final int rows = Math.min(BAND_ROWS, height);
+        int bands = Math.min(SAMPLE_BANDS, height / rows);
+        int[] bandStarts = new int[bands];
+        for (int i = 0; i < bands; i++) {
+            bandStarts[i] = bands == 1 ? 0 : (int) ((long) i * (height - rows) / (bands - 1));
+        }
+
+        // the offset of every band in the rows the filters run on
+        final int rowBytes;
+        final int[] bandOffsets = new int[bands];
+        final ByteBuffer pixels;
+        if (format.isGray8()) {
+            rowBytes = width;
+            for (int i = 0; i < bands; i++) {
+                bandOffsets[i] = bandStarts[i] * width;
+            }
+            pixels = gray.getData();
+        } else {
+            rowBytes = format.rowBytes(width);
+            int bandSize = rowBytes * rows;
+            byte[] band = new byte[bandSize];
+            byte[] packed = new byte[bandSize * bands];
+            for (int i = 0; i < bands; i++) {
+                format.pack(gray, new Rectangle(0, bandStarts[i], width, rows), band);
+                System.arraycopy(band, 0, packed, i * bandSize, bandSize);
+                bandOffsets[i] = i * bandSize;
+            }
+            pixels = ByteBuffer.wrap(packed);
+        }
+
+        List<Callable<List<TuneResult.Trial>>> tasks = new ArrayList<Callable<List<TuneResult.Trial>>>();
+        for (final FilterStrategy filter : FILTERS) {
+            tasks.add(new Callable<List<TuneResult.Trial>>() {
+                @Override
+                public List<TuneResult.Trial> call() {
+                    return trials(filter, pixels, rowBytes, rows, bandOffsets);
+                }
+            });
+        }
+
+        List<TuneResult.Trial> trials = new ArrayList<TuneResult.Trial>();
+        if (executor == null) {
+            for (Callable<List<TuneResult.Trial>> task : tasks) {
+                try {
+                    trials.addAll(task.call());
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        } else {
+            try {
+                for (Future<List<TuneResult.Trial>> f : executor.invokeAll(tasks)) {
+                    trials.addAll(f.get());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted while tuning", e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+
+        int samplePixels = width * rows * bands;
+        return new TuneResult(choose(trials, budget * samplePixels), trials, samplePixels);
+    }
+
+    /**
+     * The smallest trial within the budget, or the fastest of those within {@link #SIZE_TOLERANCE} of it. The
+     * fastest trial overall if none fits.
+     */
+    static CompressionSettings choose(List<TuneResult.Trial> trials, double budgetNanos) {
+        int smallest = Integer.MAX_VALUE;
+        for (TuneResult.Trial trial : trials) {
+            if (trial.nanos <= budgetNanos) {
+                smallest = Math.min(smallest, trial.compressedBytes);
+            }
+        }
+        TuneResult.Trial best = null;
+        for (TuneResult.Trial trial : trials) {
+            boolean fits = smallest == Integer.MAX_VALUE
+                    || trial.nanos <= budgetNanos && trial.compressedBytes <= smallest * (1 + SIZE_TOLERANCE);
+            if (fits && (best == null || trial.nanos < best.nanos)) {
+                best = trial;
+            }
+        }
+        return best.settings;
+    }
+
+    /**
+     * @param rowBytes the bytes per row of the bands, without the filter type byte
+     * @param bandOffsets the offset of every band in {@code pixels}
+     */
+    private static List<TuneResult.Trial> trials(FilterStrategy filter, ByteBuffer pixels, int rowBytes, int rows,
+            int[] bandOffsets) {
+        int bandSize = (rowBytes + 1) * rows;
+        byte[] sample = new byte[bandSize * bandOffsets.length];
+        byte[] band = new byte[bandSize];
+
+        List<TuneResult.Trial> trials = new ArrayList<TuneResult.Trial>();
+        CodecContext ctx = CodecContext.acquire();
+        try {
+            // the first pass also warms up the filter code, the second one is timed
+            long filterNanos = 0;
+            for (int pass = 0; pass < 2; pass++) {
+                long start = System.nanoTime();
+                ScanlineFilter scanlineFilter = ctx.filter(filter, 9);
+                for (int i = 0; i < bandOffsets.length; i++) {
+                    scanlineFilter.filter(rowBytes, rows, pixels, bandOffsets[i], rowBytes, band);
+                    System.arraycopy(band, 0, sample, i * bandSize, bandSize);
+                }
+                filterNanos = System.nanoTime() - start;
+            }
+
+            for (int level : LEVELS) {
+                trials.add(deflate(ctx, new CompressionSettings(filter, level, Deflater.DEFAULT_STRATEGY), sample,
+                        filterNanos));
+                trials.add(deflate(ctx, new CompressionSettings(filter, level, Deflater.FILTERED), sample,
+                        filterNanos));
+            }
+            // the level makes no difference to Huffman-only coding
+            trials.add(deflate(ctx, new CompressionSettings(filter, 1, Deflater.HUFFMAN_ONLY), sample, filterNanos));
+        } finally {
+            ctx.release();
+        }
+        return trials;
+    }
+
+    private static TuneResult.Trial deflate(CodecContext ctx, CompressionSettings settings, byte[] sample,
+            long filterNanos) {
+        long start = System.nanoTime();
+        Deflater deflater = ctx.deflater(settings.level, settings.strategy);
+        deflater.setInput(sample);
+        deflater.finish();
+        byte[] out = ctx.compressedBuffer(sample.length + (sample.length >> 3) + 64);
+        int size = 0;
+        while (!deflater.finished()) {
+            size += deflater.deflate(out);
+        }
+        return new TuneResult.Trial(settings, size, filterNanos + System.nanoTime() - start);
+    }
+}
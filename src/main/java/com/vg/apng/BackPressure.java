@@ -0,0 +1,18 @@
+package com.vg.apng;
+
+/**
+ * What {@link APNGAsyncSession#addFrame(Gray)} does when its queue of frames waiting to be encoded is full.
+ *
+ * @see APNGWriter#setBackPressure(BackPressure)
+ */
+public enum BackPressure {
+    /** Wait until the encoder has taken a frame off the queue, the default. */
+    BLOCK,
+    /** Drop the frame and show the previous one for longer instead, without ever waiting. */
+    DROP,
+    /**
+     * Merge every frame identical to the previous one into it by extending its delay, whether or not the queue is
+     * full; wait for room otherwise.
+     */
+    COALESCE
+}
@@ -0,0 +1,195 @@
+package com.vg.apng;
+
+import static com.vg.apng.APNG.PNG_SIG;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Pull PNG chunks one by one from a channel through a small fixed buffer. Chunk bodies are either returned whole
+ * (for small control chunks) or handed out block by block (for image data), so the size of the buffer never depends
+ * on the size of the file.
+ */
+class ChunkReader implements Closeable {
+    private final ReadableByteChannel ch;
+    private final ByteBuffer buf;
+    private final ByteBuffer view;
+
+    private int type;
+    private int length;
+    private long bodyRemaining;
+    private boolean inChunk;
+    private boolean replay;
+
+    ChunkReader(ReadableByteChannel ch, int bufferSize) {
+        this.ch = ch;
+        this.buf = ByteBuffer.allocate(bufferSize);
+        this.buf.flip();
+        this.view = buf.duplicate();
+    }
+
+    /**
+     * Read and check the PNG signature.
+     * @throws IOException if the stream does not start with a PNG signature
+     */
+    void readSignature() throws IOException {
+        if (!fill(PNG_SIG.length)) {
+            throw new EOFException("empty stream");
+        }
+        byte[] sig = new byte[PNG_SIG.length];
+        buf.get(sig);
+        if (!Arrays.equals(PNG_SIG, sig)) {
+            throw new IOException("not a PNG stream");
+        }
+    }
+
+    /**
+     * Skip whatever is left of the current chunk and read the header of the next one.
+     * @return false if the stream ended on a chunk boundary
+     * @throws IOException if the stream ended in the middle of a chunk
+     */
+    boolean next() throws IOException {
+        if (replay) {
+            replay = false;
+            return true;
+        }
+        if (inChunk) {
+            skip(bodyRemaining + 4); // rest of the body and CRC
+            inChunk = false;
+        }
+        if (!fill(8)) {
+            return false;
+        }
+        length = buf.getInt();
+        type = buf.getInt();
+        bodyRemaining = length & 0xffffffffL;
+        inChunk = true;
+        return true;
+    }
+
+    /**
+     * Make the next {@link #next()} return the current chunk again. Only valid before any of its body was read.
+     */
+    void pushBack() {
+        replay = true;
+    }
+
+    int getType() {
+        return type;
+    }
+
+    int getLength() {
+        return length;
+    }
+
+    /**
+     * @return the whole body of the current chunk, valid until the next call to this reader
+     * @throws IOException if the chunk does not fit into the buffer or the stream ended early
+     */
+    ByteBuffer body() throws IOException {
+        if (bodyRemaining > buf.capacity()) {
+            throw new IOException("chunk too large: " + bodyRemaining);
+        }
+        int n = (int) bodyRemaining;
+        if (n > 0 && !fill(n)) {
+            throw new EOFException();
+        }
+        return block(n);
+    }
+
+    /**
+     * @return the next 4 bytes of the current chunk body as an int
+     */
+    int readInt() throws IOException {
+        if (bodyRemaining < 4) {
+            throw new IOException("chunk body too short");
+        }
+        if (!fill(4)) {
+            throw new EOFException();
+        }
+        bodyRemaining -= 4;
+        return buf.getInt();
+    }
+
+    /**
+     * @return the next available part of the current chunk body, valid until the next call to this reader. An empty
+     *         buffer means the body is exhausted.
+     */
+    ByteBuffer bodyBlock() throws IOException {
+        if (bodyRemaining == 0) {
+            return block(0);
+        }
+        if (!buf.hasRemaining() && !fill(1)) {
+            throw new EOFException();
+        }
+        return block((int) Math.min(buf.remaining(), bodyRemaining));
+    }
+
+    @Override
+    public void close() throws IOException {
+        ch.close();
+    }
+
+    /**
+     * @return the next {@code n} buffered bytes, through the one view object handed out by this reader
+     */
+    private ByteBuffer block(int n) {
+        view.clear();
+        view.position(buf.position()).limit(buf.position() + n);
+        buf.position(buf.position() + n);
+        bodyRemaining -= n;
+        return view;
+    }
+
+    private void skip(long n) throws IOException {
+        int inBuffer = (int) Math.min(n, buf.remaining());
+        buf.position(buf.position() + inBuffer);
+        n -= inBuffer;
+        if (n == 0) {
+            return;
+        }
+        if (ch instanceof SeekableByteChannel) {
+            SeekableByteChannel sch = (SeekableByteChannel) ch;
+            sch.position(sch.position() + n);
+            return;
+        }
+        while (n > 0) {
+            if (!fill(1)) {
+                throw new EOFException();
+            }
+            inBuffer = (int) Math.min(n, buf.remaining());
+            buf.position(buf.position() + inBuffer);
+            n -= inBuffer;
+        }
+    }
+
+    /**
+     * Make sure at least {@code n} bytes are buffered.
+     * @return false if the stream ended before any byte could be buffered
+     * @throws EOFException if the stream ended after a part of the requested bytes
+     */
+    private boolean fill(int n) throws IOException {
+        if (buf.remaining() >= n) {
+            return true;
+        }
+        buf.compact();
+        try {
+            while (buf.position() < n) {
+                if (ch.read(buf) < 0) {
+                    if (buf.position() == 0) {
+                        return false;
+                    }
+                    throw new EOFException();
+                }
+            }
+        } finally {
+            buf.flip();
+        }
+        return true;
+    }
+}
@@ -0,0 +1,216 @@
+package com.vg.apng;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Everything the encode and decode loops would otherwise allocate per frame or per chunk: the zlib Deflater and
+ * Inflater, a CRC32, the filter scratch rows and the filtered, compressed and chunk output buffers. A context is
+ * confined to one thread while it is in use; contexts are pooled, so their native zlib memory and scratch buffers
+ * are reused across frames, files and threads. Buffers handed out by a context are only valid until the next call
+ * to the same method.
+ * <p>
+ * A pooled context lives as long as the JVM, so on release it drops scratch buffers larger than
+ * {@link #MAX_RETAINED_BYTES}: an occasional huge frame is then paid for once instead of pinning its buffers in
+ * every pooled context. The zlib state does not grow with the frame size.
+ */
+class CodecContext {
+    private static final int MAX_POOLED = 2 * Runtime.getRuntime().availableProcessors();
+    private static final ConcurrentLinkedQueue<CodecContext> POOL = new ConcurrentLinkedQueue<CodecContext>();
+    private static final AtomicInteger POOLED = new AtomicInteger();
+    /** The largest scratch buffer a released context keeps, enough for frames of four megapixels. */
+    static final int MAX_RETAINED_BYTES = 4 << 20;
+
+    final CRC32 crc = new CRC32();
+
+    private Deflater deflater;
+    private Deflater rawDeflater;
+    private FrameDecoder decoder;
+    private ScanlineFilter filter;
+    private byte[] packed = new byte[0];
+    private byte[] filtered = new byte[0];
+    private byte[] compressed = new byte[0];
+    private ByteBuffer chunk = ByteBuffer.allocate(0);
+    private final ByteBuffer chunkHeader = ByteBuffer.allocate(12);
+    private final ByteBuffer chunkCRC = ByteBuffer.allocate(4);
+
+    /**
+     * @return a context from the pool, or a new one if the pool is empty
+     */
+    static CodecContext acquire() {
+        CodecContext ctx = POOL.poll();
+        if (ctx == null) {
+            return new CodecContext();
+        }
+        POOLED.decrementAndGet();
+        return ctx;
+    }
+
+    /**
+     * Hand this context back to the pool. It must not be used afterwards. Contexts beyond the pool capacity release
+     * their zlib memory right away, the others drop their oversized buffers.
+     */
+    void release() {
+        if (POOLED.incrementAndGet() <= MAX_POOLED) {
+            trim();
+            POOL.offer(this);
+        } else {
+            POOLED.decrementAndGet();
+            end();
+        }
+    }
+
+    /**
+     * Drop scratch buffers larger than {@link #MAX_RETAINED_BYTES}.
+     */
+    void trim() {
+        if (packed.length > MAX_RETAINED_BYTES) {
+            packed = new byte[0];
+        }
+        if (filtered.length > MAX_RETAINED_BYTES) {
+            filtered = new byte[0];
+        }
+        if (compressed.length > MAX_RETAINED_BYTES) {
+            compressed = new byte[0];
+        }
+        if (chunk.capacity() > MAX_RETAINED_BYTES) {
+            chunk = ByteBuffer.allocate(0);
+        }
+    }
+
+    /**
+     * @param level the compression level
+     * @param strategy the deflate strategy
+     * @return a reset zlib Deflater
+     */
+    Deflater deflater(int level, int strategy) {
+        if (deflater == null) {
+            deflater = new Deflater(level);
+        } else {
+            deflater.reset();
+            deflater.setLevel(level);
+        }
+        deflater.setStrategy(strategy);
+        return deflater;
+    }
+
+    /**
+     * @param level the compression level
+     * @param strategy the deflate strategy
+     * @return a reset Deflater producing raw deflate data without the zlib wrapper
+     */
+    Deflater rawDeflater(int level, int strategy) {
+        if (rawDeflater == null) {
+            rawDeflater = new Deflater(level, true);
+        } else {
+            rawDeflater.reset();
+            rawDeflater.setLevel(level);
+        }
+        rawDeflater.setStrategy(strategy);
+        return rawDeflater;
+    }
+
+    FrameDecoder decoder() {
+        if (decoder == null) {
+            decoder = new FrameDecoder();
+        }
+        return decoder;
+    }
+
+    /**
+     * @param strategy the filter strategy
+     * @param level the deflate level used for trial compression
+     * @return a scanline filter for that strategy, reused while the strategy does not change
+     */
+    ScanlineFilter filter(FilterStrategy strategy, int level) {
+        if (filter == null || !filter.matches(strategy, level)) {
+            if (filter != null) {
+                filter.end();
+            }
+            filter = new ScanlineFilter(strategy, level);
+        }
+        return filter;
+    }
+
+    byte[] packedBuffer(int minSize) {
+        if (packed.length < minSize) {
+            packed = new byte[minSize];
+        }
+        return packed;
+    }
+
+    byte[] filteredBuffer(int minSize) {
+        if (filtered.length < minSize) {
+            filtered = new byte[minSize];
+        }
+        return filtered;
+    }
+
+    byte[] compressedBuffer(int minSize) {
+        if (compressed.length < minSize) {
+            compressed = new byte[Math.max(minSize, compressed.length + (compressed.length >> 1))];
+        }
+        return compressed;
+    }
+
+    /**
+     * Grow the compressed buffer, keeping its content.
+     * @param used the number of bytes to keep
+     * @return the new buffer
+     */
+    byte[] growCompressedBuffer(int used) {
+        compressed = Arrays.copyOf(compressed, Math.max(used + 1, compressed.length + (compressed.length >> 1)));
+        return compressed;
+    }
+
+    /**
+     * @param size the chunk size
+     * @return a cleared buffer with exactly {@code size} bytes remaining
+     */
+    ByteBuffer chunkBuffer(int size) {
+        if (chunk.capacity() < size) {
+            chunk = ByteBuffer.allocate(size);
+        }
+        chunk.clear();
+        chunk.limit(size);
+        return chunk;
+    }
+
+    /**
+     * @return a cleared buffer for the length, type and sequence number of a data chunk
+     */
+    ByteBuffer chunkHeader() {
+        chunkHeader.clear();
+        return chunkHeader;
+    }
+
+    /**
+     * @return a cleared buffer for the CRC of a data chunk
+     */
+    ByteBuffer chunkCRC() {
+        chunkCRC.clear();
+        return chunkCRC;
+    }
+
+    /**
+     * Release the native zlib memory.
+     */
+    void end() {
+        if (deflater != null) {
+            deflater.end();
+        }
+        if (rawDeflater != null) {
+            rawDeflater.end();
+        }
+        if (decoder != null) {
+            decoder.end();
+        }
+        if (filter != null) {
+            filter.end();
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package com.vg.apng;
+
+import static com.vg.apng.APNG.BLEND_OP_OVER;
+import static com.vg.apng.APNG.DISPOSE_OP_BACKGROUND;
+import static com.vg.apng.APNG.DISPOSE_OP_NONE;
+import static com.vg.apng.APNG.DISPOSE_OP_PREVIOUS;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Render APNG frames onto the output canvas: the previous frame's dispose op is applied to its region, then the new
+ * frame is drawn at its offsets with its blend op. One canvas buffer is reused for the whole animation; the region
+ * of a frame is only saved when that frame's dispose op is previous.
+ * <p>
+ * Grayscale has no alpha channel, so {@link APNG#BLEND_OP_OVER} only differs from {@link APNG#BLEND_OP_SOURCE} when
+ * a tRNS chunk declares a transparent gray value: such pixels leave the canvas untouched. Disposing to background
+ * clears to 0. Parts of a frame outside the canvas are clipped.
+ * <p>
+ * For previews the canvas is still composited at full size, and every block of {@code 2^shift} by {@code 2^shift}
+ * pixels a frame touches is then averaged into a reduced canvas. Frames do not line up with blocks, so reducing a
+ * frame before drawing it would overwrite the part of an edge block the frame does not cover.
+ *
+ * @see <a href="https://wiki.mozilla.org/APNG_Specification#.60fcTL.60:_The_Frame_Control_Chunk">fcTL chunk</a>
+ */
+class Compositor {
+    private final int width;
+    private final int height;
+    private final int transparent;
+    private final byte[] canvas;
+    private final int shift;
+    private final int outWidth;
+    private final int outHeight;
+    /** The canvas reduced by {@code 2^shift}, the canvas itself if {@code shift} is 0. */
+    private final byte[] out;
+
+    private byte[] saved = new byte[0];
+    private ByteBuffer view;
+    private boolean hasLast;
+    private byte lastDisposeOp;
+    private int lastX;
+    private int lastY;
+    private int lastWidth;
+    private int lastHeight;
+
+    /**
+     * @param width the canvas width
+     * @param height the canvas height
+     * @param transparentGray the gray value that is transparent when blending over, -1 if none
+     */
+    Compositor(int width, int height, int transparentGray) {
+        this(width, height, transparentGray, 0);
+    }
+
+    /**
+     * @param width the canvas width
+     * @param height the canvas height
+     * @param transparentGray the gray value that is transparent when blending over, -1 if none
+     * @param shift the reduction of the canvas returned by {@link #view()}, {@link #copyTo(ByteBuffer)} and
+     *              {@link #snapshot(int)}; frames are still composed at full size
+     */
+    Compositor(int width, int height, int transparentGray, int shift) {
+        this.width = width;
+        this.height = height;
+        this.transparent = transparentGray;
+        this.canvas = new byte[width * height];
+        this.shift = shift;
+        int mask = (1 << shift) - 1;
+        this.outWidth = (width + mask) >> shift;
+        this.outHeight = (height + mask) >> shift;
+        this.out = shift == 0 ? canvas : new byte[outWidth * outHeight];
+    }
+
+    /**
+     * Dispose the previous frame and draw the next one.
+     * @param fctl the frame control of the frame
+     * @param pixels the {@code fctl.width * fctl.height} frame pixels, read from the start of the buffer
+     */
+    void compose(FCTL fctl, ByteBuffer pixels) {
+        compose(fctl.x, fctl.y, fctl.width, fctl.height, fctl.disposeOp, fctl.blendOp, pixels);
+    }
+
+    /**
+     * Dispose the previous frame and draw the next one, given the frame control fields. Nothing is allocated for
+     * heap pixels, apart from growing the buffer saving the region of a frame disposed to previous.
+     * @param pixels the {@code frameWidth * frameHeight} frame pixels, read from the start of the buffer
+     */
+    void compose(int frameX, int frameY, int frameWidth, int frameHeight, byte disposeOp, byte blendOp,
+            ByteBuffer pixels) {
+        boolean disposed = hasLast && lastDisposeOp != DISPOSE_OP_NONE && lastWidth > 0 && lastHeight > 0;
+        int dirtyX0 = disposed ? lastX : width;
+        int dirtyY0 = disposed ? lastY : height;
+        int dirtyX1 = disposed ? lastX + lastWidth : 0;
+        int dirtyY1 = disposed ? lastY + lastHeight : 0;
+        if (hasLast) {
+            if (lastDisposeOp == DISPOSE_OP_BACKGROUND) {
+                for (int y = lastY; y < lastY + lastHeight; y++) {
+                    Arrays.fill(canvas, y * width + lastX, y * width + lastX + lastWidth, (byte) 0);
+                }
+            } else if (lastDisposeOp == DISPOSE_OP_PREVIOUS) {
+                for (int y = 0; y < lastHeight; y++) {
+                    System.arraycopy(saved, y * lastWidth, canvas, (lastY + y) * width + lastX, lastWidth);
+                }
+            }
+        }
+
+        int x0 = Math.max(0, Math.min(frameX, width));
+        int y0 = Math.max(0, Math.min(frameY, height));
+        int w = Math.max(0, Math.min(frameX + frameWidth, width) - x0);
+        int h = Math.max(0, Math.min(frameY + frameHeight, height) - y0);
+
+        if (disposeOp == DISPOSE_OP_PREVIOUS && !hasLast) {
+            disposeOp = DISPOSE_OP_BACKGROUND; // the first frame has no previous canvas to revert to
+        }
+        if (disposeOp == DISPOSE_OP_PREVIOUS) {
+            if (saved.length < w * h) {
+                saved = new byte[w * h];
+            }
+            for (int y = 0; y < h; y++) {
+                System.arraycopy(canvas, (y0 + y) * width + x0, saved, y * w, w);
+            }
+        }
+
+        ByteBuffer src = null;
+        boolean over = blendOp == BLEND_OP_OVER && transparent >= 0;
+        for (int y = 0; y < h; y++) {
+            int srcOff = (y0 - frameY + y) * frameWidth + (x0 - frameX);
+            int dstOff = (y0 + y) * width + x0;
+            if (over) {
+                for (int x = 0; x < w; x++) {
+                    byte p = pixels.get(srcOff + x);
+                    if ((p & 0xff) != transparent) {
+                        canvas[dstOff + x] = p;
+                    }
+                }
+            } else if (pixels.hasArray()) {
+                System.arraycopy(pixels.array(), pixels.arrayOffset() + srcOff, canvas, dstOff, w);
+            } else {
+                if (src == null) {
+                    src = pixels.duplicate();
+                }
+                src.limit(srcOff + w).position(srcOff);
+                src.get(canvas, dstOff, w);
+            }
+        }
+
+        setLast(disposeOp, x0, y0, w, h);
+        if (w > 0 && h > 0) {
+            dirtyX0 = Math.min(dirtyX0, x0);
+            dirtyY0 = Math.min(dirtyY0, y0);
+            dirtyX1 = Math.max(dirtyX1, x0 + w);
+            dirtyY1 = Math.max(dirtyY1, y0 + h);
+        }
+        if (shift > 0 && dirtyX0 < dirtyX1 && dirtyY0 < dirtyY1) {
+            reduce(dirtyX0, dirtyY0, dirtyX1, dirtyY1);
+        }
+    }
+
+    /**
+     * Average every block overlapping a region of the canvas into the reduced canvas, blocks at the right and bottom
+     * edges over the pixels they have.
+     */
+    private void reduce(int x0, int y0, int x1, int y1) {
+        int block = 1 << shift;
+        int mask = block - 1;
+        for (int by = y0 >> shift, byEnd = (y1 + mask) >> shift; by < byEnd; by++) {
+            int top = by << shift;
+            int bottom = Math.min(height, top + block);
+            for (int bx = x0 >> shift, bxEnd = (x1 + mask) >> shift; bx < bxEnd; bx++) {
+                int left = bx << shift;
+                int right = Math.min(width, left + block);
+                int sum = 0;
+                for (int y = top; y < bottom; y++) {
+                    for (int x = y * width + left, end = y * width + right; x < end; x++) {
+                        sum += canvas[x] & 0xff;
+                    }
+                }
+                int n = (bottom - top) * (right - left);
+                out[by * outWidth + bx] = (byte) ((sum + (n >> 1)) / n);
+            }
+        }
+    }
+
+    /**
+     * Start over with a cleared canvas, as before the first frame.
+     */
+    void reset() {
+        Arrays.fill(canvas, (byte) 0);
+        Arrays.fill(out, (byte) 0);
+        hasLast = false;
+    }
+
+    /**
+     * Continue from a canvas rendered earlier, so that compositing can resume after a frame without replaying the
+     * frames before it.
+     * @param fctl the frame control of the frame the canvas was rendered up to
+     * @param disposeOp the dispose op that frame is disposed with, which must not be {@link APNG#DISPOSE_OP_PREVIOUS}
+     *                  since the canvas before it is not known
+     * @param rendered the {@code width * height} canvas pixels, read from the start of the buffer
+     */
+    void restore(FCTL fctl, byte disposeOp, ByteBuffer rendered) {
+        if (shift > 0) {
+            throw new IllegalStateException("cannot restore a reduced canvas");
+        }
+        if (disposeOp == DISPOSE_OP_PREVIOUS) {
+            throw new IllegalArgumentException("cannot restore a canvas disposed to previous");
+        }
+        ByteBuffer src = rendered.duplicate();
+        src.clear();
+        src.get(canvas);
+        int x0 = Math.max(0, Math.min(fctl.x, width));
+        int y0 = Math.max(0, Math.min(fctl.y, height));
+        int w = Math.max(0, Math.min(fctl.x + fctl.width, width) - x0);
+        int h = Math.max(0, Math.min(fctl.y + fctl.height, height) - y0);
+        setLast(disposeOp, x0, y0, w, h);
+    }
+
+    private void setLast(byte disposeOp, int x, int y, int w, int h) {
+        hasLast = true;
+        lastDisposeOp = disposeOp;
+        lastX = x;
+        lastY = y;
+        lastWidth = w;
+        lastHeight = h;
+    }
+
+    /**
+     * @return a read-only view of the canvas, reduced for previews, from position 0, the same buffer object every time; valid until the
+     *         next frame is composed
+     */
+    ByteBuffer view() {
+        if (view == null) {
+            view = ByteBuffer.wrap(out).asReadOnlyBuffer();
+        }
+        view.clear();
+        return view;
+    }
+
+    /**
+     * Copy the canvas, reduced for previews, into a buffer at its position, advancing it.
+     */
+    void copyTo(ByteBuffer dst) {
+        dst.put(out);
+    }
+
+    /**
+     * @param delay the delay of the frame
+     * @return a copy of the canvas, reduced for previews
+     */
+    Gray snapshot(int delay) {
+        return snapshot(delay, null);
+    }
+
+    /**
+     * @param delay the delay of the frame
+     * @param pool the pool to take the copy from, or null
+     * @return a copy of the canvas, reduced for previews
+     */
+    Gray snapshot(int delay, FramePool pool) {
+        if (pool == null) {
+            return new Gray(outWidth, outHeight, out.clone(), delay);
+        }
+        Gray gray = pool.allocate(outWidth, outHeight, delay);
+        gray.getData().put(out);
+        return gray;
+    }
+}
@@ -0,0 +1,37 @@
+package com.vg.apng;
+
+import java.util.zip.Deflater;
+
+/**
+ * How frames are filtered and deflated: the scanline filter strategy, the deflate level and the deflate strategy.
+ */
+public final class CompressionSettings {
+    public final FilterStrategy filter;
+    public final int level;
+    public final int strategy;
+
+    /**
+     * @param filter the scanline filter strategy
+     * @param level the deflate level, 0 to 9
+     * @param strategy {@link Deflater#DEFAULT_STRATEGY}, {@link Deflater#FILTERED} or {@link Deflater#HUFFMAN_ONLY}
+     */
+    public CompressionSettings(FilterStrategy filter, int level, int strategy) {
+        if (level < 0 || level > 9) {
+            throw new IllegalArgumentException("level " + level);
+        }
+        if (strategy != Deflater.DEFAULT_STRATEGY && strategy != Deflater.FILTERED
+                && strategy != Deflater.HUFFMAN_ONLY) {
+            throw new IllegalArgumentException("strategy " + strategy);
+        }
+        this.filter = filter;
+        this.level = level;
+        this.strategy = strategy;
+    }
+
+    @Override
+    public String toString() {
+        String s = strategy == Deflater.FILTERED ? "filtered"
+                : strategy == Deflater.HUFFMAN_ONLY ? "huffman-only" : "default";
+        return "filter " + filter + ", level " + level + ", strategy " + s;
+    }
+}
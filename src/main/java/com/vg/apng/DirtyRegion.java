@@ -0,0 +1,85 @@
+package com.vg.apng;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+/**
+ * Track the canvas of the previous frame and find the bounding box of the pixels that changed since. Rows are
+ * compared with {@link Arrays#mismatch}, which the JVM runs word (or vector) at a time, and every row is only
+ * scanned outside of the box found so far. Not thread-safe.
+ */
+class DirtyRegion {
+    private byte[] prev = new byte[0];
+    private byte[] cur = new byte[0];
+    private int width;
+    private int height;
+    private boolean valid;
+
+    /**
+     * Make {@code gray} the new canvas.
+     * @param gray the next frame
+     * @return the bounds of the pixels that differ from the previous frame, or null if there is no previous frame of
+     *         the same size. A frame identical to the previous one yields a 1x1 rectangle.
+     */
+    Rectangle update(Gray gray) {
+        int w = gray.width;
+        int h = gray.height;
+        int n = w * h;
+        if (cur.length < n) {
+            cur = new byte[n];
+        }
+        gray.getData().get(cur, 0, n);
+
+        Rectangle r = valid && w == width && h == height ? diff(w, h) : null;
+
+        byte[] tmp = prev;
+        prev = cur;
+        cur = tmp;
+        width = w;
+        height = h;
+        valid = true;
+        return r;
+    }
+
+    /**
+     * Forget the canvas, the next frame is compared against nothing.
+     */
+    void reset() {
+        valid = false;
+    }
+
+    private Rectangle diff(int w, int h) {
+        int n = w * h;
+        int first = Arrays.mismatch(cur, 0, n, prev, 0, n);
+        if (first < 0) {
+            return new Rectangle(0, 0, 1, 1);
+        }
+
+        int top = first / w;
+        int bottom = h - 1;
+        while (bottom > top && Arrays.mismatch(cur, bottom * w, bottom * w + w, prev, bottom * w, bottom * w + w) < 0) {
+            bottom--;
+        }
+
+        int left = first % w;
+        int right = left;
+        for (int y = top; y <= bottom; y++) {
+            int off = y * w;
+            if (left > 0) {
+                int m = Arrays.mismatch(cur, off, off + left, prev, off, off + left);
+                if (m >= 0) {
+                    left = m;
+                }
+            }
+            for (int from = right + 1; from < w; from = right + 1) {
+                int m = Arrays.mismatch(cur, off + from, off + w, prev, off + from, off + w);
+                if (m < 0) {
+                    break;
+                }
+                right = from + m;
+            }
+        }
+
+        return new Rectangle(left, top, right - left + 1, bottom - top + 1);
+    }
+}
@@ -0,0 +1,87 @@
+package com.vg.apng;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Spot frames identical to the previous one. Every frame is hashed with CRC32, which the JVM computes with carry-less
+ * multiply instructions, and only a frame whose hash and size match the previous frame is compared in full against
+ * the copy kept of it. Not thread-safe.
+ */
+class DuplicateFrames {
+    /** The longest delay an fcTL chunk can express, 65535 seconds. */
+    static final int MAX_DELAY = 0xffff * 1000;
+
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer last = ByteBuffer.allocate(0);
+    private int width;
+    private int height;
+    private long hash;
+    private boolean valid;
+
+    /**
+     * Compare a frame against the previous one and make it the previous one.
+     * @param gray the next frame
+     * @return true if {@code gray} has the same size and pixels as the frame passed in before it
+     */
+    boolean isDuplicate(Gray gray) {
+        ByteBuffer pixels = gray.getData();
+        pixels.limit(gray.width * gray.height);
+        crc.reset();
+        crc.update(pixels.duplicate());
+        long h = crc.getValue();
+        if (valid && h == hash && gray.width == width && gray.height == height && last.equals(pixels)) {
+            return true;
+        }
+        if (last.capacity() < pixels.remaining()) {
+            last = ByteBuffer.allocate(pixels.remaining());
+        }
+        last.clear();
+        last.put(pixels);
+        last.flip();
+        width = gray.width;
+        height = gray.height;
+        hash = h;
+        valid = true;
+        return false;
+    }
+
+    /**
+     * Forget the previous frame, for when the last frame passed in is not going to be written.
+     */
+    void reset() {
+        valid = false;
+    }
+
+    /**
+     * Fold runs of identical frames into their first frame, adding up their delays.
+     * @param grays the frames
+     * @return the frames with duplicates removed, {@code grays} itself if there are none
+     */
+    static Gray[] merge(Gray[] grays) {
+        DuplicateFrames duplicates = new DuplicateFrames();
+        Gray[] merged = new Gray[grays.length];
+        int n = 0;
+        boolean extended = false;
+        for (Gray gray : grays) {
+            if (duplicates.isDuplicate(gray) && (long) merged[n - 1].getDelay() + gray.getDelay() <= MAX_DELAY) {
+                Gray first = merged[n - 1];
+                if (!extended) {
+                    // a view, so that the caller's frame keeps its delay
+                    merged[n - 1] = first = new Gray(first.width, first.height, first.getData(), first.getDelay());
+                    extended = true;
+                }
+                first.setDelay(first.getDelay() + gray.getDelay());
+            } else {
+                merged[n++] = gray;
+                extended = false;
+            }
+        }
+        if (n == grays.length) {
+            return grays;
+        }
+        Gray[] result = new Gray[n];
+        System.arraycopy(merged, 0, result, 0, n);
+        return result;
+    }
+}
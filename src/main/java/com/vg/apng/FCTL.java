@@ -0,0 +1,84 @@
+package com.vg.apng;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The content of an fcTL (frame control) chunk.
+ *
+ * @see <a href="https://wiki.mozilla.org/APNG_Specification#.60fcTL.60:_The_Frame_Control_Chunk">fcTL chunk</a>
+ */
+class FCTL {
+    public final int seqNumber;
+    public final int width;
+    public final int height;
+    public final int x;
+    public final int y;
+    public final short delayNum;
+    public final short delayDen;
+    public final byte disposeOp;
+    public final byte blendOp;
+
+    public FCTL(int seqNumber, int width, int height, int x, int y, short delayNum, short delayDen, byte disposeOp,
+            byte blendOp) {
+        this.seqNumber = seqNumber;
+        this.width = width;
+        this.height = height;
+        this.x = x;
+        this.y = y;
+        this.delayNum = delayNum;
+        this.delayDen = delayDen;
+        this.disposeOp = disposeOp;
+        this.blendOp = blendOp;
+    }
+
+    /**
+     * Parse an fcTL chunk body.
+     * @param body a buffer positioned at the start of the chunk body
+     * @return the parsed frame control
+     */
+    static FCTL read(ByteBuffer body) {
+        int seqNumber = body.getInt();
+        int width = body.getInt();
+        int height = body.getInt();
+        int x = body.getInt();
+        int y = body.getInt();
+        short delayNum = body.getShort();
+        short delayDen = body.getShort();
+        byte disposeOp = body.get(); // 1:clear, 0: do nothing, 2: revert
+        byte blendOp = body.get();   // 1:blend, 0: overwrite
+        return new FCTL(seqNumber, width, height, x, y, delayNum, delayDen, disposeOp, blendOp);
+    }
+
+    /**
+     * Map the frame onto a canvas reduced by {@code 2^shift} in both directions. The frame covers every block of
+     * the canvas that one of its pixels falls into, so that blocks line up between frames.
+     * @return the frame control on the reduced canvas, this one if {@code shift} is 0
+     */
+    FCTL reduce(int shift) {
+        if (shift == 0) {
+            return this;
+        }
+        int mask = (1 << shift) - 1;
+        return new FCTL(seqNumber, ((x & mask) + width + mask) >> shift, ((y & mask) + height + mask) >> shift,
+                x >> shift, y >> shift, delayNum, delayDen, disposeOp, blendOp);
+    }
+
+    /**
+     * @return the frame delay in milliseconds
+     */
+    public int getDelay() {
+        return getDelay(delayNum, delayDen);
+    }
+
+    /**
+     * @return the delay in milliseconds of the given fcTL delay fraction
+     */
+    static int getDelay(short delayNum, short delayDen) {
+        int num = delayNum & 0xffff;
+        int den = delayDen & 0xffff;
+        if (den == 0) {
+            den = 100; // a zero denominator means 1/100 s
+        }
+        return (int) Math.round(num * 1000.0 / den);
+    }
+}
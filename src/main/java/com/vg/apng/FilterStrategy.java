@@ -0,0 +1,30 @@
+package com.vg.apng;
+
+/**
+ * How {@link APNGWriter} picks the PNG filter of each scanline before deflate.
+ *
+ * @see APNGWriter#setFilterStrategy(FilterStrategy)
+ * @see <a href="https://www.w3.org/TR/PNG/#12Filter-selection">PNG filter selection</a>
+ */
+public enum FilterStrategy {
+    /** Filter 0 on every row, the fastest and the default. */
+    NONE,
+    /** Filter 1 on every row. */
+    SUB,
+    /** Filter 2 on every row. */
+    UP,
+    /** Filter 3 on every row. */
+    AVERAGE,
+    /** Filter 4 on every row. */
+    PAETH,
+    /**
+     * Per row, the filter with the minimum sum of absolute differences (bytes taken as signed). The usual heuristic
+     * of libpng and most encoders, a good default for natural and gradient content.
+     */
+    MIN_SUM,
+    /**
+     * Per row, the filter whose output deflates to the fewest bytes after the rows chosen before it. Several times
+     * slower than {@link #MIN_SUM}, for archival encodes.
+     */
+    BRUTE_FORCE
+}
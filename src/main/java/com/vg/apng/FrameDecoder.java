@@ -0,0 +1,248 @@
+package com.vg.apng;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Inflate and unfilter one frame at a time. Compressed data can be fed in arbitrary pieces, scanlines are
+ * reconstructed in place as soon as they are complete, so only the current and the previous scanline are ever
+ * buffered.
+ * <p>
+ * A frame can also be decoded at a reduced size: every block of {@code 2^shift} by {@code 2^shift} pixels is averaged
+ * into one output pixel while scanlines stream through, summing rows into one accumulator per output column.
+ */
+class FrameDecoder {
+    private final Inflater inflater = new Inflater();
+    private byte[] row = new byte[0];
+    private byte[] prev = new byte[0];
+    private byte[] expanded = new byte[0];
+    private int bitDepth = 8;
+    private byte[] lut;
+    private int rowBytes;
+    private int rowPos;
+    private int width;
+    private int height;
+    private int y;
+    private ByteBuffer pixels;
+    private FrameStats stats;
+    private long unfilterNanos;
+
+    private int shift;
+    private int phaseX;
+    private int phaseY;
+    private int blockRows;
+    private int[] sums = new int[0];
+    private int[] blockCols = new int[0];
+    private byte[] reduced = new byte[0];
+
+    /**
+     * Set the pixel format of the frames that follow.
+     * @param bitDepth the bits per sample, 1, 2, 4 or 8
+     * @param lut the gray level of every sample value or palette index, null for 8 bit grayscale
+     */
+    void setFormat(int bitDepth, byte[] lut) {
+        this.bitDepth = bitDepth;
+        this.lut = lut;
+    }
+
+    /**
+     * Start decoding a new frame.
+     * @param width the frame width
+     * @param height the frame height
+     * @param pixels the buffer receiving {@code width * height} pixels from its current position
+     * @param stats receives the inflate and unfilter times and the compressed size, or null to not time anything
+     */
+    void begin(int width, int height, ByteBuffer pixels, FrameStats stats) {
+        begin(width, height, 0, 0, 0, pixels, stats);
+    }
+
+    /**
+     * Start decoding a frame at a reduced size, aligned to the block grid of the canvas.
+     * @param fctl the frame control of the frame
+     * @param shift the reduction, each output pixel averages up to {@code 2^shift} by {@code 2^shift} pixels
+     * @param pixels the buffer receiving the pixels of {@code fctl.reduce(shift)} from its current position
+     * @param stats receives the inflate and unfilter times and the compressed size, or null to not time anything
+     * @see FCTL#reduce(int)
+     */
+    void begin(FCTL fctl, int shift, ByteBuffer pixels, FrameStats stats) {
+        int mask = (1 << shift) - 1;
+        begin(fctl.width, fctl.height, shift, fctl.x & mask, fctl.y & mask, pixels, stats);
+    }
+
+    /**
+     * Start decoding a frame at a reduced size.
+     * @param shift the reduction, each output pixel averages up to {@code 2^shift} by {@code 2^shift} pixels
+     * @param phaseX the column of the frame's first pixel within its block
+     * @param phaseY the row of the frame's first pixel within its block
+     */
+    void begin(int width, int height, int shift, int phaseX, int phaseY, ByteBuffer pixels, FrameStats stats) {
+        inflater.reset();
+        rowBytes = (width * bitDepth + 7) >> 3;
+        if (row.length < rowBytes + 1) {
+            row = new byte[rowBytes + 1];
+            prev = new byte[rowBytes + 1];
+        } else {
+            Arrays.fill(prev, (byte) 0);
+        }
+        if (lut != null && expanded.length < width) {
+            expanded = new byte[width];
+        }
+        this.shift = shift;
+        if (shift > 0) {
+            int block = 1 << shift;
+            int cols = (phaseX + width + block - 1) >> shift;
+            if (sums.length < cols) {
+                sums = new int[cols];
+                blockCols = new int[cols];
+                reduced = new byte[cols];
+            }
+            Arrays.fill(sums, 0, cols, 0);
+            for (int c = 0; c < cols; c++) {
+                blockCols[c] = Math.min(width, (c + 1) * block - phaseX) - Math.max(0, c * block - phaseX);
+            }
+            this.phaseX = phaseX;
+            this.phaseY = phaseY;
+            this.blockRows = 0;
+        }
+        this.rowPos = 0;
+        this.width = width;
+        this.height = height;
+        this.y = 0;
+        this.pixels = pixels;
+        this.stats = stats;
+    }
+
+    /**
+     * Feed the next piece of the frame's zlib stream.
+     * @param data a heap, direct or mapped buffer with compressed data
+     * @return true once every scanline of the frame has been decoded
+     */
+    boolean feed(ByteBuffer data) {
+        inflater.setInput(data);
+        if (stats == null) {
+            inflateRows();
+            return isComplete();
+        }
+        stats.compressedBytes += data.remaining();
+        unfilterNanos = 0;
+        long t = System.nanoTime();
+        try {
+            inflateRows();
+        } finally {
+            stats.add(FrameStats.Stage.INFLATE, System.nanoTime() - t - unfilterNanos);
+            stats.add(FrameStats.Stage.UNFILTER, unfilterNanos);
+        }
+        return isComplete();
+    }
+
+    /**
+     * Inflate and unfilter scanlines until the input runs out or the frame is complete. When timing, only the
+     * unfiltering of each row is timed in here, inflate is the rest of the loop.
+     */
+    private void inflateRows() {
+        try {
+            while (y < height) {
+                int n = inflater.inflate(row, rowPos, rowBytes + 1 - rowPos);
+                if (n == 0) {
+                    if (inflater.needsInput() || inflater.finished()) {
+                        break;
+                    }
+                    if (inflater.needsDictionary()) {
+                        throw new RuntimeException("preset dictionary not supported");
+                    }
+                }
+                rowPos += n;
+                if (rowPos == rowBytes + 1) {
+                    if (stats == null) {
+                        unfilterRow();
+                    } else {
+                        long t = System.nanoTime();
+                        unfilterRow();
+                        unfilterNanos += System.nanoTime() - t;
+                    }
+                    rowPos = 0;
+                    y++;
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Unpack the samples of the current row, most significant bits first, and map them to gray levels.
+     */
+    private void expandRow() {
+        if (bitDepth == 8) {
+            for (int x = 0; x < width; x++) {
+                expanded[x] = lut[row[x + 1] & 0xff];
+            }
+            return;
+        }
+        int perByte = 8 / bitDepth;
+        int mask = (1 << bitDepth) - 1;
+        int x = 0;
+        for (int i = 1; x < width; i++) {
+            int b = row[i] & 0xff;
+            for (int shift = 8 - bitDepth, n = 0; n < perByte && x < width; n++, shift -= bitDepth) {
+                expanded[x++] = lut[(b >> shift) & mask];
+            }
+        }
+    }
+
+    boolean isComplete() {
+        return y == height;
+    }
+
+    /**
+     * Release the native zlib resources.
+     */
+    void end() {
+        inflater.end();
+    }
+
+    /**
+     * Add a row to the column sums, and write out a row of block averages once a block row is complete.
+     */
+    private void reduceRow(byte[] gray, int off) {
+        int[] sums = this.sums;
+        for (int x = 0; x < width; x++) {
+            sums[(x + phaseX) >> shift] += gray[off + x] & 0xff;
+        }
+        blockRows++;
+        int mask = (1 << shift) - 1;
+        if (((y + phaseY + 1) & mask) != 0 && y + 1 < height) {
+            return;
+        }
+        int cols = (phaseX + width + mask) >> shift;
+        for (int c = 0; c < cols; c++) {
+            int n = blockCols[c] * blockRows;
+            reduced[c] = (byte) ((sums[c] + (n >> 1)) / n);
+            sums[c] = 0;
+        }
+        pixels.put(reduced, 0, cols);
+        blockRows = 0;
+    }
+
+    private void unfilterRow() {
+        PNGFilter.unfilter(row[0], row, 1, prev, 1, rowBytes, 1);
+        byte[] gray = row;
+        int off = 1;
+        if (lut != null) {
+            expandRow();
+            gray = expanded;
+            off = 0;
+        }
+        if (shift == 0) {
+            pixels.put(gray, off, width);
+        } else {
+            reduceRow(gray, off);
+        }
+
+        byte[] tmp = prev;
+        prev = row;
+        row = tmp;
+    }
+}
@@ -0,0 +1,92 @@
+package com.vg.apng;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight Recorder event for one encoded or decoded frame, with the same numbers as {@link FrameStats}. Like all
+ * custom events it is enabled in every recording unless {@code com.vg.apng.Frame#enabled} is set to false; while
+ * no recording has it enabled frames are not timed at all.
+ */
+@Name("com.vg.apng.Frame")
+@Label("APNG Frame")
+@Category("APNG")
+@Description("Stage timings and compressed size of an encoded or decoded APNG frame")
+@StackTrace(false)
+class FrameEvent extends Event {
+    private static final EventType TYPE = EventType.getEventType(FrameEvent.class);
+
+    @Label("Encode")
+    boolean encode;
+    @Label("Frame Index")
+    int frameIndex;
+    @Label("Width")
+    int width;
+    @Label("Height")
+    int height;
+    @Label("Raw Size")
+    @DataAmount
+    long rawBytes;
+    @Label("Compressed Size")
+    @DataAmount
+    long compressedBytes;
+    @Label("Filter")
+    @Timespan
+    long filterNanos;
+    @Label("Deflate")
+    @Timespan
+    long deflateNanos;
+    @Label("Chunk CRC")
+    @Timespan
+    long crcNanos;
+    @Label("Write")
+    @Timespan
+    long writeNanos;
+    @Label("Read")
+    @Timespan
+    long readNanos;
+    @Label("Inflate")
+    @Timespan
+    long inflateNanos;
+    @Label("Unfilter")
+    @Timespan
+    long unfilterNanos;
+    @Label("Composite")
+    @Timespan
+    long compositeNanos;
+
+    /**
+     * @return true while a recording has this event enabled
+     */
+    static boolean isRecording() {
+        return TYPE.isEnabled();
+    }
+
+    void commit(FrameStats stats) {
+        end();
+        if (shouldCommit()) {
+            encode = stats.encode;
+            frameIndex = stats.frameIndex;
+            width = stats.width;
+            height = stats.height;
+            rawBytes = stats.getRawBytes();
+            compressedBytes = stats.getCompressedBytes();
+            filterNanos = stats.getNanos(FrameStats.Stage.FILTER);
+            deflateNanos = stats.getNanos(FrameStats.Stage.DEFLATE);
+            crcNanos = stats.getNanos(FrameStats.Stage.CRC);
+            writeNanos = stats.getNanos(FrameStats.Stage.WRITE);
+            readNanos = stats.getNanos(FrameStats.Stage.READ);
+            inflateNanos = stats.getNanos(FrameStats.Stage.INFLATE);
+            unfilterNanos = stats.getNanos(FrameStats.Stage.UNFILTER);
+            compositeNanos = stats.getNanos(FrameStats.Stage.COMPOSITE);
+            commit();
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.vg.apng;
+
+/**
+ * Whether {@link FrameEvent} is being recorded, asked without touching Flight Recorder classes until the first call.
+ * On a runtime without the {@code jdk.jfr} module, such as a trimmed jlink image, the event cannot be loaded and
+ * recording is simply off.
+ */
+final class FrameEvents {
+    private FrameEvents() {
+    }
+
+    /**
+     * @return true while a recording has the frame event enabled
+     */
+    static boolean isRecording() {
+        return Holder.AVAILABLE && FrameEvent.isRecording();
+    }
+
+    /**
+     * Loaded on the first call, so the check runs once.
+     */
+    private static class Holder {
+        static final boolean AVAILABLE = isAvailable();
+
+        private static boolean isAvailable() {
+            try {
+                FrameEvent.isRecording();
+                return true;
+            } catch (LinkageError e) {
+                return false; // no jdk.jfr module
+            }
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package com.vg.apng;
+
+import static com.vg.apng.APNG.fdAT_SIG;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Where the frames of an APNG are and when they are shown: the frame control of every frame, the file offset and
+ * length of each of its data chunk bodies, and its start time. Built with a single pass over the chunk headers, and
+ * kept in a sidecar file so that opening a long animation again does not need that pass.
+ * <p>
+ * A sidecar records the length and modification time of the APNG it was built from and is ignored once either
+ * changes.
+ */
+class FrameIndex {
+    private static final int MAGIC = 0x41504e49; // "APNI"
+    private static final int VERSION = 1;
+    private static final int CHUNK_BYTES = 12;
+    /** The smallest frame: frame control, chunk count and one chunk. */
+    private static final int FRAME_BYTES = 30 + CHUNK_BYTES;
+
+    final FCTL[] fctls;
+    final long[][] offsets;
+    final int[][] lengths;
+    /** The start time of every frame in milliseconds, followed by the total duration. */
+    final long[] starts;
+
+    private FrameIndex(FCTL[] fctls, long[][] offsets, int[][] lengths) {
+        this.fctls = fctls;
+        this.offsets = offsets;
+        this.lengths = lengths;
+        this.starts = new long[fctls.length + 1];
+        for (int i = 0; i < fctls.length; i++) {
+            starts[i + 1] = starts[i] + fctls[i].getDelay();
+        }
+    }
+
+    int size() {
+        return fctls.length;
+    }
+
+    /**
+     * @param time a time in milliseconds from the start of the animation, at most the duration
+     * @return the frame shown at that time
+     */
+    int frameAt(long time) {
+        int i = Arrays.binarySearch(starts, 0, fctls.length, time);
+        if (i < 0) {
+            return -i - 2;
+        }
+        while (i + 1 < fctls.length && starts[i + 1] == time) {
+            i++; // frames with no delay are never shown
+        }
+        return i;
+    }
+
+    /**
+     * Scan the frames of an APNG.
+     * @param in the input, positioned just after the header chunks
+     * @param header the image header
+     */
+    static FrameIndex build(WindowedInput in, ImageHeader header) throws IOException {
+        int n = header.frameCount;
+        FCTL[] fctls = new FCTL[n];
+        long[][] offsets = new long[n][];
+        int[][] lengths = new int[n][];
+        for (int i = 0; i < n; i++) {
+            fctls[i] = APNGReader.nextFCTL(in);
+            int chunks = 0;
+            long[] off = new long[1];
+            int[] len = new int[1];
+            while (APNGReader.nextIsData(in)) {
+                long chunkStart = in.position();
+                int chunkLen = in.getInt();
+                int sig = in.getInt();
+                int seq = sig == fdAT_SIG ? 4 : 0; // sequence number ahead of fdAT data
+                if (chunks == off.length) {
+                    off = Arrays.copyOf(off, chunks * 2);
+                    len = Arrays.copyOf(len, chunks * 2);
+                }
+                off[chunks] = chunkStart + 8 + seq;
+                len[chunks] = chunkLen - seq;
+                chunks++;
+                in.position(chunkStart + 8 + (chunkLen & 0xffffffffL) + 4);
+            }
+            if (chunks == 0) {
+                throw new RuntimeException("fdAT or IDAT expected but not found");
+            }
+            offsets[i] = Arrays.copyOf(off, chunks);
+            lengths[i] = Arrays.copyOf(len, chunks);
+        }
+        return new FrameIndex(fctls, offsets, lengths);
+    }
+
+    /**
+     * Write the index to a sidecar file.
+     * @param sidecar the file to write
+     * @param apng the APNG the index was built from
+     */
+    void save(File sidecar, File apng) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(sidecar)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(apng.length());
+            out.writeLong(apng.lastModified());
+            out.writeInt(fctls.length);
+            for (int i = 0; i < fctls.length; i++) {
+                FCTL f = fctls[i];
+                out.writeInt(f.seqNumber);
+                out.writeInt(f.width);
+                out.writeInt(f.height);
+                out.writeInt(f.x);
+                out.writeInt(f.y);
+                out.writeShort(f.delayNum);
+                out.writeShort(f.delayDen);
+                out.writeByte(f.disposeOp);
+                out.writeByte(f.blendOp);
+                out.writeInt(offsets[i].length);
+                for (int c = 0; c < offsets[i].length; c++) {
+                    out.writeLong(offsets[i][c]);
+                    out.writeInt(lengths[i][c]);
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Read an index back from a sidecar file.
+     * @param sidecar the file to read
+     * @param apng the APNG the index is for
+     * @return the index, or null if the sidecar is missing, unreadable or was built from another version of the file
+     */
+    static FrameIndex load(File sidecar, File apng) throws IOException {
+        if (!sidecar.isFile()) {
+            return null;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(sidecar)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readLong() != apng.length()
+                    || in.readLong() != apng.lastModified()) {
+                return null;
+            }
+            int n = in.readInt();
+            if (n < 0 || n > sidecar.length() / FRAME_BYTES) {
+                return null;
+            }
+            FCTL[] fctls = new FCTL[n];
+            long[][] offsets = new long[n][];
+            int[][] lengths = new int[n][];
+            for (int i = 0; i < n; i++) {
+                fctls[i] = new FCTL(in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readInt(),
+                        in.readShort(), in.readShort(), in.readByte(), in.readByte());
+                int chunks = in.readInt();
+                if (chunks <= 0 || chunks > sidecar.length() / CHUNK_BYTES) {
+                    return null;
+                }
+                offsets[i] = new long[chunks];
+                lengths[i] = new int[chunks];
+                for (int c = 0; c < chunks; c++) {
+                    offsets[i][c] = in.readLong();
+                    lengths[i][c] = in.readInt();
+                }
+            }
+            return new FrameIndex(fctls, offsets, lengths);
+        } catch (EOFException e) {
+            return null; // truncated
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.vg.apng;
+
+/**
+ * The size, position and timing of a frame handed to a {@link FrameSink}. A reader passes the same object for every
+ * frame, so values to be kept must be copied out, or the whole object with {@link #FrameInfo(FrameInfo)}.
+ * <p>
+ * Composited frames cover the whole canvas; the dispose and blend ops are still those of the frame as stored.
+ * Preview frames are given in reduced pixels.
+ */
+public final class FrameInfo {
+    int index;
+    int frameCount;
+    int canvasWidth;
+    int canvasHeight;
+    int width;
+    int height;
+    int x;
+    int y;
+    int delay;
+    byte disposeOp;
+    byte blendOp;
+
+    FrameInfo() {
+    }
+
+    /**
+     * Copy a frame's info, to keep it past the callback it was passed to.
+     * @param info the info to copy
+     */
+    public FrameInfo(FrameInfo info) {
+        this.index = info.index;
+        this.frameCount = info.frameCount;
+        this.canvasWidth = info.canvasWidth;
+        this.canvasHeight = info.canvasHeight;
+        this.width = info.width;
+        this.height = info.height;
+        this.x = info.x;
+        this.y = info.y;
+        this.delay = info.delay;
+        this.disposeOp = info.disposeOp;
+        this.blendOp = info.blendOp;
+    }
+
+    /**
+     * @return the index of the frame in the animation, from 0
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * @return the number of frames declared in acTL
+     */
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    public int getCanvasWidth() {
+        return canvasWidth;
+    }
+
+    public int getCanvasHeight() {
+        return canvasHeight;
+    }
+
+    /**
+     * @return the width of the frame's pixels, one byte each
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return the horizontal offset of the frame on the canvas
+     */
+    public int getX() {
+        return x;
+    }
+
+    /**
+     * @return the vertical offset of the frame on the canvas
+     */
+    public int getY() {
+        return y;
+    }
+
+    /**
+     * @return the delay until the next frame in milliseconds
+     */
+    public int getDelay() {
+        return delay;
+    }
+
+    /**
+     * @return {@link APNG#DISPOSE_OP_NONE}, {@link APNG#DISPOSE_OP_BACKGROUND} or {@link APNG#DISPOSE_OP_PREVIOUS}
+     */
+    public byte getDisposeOp() {
+        return disposeOp;
+    }
+
+    /**
+     * @return {@link APNG#BLEND_OP_SOURCE} or {@link APNG#BLEND_OP_OVER}
+     */
+    public byte getBlendOp() {
+        return blendOp;
+    }
+}
@@ -0,0 +1,12 @@
+package com.vg.apng;
+
+/**
+ * Receives the stage timings and byte counts of every frame an instrumented writer or reader processes. Called on
+ * the thread that adds or reads frames, after the frame has been written or decoded.
+ *
+ * @see APNGWriter#setListener(FrameListener)
+ * @see APNGReader#setListener(FrameListener)
+ */
+public interface FrameListener {
+    void frame(FrameStats stats);
+}
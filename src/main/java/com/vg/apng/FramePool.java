@@ -0,0 +1,174 @@
+package com.vg.apng;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of pixel buffers for {@link Gray} frames, so that a long running encode or decode loop stops allocating
+ * once it has warmed up. Buffers are kept in size classes a quarter octave apart, so frames of slightly different
+ * sizes share buffers while wasting at most a fifth of the memory. Buffers can live on the heap or off-heap.
+ * <p>
+ * A frame taken from the pool is handed back with {@link Gray#close()}, which makes it usable with
+ * try-with-resources. Operations on a pooled frame that produce a new image, such as
+ * {@link Gray#scaleBilinear(int, int)} or {@link Gray#getSubimage(java.awt.Rectangle)}, take their result from the
+ * same pool, as does an {@link APNGReader#setFramePool(FramePool) APNGReader}. Frames that are never closed are
+ * simply garbage collected. Thread-safe.
+ */
+public class FramePool {
+    private static final int MIN_CLASS_SHIFT = 12;
+    private static final int STEPS_PER_OCTAVE = 4;
+    private static final int CLASSES = (31 - MIN_CLASS_SHIFT) * STEPS_PER_OCTAVE + 1;
+
+    private final boolean direct;
+    private final long maxPooledBytes;
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private final ConcurrentLinkedQueue<ByteBuffer>[] classes = new ConcurrentLinkedQueue[CLASSES];
+    private final AtomicLong pooledBytes = new AtomicLong();
+    private final AtomicInteger allocations = new AtomicInteger();
+
+    /**
+     * A heap pool holding on to at most 256 MiB of released buffers.
+     */
+    public FramePool() {
+        this(false, 256L << 20);
+    }
+
+    /**
+     * @param direct whether buffers are allocated off-heap with {@link ByteBuffer#allocateDirect(int)}
+     * @param maxPooledBytes how many bytes of released buffers to keep; buffers released beyond that are dropped
+     */
+    public FramePool(boolean direct, long maxPooledBytes) {
+        if (maxPooledBytes < 0) {
+            throw new IllegalArgumentException("maxPooledBytes must not be negative");
+        }
+        this.direct = direct;
+        this.maxPooledBytes = maxPooledBytes;
+        for (int i = 0; i < CLASSES; i++) {
+            classes[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+        }
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * @return a frame with a one second delay
+     * @see #allocate(int, int, int)
+     */
+    public Gray allocate(int width, int height) {
+        return allocate(width, height, APNG.DELAY_1S);
+    }
+
+    /**
+     * Take a frame from the pool. Its pixels are left over from earlier use and must be overwritten by the caller.
+     * @param width the image width
+     * @param height the image height
+     * @param delay the delay to put between this image and the next
+     * @return a frame to {@link Gray#close() close} once it is no longer used
+     */
+    public Gray allocate(int width, int height, int delay) {
+        if (width <= 0 || height <= 0 || (long) width * height > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("bad frame size " + width + "x" + height);
+        }
+        int size = width * height;
+        int index = classIndex(size);
+        ByteBuffer buffer = null;
+        if (index >= 0) {
+            buffer = classes[index].poll();
+            if (buffer != null) {
+                pooledBytes.addAndGet(-buffer.capacity());
+            }
+        }
+        if (buffer == null) {
+            int capacity = index >= 0 ? (int) classSize(index) : size;
+            buffer = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+            allocations.incrementAndGet();
+        }
+        ByteBuffer pixels = buffer.duplicate();
+        pixels.clear().limit(size);
+        Gray gray = new Gray(width, height, pixels.slice(), delay);
+        gray.pool = this;
+        gray.pooled = buffer;
+        return gray;
+    }
+
+    /**
+     * Hand a frame's buffer back to the pool. The frame must not be used afterwards; releasing it again does
+     * nothing.
+     * @param gray a frame allocated from this pool
+     */
+    public void release(Gray gray) {
+        if (gray.pool != this) {
+            throw new IllegalArgumentException("frame does not belong to this pool");
+        }
+        ByteBuffer buffer = gray.pooled;
+        gray.pooled = null;
+        if (buffer == null) {
+            return;
+        }
+        int index = classIndex(buffer.capacity());
+        if (index < 0 || classSize(index) != buffer.capacity()) {
+            return;
+        }
+        if (pooledBytes.addAndGet(buffer.capacity()) <= maxPooledBytes) {
+            classes[index].offer(buffer);
+        } else {
+            pooledBytes.addAndGet(-buffer.capacity());
+        }
+    }
+
+    /**
+     * @return the bytes held by released buffers waiting to be reused
+     */
+    public long getPooledBytes() {
+        return pooledBytes.get();
+    }
+
+    /**
+     * @return the number of buffers allocated because none of the right size class was pooled
+     */
+    public int getAllocations() {
+        return allocations.get();
+    }
+
+    /**
+     * Drop every pooled buffer.
+     */
+    public void clear() {
+        for (ConcurrentLinkedQueue<ByteBuffer> queue : classes) {
+            for (ByteBuffer buffer = queue.poll(); buffer != null; buffer = queue.poll()) {
+                pooledBytes.addAndGet(-buffer.capacity());
+            }
+        }
+    }
+
+    /**
+     * @return the capacity of the buffers a frame of {@code size} pixels is taken from
+     */
+    static long sizeClass(int size) {
+        int index = classIndex(size);
+        return index < 0 ? size : classSize(index);
+    }
+
+    /**
+     * @return the size class of {@code size} bytes, or -1 if it is too large to be pooled
+     */
+    private static int classIndex(int size) {
+        if (size <= 1 << MIN_CLASS_SHIFT) {
+            return 0;
+        }
+        int octave = 31 - Integer.numberOfLeadingZeros(size - 1);
+        int step = 1 << (octave - 2);
+        int steps = (int) ((size + (long) step - 1) / step);
+        int index = (octave - MIN_CLASS_SHIFT) * STEPS_PER_OCTAVE + steps - STEPS_PER_OCTAVE;
+        return index < CLASSES - 1 ? index : -1;
+    }
+
+    private static long classSize(int index) {
+        int octave = MIN_CLASS_SHIFT + index / STEPS_PER_OCTAVE;
+        return (long) (STEPS_PER_OCTAVE + index % STEPS_PER_OCTAVE) << (octave - 2);
+    }
+}
@@ -0,0 +1,34 @@
+package com.vg.apng;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Receives decoded frames pushed by a reader, for consumers that keep pixels in memory of their own such as a
+ * texture cache or a shared memory ring. The reader either decodes straight into a buffer the sink provides, or lends
+ * the sink a view of its own buffer; either way it allocates nothing per frame. Called on the reading thread, in
+ * frame order.
+ *
+ * @see APNGReader#read(java.nio.channels.ReadableByteChannel, FrameSink)
+ * @see APNGFrameIterator#next(FrameSink)
+ */
+public interface FrameSink {
+    /**
+     * Choose where the next frame goes, before it is decoded.
+     * @param info the frame about to be decoded; the same object is passed for every frame
+     * @return a buffer with at least {@code info.getWidth() * info.getHeight()} bytes remaining to write the frame to,
+     *         from its position on; or null to borrow a buffer of the reader
+     * @throws IOException to abort reading
+     */
+    ByteBuffer buffer(FrameInfo info) throws IOException;
+
+    /**
+     * Take a decoded frame.
+     * @param info the frame
+     * @param pixels the buffer returned by {@link #buffer(FrameInfo)}, with its position advanced past the frame; or,
+     *               if that returned null, a read-only view of the frame from position 0, which is only valid during
+     *               this call
+     * @throws IOException to abort reading
+     */
+    void frame(FrameInfo info, ByteBuffer pixels) throws IOException;
+}
@@ -0,0 +1,124 @@
+package com.vg.apng;
+
+/**
+ * Where the time of one encoded or decoded frame went, and how well it compressed. Only created while a
+ * {@link FrameListener} is set or the {@code com.vg.apng.Frame} Flight Recorder event is enabled.
+ */
+public final class FrameStats {
+    public enum Stage {
+        /** Encode: picking and applying the scanline filters. */
+        FILTER,
+        /** Encode: zlib compression. */
+        DEFLATE,
+        /** Encode: building fcTL and the data chunk header, including their CRCs. */
+        CRC,
+        /** Encode: writing the frame's chunks to the output. */
+        WRITE,
+        /** Decode: reading and parsing chunks. */
+        READ,
+        /** Decode: zlib decompression. */
+        INFLATE,
+        /** Decode: reconstructing scanlines from their filtered form. */
+        UNFILTER,
+        /** Decode: disposing, blending and copying the canvas when compositing. */
+        COMPOSITE
+    }
+
+    public final boolean encode;
+    public final int frameIndex;
+    public final int width;
+    public final int height;
+    long compressedBytes;
+    private final long[] nanos = new long[Stage.values().length];
+    final FrameEvent event;
+
+    FrameStats(boolean encode, int frameIndex, int width, int height) {
+        this.encode = encode;
+        this.frameIndex = frameIndex;
+        this.width = width;
+        this.height = height;
+        this.event = FrameEvents.isRecording() ? new FrameEvent() : null;
+        if (event != null) {
+            event.begin();
+        }
+    }
+
+    /**
+     * @return the number of pixels of the frame, one byte each
+     */
+    public long getRawBytes() {
+        return (long) width * height;
+    }
+
+    /**
+     * @return the size of the frame's zlib stream
+     */
+    public long getCompressedBytes() {
+        return compressedBytes;
+    }
+
+    /**
+     * @return raw bytes per compressed byte
+     */
+    public double getCompressionRatio() {
+        return compressedBytes == 0 ? 0 : (double) getRawBytes() / compressedBytes;
+    }
+
+    public long getNanos(Stage stage) {
+        return nanos[stage.ordinal()];
+    }
+
+    /**
+     * @return the sum of all stages
+     */
+    public long getTotalNanos() {
+        long total = 0;
+        for (long n : nanos) {
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * Add the time since {@code since} to a stage.
+     * @return the current time, to start the next stage from
+     */
+    long lap(Stage stage, long since) {
+        long now = System.nanoTime();
+        nanos[stage.ordinal()] += now - since;
+        return now;
+    }
+
+    void add(Stage stage, long n) {
+        nanos[stage.ordinal()] += n;
+    }
+
+    /**
+     * Commit the Flight Recorder event and notify the listener.
+     * @param listener the listener, or null
+     */
+    void report(FrameListener listener) {
+        if (event != null) {
+            event.commit(this);
+        }
+        if (listener != null) {
+            listener.frame(this);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(encode ? "encoded" : "decoded").append(" frame ").append(frameIndex).append(' ').append(width)
+                .append('x').append(height).append(", ").append(compressedBytes).append(" bytes compressed");
+        sb.append(String.format(" (%.2f:1)", getCompressionRatio()));
+        for (Stage stage : Stage.values()) {
+            long n = getNanos(stage);
+            if (n > 0) {
+                sb.append(", ").append(stage.name().toLowerCase()).append(' ')
+                        .append(String.format("%.1f us", n / 1000.0));
+            }
+        }
+        return sb.toString();
+    }
+}
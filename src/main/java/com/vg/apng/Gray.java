@@ -17,15 +17,17 @@ import java.nio.channels.FileChannel.MapMode;
 import javax.imageio.ImageIO;
 
 /**
- * Represent a grayscale image.
+ * Represent a grayscale image. Images taken from a {@link FramePool} hand their buffer back on {@link #close()}.
  */
-public class Gray {
+public class Gray implements AutoCloseable {
 
     public final int width;
     public final int height;
     public final ByteBuffer data;
     // Defaults to 1s
     private int delayms = 1000;
+    FramePool pool;
+    ByteBuffer pooled;
 
     /**
      * Create a new Gray from info and data.
@@ -107,116 +109,74 @@ public class Gray {
         return new Dimension(width, height);
     }
 
-    public Gray equalizeHist1() {
-        int hist_sz = 256;
-        int hist[] = new int[hist_sz];
-        Dimension size = getDimension();
-
-        ByteBuffer sptr = getData();
-        for (int y = 0; y < size.height; y++) {
-            for (int x = 0; x < size.width; x++)
-                hist[sptr.get() & 0xff]++;
-        }
-
-        float scale = 255.f / (size.width * size.height);
-        int sum = 0;
-        byte lut[] = new byte[hist_sz];
-
-        for (int i = 0; i < hist_sz; i++) {
-            sum += hist[i];
-            int val = Math.round(sum * scale);
-            lut[i] = (byte) val;
-        }
-
-        lut[0] = 0;
-        Gray dst = new Gray(size.width, size.height);
-        ByteBuffer dptr = dst.getData();
-        sptr = getData();
-        for (int y = 0; y < size.height; y++) {
-            for (int x = 0; x < size.width; x++)
-                dptr.put(lut[sptr.get() & 0xff]);
-        }
-        return dst;
-
+    /**
+     * @return the pool this image was taken from, or null
+     */
+    public FramePool getPool() {
+        return pool;
     }
 
-    public Gray equalizeHist() {
-        int hist_sz = 256;
-        int hist[] = new int[hist_sz];
-        Dimension size = getDimension();
-
-        ByteBuffer srcData = getData();
-        for (int y = 0; y < size.height; y++) {
-            for (int x = 0; x < size.width; x++)
-                hist[srcData.get() & 0xff]++;
-        }
-
-        int maxCount = size.width * size.height * 2 / 100;
-        int black = 0;
-        int counter = 0;
-
-        // count up to maxCount (2%) values from the black side of the histogram to find the black point
-        while ((counter < maxCount) && (black < 256)) {
-            counter += hist[black];
-            black++;
+    /**
+     * Hand the pixel buffer back to the pool this image was taken from. The image must not be used afterwards.
+     * Does nothing for images that are not pooled.
+     */
+    @Override
+    public void close() {
+        if (pool != null) {
+            pool.release(this);
         }
+    }
 
-        int white = 255;
-        counter = 0;
+    /**
+     * What the resizing and cropping methods return when nothing changes: this image, or for a pooled image a view
+     * sharing its pixels that does not own them, so that closing the result does not release the buffer the caller
+     * still uses.
+     */
+    private Gray unchanged() {
+        return pool == null ? this : new Gray(width, height, data, delayms);
+    }
 
-        // count up to maxCount (2%) values from the white side of the histogram to find the white point
-        while ((counter < maxCount) && (white > 0)) {
-            counter += hist[white];
-            white--;
-        }
-        byte[] lut = new byte[256];
-        int range = white - black;
-        float mult = 255f / range;
-        for (int i = 0; i < lut.length; i++) {
-            int val = i - black;
-            val = Math.max(0, val);
-            val *= mult;
-            val = Math.min(255, val);
-            lut[i] = (byte) val;
-        }
+    /**
+     * @return a new image from the same pool as this one, or from the heap if this one is not pooled
+     */
+    Gray newImage(int width, int height, int delay) {
+        return pool != null ? pool.allocate(width, height, delay) : new Gray(width, height, delay);
+    }
 
-        Gray dst = new Gray(size.width, size.height);
-        srcData = getData();
-        ByteBuffer dstData = dst.getData();
-        while (srcData.hasRemaining()) {
-            int p = srcData.get() & 0xff;
-            dstData.put(lut[p]);
-        }
-        return dst;
+    /**
+     * Histogram equalization into a new image.
+     * @see PointOps#equalize()
+     */
+    public Gray equalizeHist1() {
+        return new PointOps().equalize().apply(this, newImage(width, height, APNG.DELAY_1S));
+    }
 
+    /**
+     * Contrast stretch clipping 2% of the pixels on either side, into a new image.
+     * @see PointOps#stretch(int)
+     */
+    public Gray equalizeHist() {
+        return new PointOps().stretch(2).apply(this, newImage(width, height, APNG.DELAY_1S));
     }
 
     public Gray scale(int w, int h) {
         return scaleBilinear(w, h);
     }
 
+    /**
+     * Nearest neighbour resize into a new image, in a single pass. Images of a quarter megapixel and more are
+     * resized in row stripes on the common fork-join pool; reuse a {@link Resampler} to resize every frame of an
+     * animation, or to run on another pool.
+     */
     public Gray scaleNN(int w, int h) {
         if (width == w && height == h)
-            return this;
-        ByteBuffer data = getData();
-        ByteBuffer dest = ByteBuffer.allocate(w * h);
-        float rw = (float) (1f / ((double) w / this.width));
-        float rh = (float) (1f / ((double) h / this.height));
-        for (int y = 0; y < h; y++) {
-            for (int x = 0; x < w; x++) {
-                int xx = (int) (x * rw);
-                int yy = (int) (y * rh);
-                byte b = data.get(yy * width + xx);
-                dest.put(b);
-            }
-        }
-        return new Gray(w, h, dest);
-
+            return unchanged();
+        return new Resampler(ResampleFilter.NEAREST).resize(this, w, h);
     }
 
     public Gray scale(int w) {
         if (width == w)
-            return this;
+            return unchanged();
         double ratio = (double) w / this.width;
         int h = (int) Math.round(height * ratio);
         h &= ~1; // make h even
@@ -224,7 +184,10 @@ public class Gray {
     }
 
     /**
-     * Bilinear resize grayscale image. Target dimension is w * h. Dimension cannot be null
+     * Bilinear resize grayscale image. Target dimension is w * h. Dimension cannot be null. Images of a quarter
+     * megapixel and more are resized in row stripes on the common fork-join pool. Every call computes tap tables and
+     * an intermediate image; use a {@link Resampler} reused across frames to resize every frame of an animation, to
+     * pick another kernel, or to resize into an existing image.
      * 
      * @param w
      *            New width.
@@ -233,39 +196,15 @@ public class Gray {
      * @return the resized image.
      */
     public Gray scaleBilinear(int w, int h) {
-        ByteBuffer srcPix = getData();
-        Gray dst = new Gray(w, h);
-        ByteBuffer dstPix = dst.getData();
-        float x_ratio = ((float) (width - 1)) / w;
-        float y_ratio = ((float) (height - 1)) / h;
-        for (int i = 0; i < h; i++) {
-            for (int j = 0; j < w; j++) {
-                int x = (int) (x_ratio * j);
-                int y = (int) (y_ratio * i);
-                float x_diff = (x_ratio * j) - x;
-                float y_diff = (y_ratio * i) - y;
-                int index = y * width + x;
-
-                // range is 0 to 255 thus bitwise AND with 0xff
-                int A = srcPix.get(index) & 0xff;
-                int B = srcPix.get(index + 1) & 0xff;
-                int C = srcPix.get(index + width) & 0xff;
-                int D = srcPix.get(index + width + 1) & 0xff;
-
-                // Y = A(1-w)(1-h) + B(w)(1-h) + C(h)(1-w) + Dwh
-                int gray = (int) (A * (1 - x_diff) * (1 - y_diff) + B * (x_diff) * (1 - y_diff) + C * (y_diff)
-                        * (1 - x_diff) + D * (x_diff * y_diff));
-
-                dstPix.put((byte) gray);
-            }
-        }
-        return dst;
+        return new Resampler(ResampleFilter.BILINEAR).resize(this, w, h);
     }
 
     public Gray getSubimage(Rectangle r) {
         if (r.equals(getBounds()))
-            return this;
-        return getSubimage(r.x, r.y, r.width, r.height, ByteBuffer.allocate(r.width * r.height));
+            return unchanged();
+        Gray sub = newImage(r.width, r.height, APNG.DELAY_1S);
+        getSubimage(r.x, r.y, r.width, r.height, sub.getData());
+        return sub;
     }
 
     public Gray getSubimage(int x, int y, int width, int height, ByteBuffer dest) {
@@ -276,7 +215,7 @@ public class Gray {
         ByteBuffer data = getData();
 
         if (x == 0 && y == 0 && width == this.width && height == this.height) {
-            return this;
+            return unchanged();
         }
         if (x + width > this.width || y + height > this.height) {
             throw new IllegalArgumentException("image: " + this.width + "x" + this.height + " subimage: " + x + ":" + y
@@ -293,18 +232,14 @@ public class Gray {
     }
 
     /**
-     * Extract a Gray from a BufferedImage by wrapping its underlying data.
-     * @param b the BufferedImage to wrap
+     * Extract a Gray from a BufferedImage. TYPE_BYTE_GRAY images are wrapped without copying, other types are
+     * converted to luma with alpha composited over black. Large TYPE_INT_RGB, TYPE_INT_ARGB, TYPE_3BYTE_BGR and
+     * TYPE_4BYTE_ABGR images are converted straight from the raster in row stripes on the common fork-join pool.
+     * @param b the BufferedImage to convert
      * @return a grayscale image
      */
     public static Gray fromBufferedImage(BufferedImage b) {
-        BufferedImage g = b;
-        if (b.getType() != BufferedImage.TYPE_BYTE_GRAY) {
-            g = new BufferedImage(b.getWidth(), b.getHeight(), BufferedImage.TYPE_BYTE_GRAY);
-            g.getGraphics().drawImage(b, 0, 0, b.getWidth(), b.getHeight(), null);
-        }
-        byte[] data = ((DataBufferByte) g.getRaster().getDataBuffer()).getData();
-        return new Gray(b.getWidth(), b.getHeight(), wrap(data));
+        return ImageConverter.toGray(b);
     }
 
     /**
@@ -318,6 +253,16 @@ public class Gray {
         return b;
     }
 
+    /**
+     * A TYPE_BYTE_GRAY BufferedImage sharing this image's pixels, so that writes through either are seen by both.
+     * Images whose pixels are off-heap are copied as by {@link #toBufferedImage()}.
+     * @return a BufferedImage view of this image
+     */
+    public BufferedImage asBufferedImage() {
+        BufferedImage view = ImageConverter.view(this);
+        return view != null ? view : toBufferedImage();
+    }
+
     public static void writeBMP(Gray gray, String path) throws IOException {
         ImageIO.write(gray.toBufferedImage(), "bmp", new File(path));
     }
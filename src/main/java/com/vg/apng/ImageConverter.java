@@ -0,0 +1,183 @@
+package com.vg.apng;
+
+import java.awt.Graphics;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Convert between {@link BufferedImage} and {@link Gray}. RGB types are reduced to luma with integer BT.601 weights,
+ * {@code (77 R + 150 G + 29 B + 128) >> 8}, with alpha composited over black, exactly like Java2D draws them onto a
+ * gray image. Java2D's native loops are faster on a single thread, so images are only converted here when they are
+ * large enough to be split into row stripes across a multi-threaded fork-join pool; everything else is drawn.
+ */
+class ImageConverter {
+    private static final int STRIPE_PIXELS = 1 << 16;
+    private static final int PARALLEL_THRESHOLD = 1 << 18;
+
+    private static final ColorModel GRAY = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_GRAY),
+            new int[] { 8 }, false, true, Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
+
+    static Gray toGray(BufferedImage b) {
+        return toGray(b, ForkJoinPool.commonPool(), PARALLEL_THRESHOLD);
+    }
+
+    /**
+     * @param pool the fork-join pool to convert stripes on
+     * @param parallelThreshold the pixel count from which images are converted on the raster instead of drawn
+     */
+    static Gray toGray(BufferedImage b, ForkJoinPool pool, int parallelThreshold) {
+        int width = b.getWidth();
+        int height = b.getHeight();
+        Raster raster = b.getRaster();
+        if (b.getType() == BufferedImage.TYPE_BYTE_GRAY) {
+            byte[] gray = ((DataBufferByte) raster.getDataBuffer()).getData();
+            if (gray.length == width * height && raster.getParent() == null) {
+                return new Gray(width, height, gray);
+            }
+            return fromComponents(raster, false, null);
+        }
+        if (pool.getParallelism() < 2 || (long) width * height < parallelThreshold) {
+            return redraw(b);
+        }
+        switch (b.getType()) {
+        case BufferedImage.TYPE_INT_RGB:
+            return fromPacked(raster, false, pool);
+        case BufferedImage.TYPE_INT_ARGB:
+            return fromPacked(raster, true, pool);
+        case BufferedImage.TYPE_3BYTE_BGR:
+            return fromComponents(raster, false, pool);
+        case BufferedImage.TYPE_4BYTE_ABGR:
+            return fromComponents(raster, true, pool);
+        default:
+            return redraw(b);
+        }
+    }
+
+    /**
+     * @return a TYPE_BYTE_GRAY image sharing the pixel array of {@code gray}, or null if its pixels are off-heap
+     */
+    static BufferedImage view(Gray gray) {
+        if (!gray.data.hasArray()) {
+            return null;
+        }
+        DataBufferByte buffer = new DataBufferByte(gray.data.array(), gray.width * gray.height,
+                gray.data.arrayOffset());
+        WritableRaster raster = Raster.createInterleavedRaster(buffer, gray.width, gray.height, gray.width, 1,
+                new int[] { 0 }, null);
+        return new BufferedImage(GRAY, raster, false, null);
+    }
+
+    private static Gray redraw(BufferedImage b) {
+        BufferedImage g = new BufferedImage(b.getWidth(), b.getHeight(), BufferedImage.TYPE_BYTE_GRAY);
+        Graphics graphics = g.getGraphics();
+        try {
+            graphics.drawImage(b, 0, 0, b.getWidth(), b.getHeight(), null);
+        } finally {
+            graphics.dispose();
+        }
+        byte[] data = ((DataBufferByte) g.getRaster().getDataBuffer()).getData();
+        return new Gray(b.getWidth(), b.getHeight(), data);
+    }
+
+    private static Gray fromPacked(Raster raster, final boolean alpha, ForkJoinPool pool) {
+        final int width = raster.getWidth();
+        SinglePixelPackedSampleModel sm = (SinglePixelPackedSampleModel) raster.getSampleModel();
+        DataBufferInt db = (DataBufferInt) raster.getDataBuffer();
+        final int[] src = db.getData();
+        final int stride = sm.getScanlineStride();
+        final int origin = db.getOffset() - raster.getSampleModelTranslateY() * stride
+                - raster.getSampleModelTranslateX();
+        final byte[] dst = new byte[width * raster.getHeight()];
+        Stripes.run(pool, raster.getHeight(), Math.max(1, STRIPE_PIXELS / width), new Stripes.Body() {
+            @Override
+            public void run(int stripe, int from, int to) {
+                for (int y = from; y < to; y++) {
+                    packedRow(src, origin + y * stride, dst, y * width, width, alpha);
+                }
+            }
+        });
+        return new Gray(width, raster.getHeight(), dst);
+    }
+
+    private static Gray fromComponents(Raster raster, final boolean alpha, ForkJoinPool pool) {
+        final int width = raster.getWidth();
+        ComponentSampleModel sm = (ComponentSampleModel) raster.getSampleModel();
+        DataBufferByte db = (DataBufferByte) raster.getDataBuffer();
+        final byte[] src = db.getData();
+        final int stride = sm.getScanlineStride();
+        final int pixelStride = sm.getPixelStride();
+        final int origin = db.getOffset() - raster.getSampleModelTranslateY() * stride
+                - raster.getSampleModelTranslateX() * pixelStride;
+        final int[] bands = sm.getBandOffsets();
+        final byte[] dst = new byte[width * raster.getHeight()];
+        Stripes.run(pool, raster.getHeight(), Math.max(1, STRIPE_PIXELS / width), new Stripes.Body() {
+            @Override
+            public void run(int stripe, int from, int to) {
+                for (int y = from; y < to; y++) {
+                    componentRow(src, origin + y * stride, pixelStride, bands, dst, y * width, width, alpha);
+                }
+            }
+        });
+        return new Gray(width, raster.getHeight(), dst);
+    }
+
+    private static void packedRow(int[] src, int s, byte[] dst, int d, int width, boolean alpha) {
+        if (alpha) {
+            for (int x = 0; x < width; x++) {
+                int p = src[s + x];
+                dst[d + x] = (byte) over(luma((p >> 16) & 0xff, (p >> 8) & 0xff, p & 0xff), p >>> 24);
+            }
+        } else {
+            for (int x = 0; x < width; x++) {
+                int p = src[s + x];
+                dst[d + x] = (byte) luma((p >> 16) & 0xff, (p >> 8) & 0xff, p & 0xff);
+            }
+        }
+    }
+
+    private static void componentRow(byte[] src, int s, int pixelStride, int[] bands, byte[] dst, int d, int width,
+            boolean alpha) {
+        int r = s + bands[0];
+        if (bands.length == 1) {
+            for (int x = 0; x < width; x++, r += pixelStride) {
+                dst[d + x] = src[r];
+            }
+            return;
+        }
+        int g = s + bands[1];
+        int b = s + bands[2];
+        if (alpha) {
+            int a = s + bands[3];
+            for (int x = 0; x < width; x++, r += pixelStride, g += pixelStride, b += pixelStride, a += pixelStride) {
+                dst[d + x] = (byte) over(luma(src[r] & 0xff, src[g] & 0xff, src[b] & 0xff), src[a] & 0xff);
+            }
+        } else {
+            for (int x = 0; x < width; x++, r += pixelStride, g += pixelStride, b += pixelStride) {
+                dst[d + x] = (byte) luma(src[r] & 0xff, src[g] & 0xff, src[b] & 0xff);
+            }
+        }
+    }
+
+    static int luma(int r, int g, int b) {
+        return (77 * r + 150 * g + 29 * b + 128) >> 8;
+    }
+
+    /**
+     * @return {@code value} composited over black with coverage {@code alpha}, rounded
+     */
+    private static int over(int value, int alpha) {
+        int t = value * alpha + 128;
+        return (t + (t >> 8)) >> 8;
+    }
+}
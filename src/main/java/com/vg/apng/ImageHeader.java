@@ -0,0 +1,92 @@
+package com.vg.apng;
+
+import static com.vg.apng.APNG.IHDR_SIG;
+import static com.vg.apng.APNG.PLTE_SIG;
+import static com.vg.apng.APNG.acTL_SIG;
+import static com.vg.apng.APNG.tRNS_SIG;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The chunks in front of the first frame that matter for decoding: IHDR, acTL, PLTE and tRNS.
+ */
+class ImageHeader {
+    public int width;
+    public int height;
+    public int bitDepth = 8;
+    public int colorType;
+    public int frameCount = -1;
+    public int loopCount;
+    /** The gray sample value declared transparent by tRNS, -1 if none. */
+    public int transparentGray = -1;
+    /** The gray level of every palette entry, null if there is no PLTE. */
+    public byte[] palette;
+
+    /**
+     * @param type a chunk type
+     * @return true if {@link #read(int, ByteBuffer)} wants the body of chunks of that type
+     */
+    static boolean isHeaderChunk(int type) {
+        return type == IHDR_SIG || type == acTL_SIG || type == PLTE_SIG || type == tRNS_SIG;
+    }
+
+    /**
+     * Take in a header chunk.
+     * @param type the chunk type
+     * @param body the chunk body
+     */
+    void read(int type, ByteBuffer body) {
+        if (type == IHDR_SIG) {
+            width = body.getInt();
+            height = body.getInt();
+            bitDepth = body.get() & 0xff;
+            colorType = body.get() & 0xff;
+        } else if (type == acTL_SIG) {
+            frameCount = body.getInt();
+            loopCount = body.getInt();
+        } else if (type == PLTE_SIG) {
+            palette = new byte[body.remaining() / 3];
+            for (int i = 0; i < palette.length; i++) {
+                int r = body.get() & 0xff;
+                int g = body.get() & 0xff;
+                int b = body.get() & 0xff;
+                palette[i] = (byte) ((r * 299 + g * 587 + b * 114 + 500) / 1000);
+            }
+        } else if (type == tRNS_SIG && colorType == 0 && body.remaining() >= 2) {
+            int sample = body.getShort() & 0xffff;
+            transparentGray = bitDepth < 8 ? sample * (255 / ((1 << bitDepth) - 1)) : sample;
+        }
+    }
+
+    /**
+     * @return the 8 bit gray level of every sample value, null if samples already are 8 bit gray levels
+     * @throws RuntimeException if the color type or bit depth is not grayscale or indexed with at most 8 bits
+     */
+    byte[] sampleToGray() {
+        if (colorType == PixelFormat.COLOR_GRAY && bitDepth == 8) {
+            return null;
+        }
+        if (bitDepth != 1 && bitDepth != 2 && bitDepth != 4 && bitDepth != 8) {
+            throw new RuntimeException("unsupported bit depth " + bitDepth);
+        }
+        byte[] lut = new byte[1 << bitDepth];
+        if (colorType == PixelFormat.COLOR_GRAY) {
+            int step = 255 / ((1 << bitDepth) - 1);
+            for (int i = 0; i < lut.length; i++) {
+                lut[i] = (byte) (i * step);
+            }
+        } else if (colorType == PixelFormat.COLOR_PALETTE) {
+            if (palette == null) {
+                throw new RuntimeException("PLTE not found");
+            }
+            System.arraycopy(palette, 0, lut, 0, Math.min(palette.length, lut.length));
+        } else {
+            throw new RuntimeException("unsupported color type " + colorType);
+        }
+        return lut;
+    }
+
+    boolean isAnimated() {
+        return frameCount >= 0;
+    }
+}
@@ -0,0 +1,192 @@
+package com.vg.apng;
+
+/**
+ * PNG scanline filters working in place on primitive arrays. A row is passed as {@code len} bytes starting at
+ * {@code off}; the previous row is the already reconstructed (or raw) row above it, all zeros for the first row.
+ *
+ * @see <a href="https://www.w3.org/TR/PNG/#9Filters">PNG filtering</a>
+ */
+class PNGFilter {
+    public static final int NONE = 0;
+    public static final int SUB = 1;
+    public static final int UP = 2;
+    public static final int AVERAGE = 3;
+    public static final int PAETH = 4;
+
+    private PNGFilter() {
+    }
+
+    /**
+     * Reconstruct a filtered row in place.
+     * @param type the filter type byte of the row
+     * @param row the filtered row, replaced by the raw row
+     * @param off the offset of the first byte of the row (after the filter type byte)
+     * @param prev the raw previous row
+     * @param prevOff the offset of the first byte of the previous row
+     * @param len the number of bytes in a row
+     * @param bpp the number of bytes per complete pixel, at least 1
+     */
+    static void unfilter(int type, byte[] row, int off, byte[] prev, int prevOff, int len, int bpp) {
+        if (bpp == 1) {
+            unfilter1(type, row, off, prev, prevOff, len);
+            return;
+        }
+        switch (type) {
+        case NONE:
+            break;
+        case SUB:
+            for (int i = bpp; i < len; i++) {
+                row[off + i] += row[off + i - bpp];
+            }
+            break;
+        case UP:
+            for (int i = 0; i < len; i++) {
+                row[off + i] += prev[prevOff + i];
+            }
+            break;
+        case AVERAGE:
+            for (int i = 0; i < bpp; i++) {
+                row[off + i] += (prev[prevOff + i] & 0xff) >>> 1;
+            }
+            for (int i = bpp; i < len; i++) {
+                row[off + i] += ((row[off + i - bpp] & 0xff) + (prev[prevOff + i] & 0xff)) >>> 1;
+            }
+            break;
+        case PAETH:
+            for (int i = 0; i < bpp; i++) {
+                row[off + i] += prev[prevOff + i];
+            }
+            for (int i = bpp; i < len; i++) {
+                int a = row[off + i - bpp] & 0xff;
+                int b = prev[prevOff + i] & 0xff;
+                int c = prev[prevOff + i - bpp] & 0xff;
+                row[off + i] += paeth(a, b, c);
+            }
+            break;
+        default:
+            throw new RuntimeException("unsupported filter type " + type);
+        }
+    }
+
+    /**
+     * {@link #unfilter} for one byte per pixel, the case of every grayscale bit depth up to 8. The left and upper
+     * left neighbours are carried in locals, which keeps the serial Sub, Average and Paeth chains free of reloads.
+     */
+    private static void unfilter1(int type, byte[] row, int off, byte[] prev, int prevOff, int len) {
+        int end = off + len;
+        switch (type) {
+        case NONE:
+            break;
+        case SUB: {
+            int a = 0;
+            for (int i = off; i < end; i++) {
+                a = (row[i] + a) & 0xff;
+                row[i] = (byte) a;
+            }
+            break;
+        }
+        case UP:
+            for (int i = off, j = prevOff; i < end; i++, j++) {
+                row[i] += prev[j];
+            }
+            break;
+        case AVERAGE: {
+            int a = 0;
+            for (int i = off, j = prevOff; i < end; i++, j++) {
+                a = (row[i] + ((a + (prev[j] & 0xff)) >>> 1)) & 0xff;
+                row[i] = (byte) a;
+            }
+            break;
+        }
+        case PAETH: {
+            int a = 0;
+            int c = 0;
+            for (int i = off, j = prevOff; i < end; i++, j++) {
+                int b = prev[j] & 0xff;
+                a = (row[i] + paeth(a, b, c)) & 0xff;
+                row[i] = (byte) a;
+                c = b;
+            }
+            break;
+        }
+        default:
+            throw new RuntimeException("unsupported filter type " + type);
+        }
+    }
+
+    /**
+     * Filter a raw row.
+     * @param type the filter type to apply
+     * @param raw the raw row
+     * @param off the offset of the first byte of the raw row
+     * @param prev the raw previous row
+     * @param prevOff the offset of the first byte of the previous row
+     * @param out the buffer receiving the filtered row (without the filter type byte)
+     * @param outOff the offset in {@code out}
+     * @param len the number of bytes in a row
+     * @param bpp the number of bytes per complete pixel, at least 1
+     */
+    static void filter(int type, byte[] raw, int off, byte[] prev, int prevOff, byte[] out, int outOff, int len,
+            int bpp) {
+        switch (type) {
+        case NONE:
+            System.arraycopy(raw, off, out, outOff, len);
+            break;
+        case SUB:
+            System.arraycopy(raw, off, out, outOff, bpp);
+            for (int i = bpp; i < len; i++) {
+                out[outOff + i] = (byte) (raw[off + i] - raw[off + i - bpp]);
+            }
+            break;
+        case UP:
+            for (int i = 0; i < len; i++) {
+                out[outOff + i] = (byte) (raw[off + i] - prev[prevOff + i]);
+            }
+            break;
+        case AVERAGE:
+            for (int i = 0; i < bpp; i++) {
+                out[outOff + i] = (byte) (raw[off + i] - ((prev[prevOff + i] & 0xff) >>> 1));
+            }
+            for (int i = bpp; i < len; i++) {
+                int avg = ((raw[off + i - bpp] & 0xff) + (prev[prevOff + i] & 0xff)) >>> 1;
+                out[outOff + i] = (byte) (raw[off + i] - avg);
+            }
+            break;
+        case PAETH:
+            for (int i = 0; i < bpp; i++) {
+                out[outOff + i] = (byte) (raw[off + i] - prev[prevOff + i]);
+            }
+            for (int i = bpp; i < len; i++) {
+                int a = raw[off + i - bpp] & 0xff;
+                int b = prev[prevOff + i] & 0xff;
+                int c = prev[prevOff + i - bpp] & 0xff;
+                out[outOff + i] = (byte) (raw[off + i] - paeth(a, b, c));
+            }
+            break;
+        default:
+            throw new IllegalArgumentException("unsupported filter type " + type);
+        }
+    }
+
+    /**
+     * The Paeth predictor.
+     * @param a the left byte
+     * @param b the byte above
+     * @param c the byte above left
+     * @return the one of a, b, c closest to {@code a + b - c}
+     */
+    static int paeth(int a, int b, int c) {
+        int pa = b - c;
+        int pb = a - c;
+        int pc = pa + pb;
+        pa = (pa ^ (pa >> 31)) - (pa >> 31);
+        pb = (pb ^ (pb >> 31)) - (pb >> 31);
+        pc = (pc ^ (pc >> 31)) - (pc >> 31);
+        // branch free: pick the closer of a and b (a on ties), then c if it is strictly closer still
+        int m = (pb - pa) >> 31;
+        int ab = a ^ ((a ^ b) & m);
+        int pab = pa ^ ((pa ^ pb) & m);
+        m = (pc - pab) >> 31;
+        return ab ^ ((ab ^ c) & m);
+    }
+}
@@ -0,0 +1,192 @@
+package com.vg.apng;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+
+/**
+ * pigz-style deflate of a single large buffer on several threads. The input is split into blocks which are
+ * compressed independently as raw deflate streams. Every block is primed with the last 32 KB of the block before it
+ * as a preset dictionary, so matches still reach back across block boundaries, and every block but the last ends on
+ * a sync flush, so the raw streams can simply be concatenated. The zlib header and the Adler-32 of the whole input,
+ * combined from the per-block checksums, wrap the result into one valid zlib stream.
+ *
+ * @see <a href="https://zlib.net/pigz/">pigz</a>
+ */
+class ParallelDeflate {
+    public static final int DEFAULT_BLOCK_SIZE = 128 * 1024;
+    public static final int DICTIONARY_SIZE = 32 * 1024;
+
+    private static final int ADLER_BASE = 65521;
+
+    /**
+     * Compress into a zlib stream.
+     * @param in the data to compress, consumed completely
+     * @param level the deflate level
+     * @param strategy the deflate strategy
+     * @param blockSize the number of input bytes per block
+     * @param pool the pool to compress the blocks on, also when called from a task of another pool
+     * @return the zlib stream
+     */
+    static ByteBuffer compress(ByteBuffer in, int level, int strategy, int blockSize, ForkJoinPool pool) {
+        ByteBuffer data = in.slice();
+        final List<Block> blocks = new ArrayList<Block>();
+        for (int off = 0; off < data.limit(); off += blockSize) {
+            int len = Math.min(blockSize, data.limit() - off);
+            blocks.add(new Block(data, off, len, level, strategy, off + len == data.limit()));
+        }
+
+        if (ForkJoinTask.getPool() == pool) {
+            ForkJoinTask.invokeAll(blocks);
+        } else {
+            pool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(blocks);
+                }
+            });
+        }
+        in.position(in.limit());
+
+        int size = 2 + 4;
+        long adler = 1;
+        for (Block block : blocks) {
+            size += block.out.size();
+            adler = adler32Combine(adler, block.adler, block.len);
+        }
+
+        ByteBuffer zlib = ByteBuffer.allocate(size);
+        zlib.put((byte) 0x78); // CMF: deflate, 32K window
+        zlib.put(flg(level));
+        for (Block block : blocks) {
+            zlib.put(block.out.buffer(), 0, block.out.size());
+        }
+        zlib.putInt((int) adler);
+        zlib.flip();
+        return zlib;
+    }
+
+    /**
+     * The zlib FLG byte: compression level hint plus the check bits that make the header a multiple of 31.
+     */
+    static byte flg(int level) {
+        int flevel;
+        if (level < 2) {
+            flevel = 0;
+        } else if (level < 6) {
+            flevel = 1;
+        } else if (level == 6 || level == Deflater.DEFAULT_COMPRESSION) {
+            flevel = 2;
+        } else {
+            flevel = 3;
+        }
+        int flg = flevel << 6;
+        flg += 31 - ((0x78 << 8) + flg) % 31;
+        return (byte) flg;
+    }
+
+    /**
+     * Adler-32 of two concatenated pieces of data, as zlib's {@code adler32_combine}.
+     * @param adler1 the checksum of the first piece
+     * @param adler2 the checksum of the second piece
+     * @param len2 the length of the second piece
+     * @return the checksum of both pieces
+     */
+    static long adler32Combine(long adler1, long adler2, long len2) {
+        long rem = len2 % ADLER_BASE;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = (rem * sum1) % ADLER_BASE;
+        sum1 += (adler2 & 0xffff) + ADLER_BASE - 1;
+        sum2 += ((adler1 >> 16) & 0xffff) + ((adler2 >> 16) & 0xffff) + ADLER_BASE - rem;
+        if (sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+        if (sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+        if (sum2 >= (ADLER_BASE << 1)) sum2 -= (ADLER_BASE << 1);
+        if (sum2 >= ADLER_BASE) sum2 -= ADLER_BASE;
+        return sum1 | (sum2 << 16);
+    }
+
+    private static class Block extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final ByteBuffer in;
+        private final int off;
+        private final int len;
+        private final int level;
+        private final int strategy;
+        private final boolean last;
+
+        private Output out;
+        private long adler;
+
+        Block(ByteBuffer in, int off, int len, int level, int strategy, boolean last) {
+            this.in = in;
+            this.off = off;
+            this.len = len;
+            this.level = level;
+            this.strategy = strategy;
+            this.last = last;
+        }
+
+        @Override
+        protected void compute() {
+            ByteBuffer data = slice(off, len);
+
+            Adler32 checksum = new Adler32();
+            checksum.update(data.duplicate());
+            adler = checksum.getValue();
+
+            CodecContext ctx = CodecContext.acquire();
+            Deflater deflater = ctx.rawDeflater(level, strategy);
+            try {
+                int dictLen = Math.min(DICTIONARY_SIZE, off);
+                if (dictLen > 0) {
+                    deflater.setDictionary(slice(off - dictLen, dictLen));
+                }
+                deflater.setInput(data);
+
+                out = new Output(len / 2 + 64);
+                byte[] buf = new byte[0x2000];
+                if (last) {
+                    deflater.finish();
+                    while (!deflater.finished()) {
+                        out.write(buf, 0, deflater.deflate(buf));
+                    }
+                } else {
+                    int n;
+                    do {
+                        n = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+                        out.write(buf, 0, n);
+                    } while (n == buf.length);
+                }
+            } finally {
+                ctx.release();
+            }
+        }
+
+        private ByteBuffer slice(int from, int length) {
+            ByteBuffer b = in.duplicate();
+            b.limit(from + length);
+            b.position(from);
+            return b;
+        }
+    }
+
+    /**
+     * A ByteArrayOutputStream that exposes its buffer, so blocks are copied once into the final stream.
+     */
+    private static class Output extends ByteArrayOutputStream {
+        Output(int size) {
+            super(size);
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+    }
+}
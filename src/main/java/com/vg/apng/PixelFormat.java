@@ -0,0 +1,141 @@
+package com.vg.apng;
+
+import java.awt.Rectangle;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The narrowest PNG pixel format that holds every gray level of an animation exactly: 1, 2 or 4 bit grayscale when
+ * all levels lie on that depth's scale (0 and 255, multiples of 85 or multiples of 17), a 1, 2 or 4 bit palette when
+ * there are at most 16 arbitrary levels, and 8 bit grayscale otherwise. Narrow samples are packed several to a byte,
+ * so filtering and deflate work on a half to an eighth of the data.
+ */
+class PixelFormat {
+    static final int COLOR_GRAY = 0;
+    static final int COLOR_PALETTE = 3;
+    static final PixelFormat GRAY8 = new PixelFormat(8, COLOR_GRAY, null, null);
+
+    private static final int MAX_PALETTE = 16;
+
+    final int bitDepth;
+    final int colorType;
+    /** The gray level of every palette index, null unless indexed. */
+    final byte[] palette;
+    /** The sample or palette index of every gray level, -1 for levels the format can not hold; null for 8 bit. */
+    private final int[] samples;
+
+    private PixelFormat(int bitDepth, int colorType, byte[] palette, int[] samples) {
+        this.bitDepth = bitDepth;
+        this.colorType = colorType;
+        this.palette = palette;
+        this.samples = samples;
+    }
+
+    /**
+     * Scan the histogram of all frames and pick the narrowest format.
+     * @param frames the frames that will be written
+     * @return the format, {@link #GRAY8} if more than 16 levels are used
+     */
+    static PixelFormat choose(Gray[] frames) {
+        boolean[] used = new boolean[256];
+        int count = 0;
+        byte[] buf = new byte[8192];
+        for (Gray gray : frames) {
+            ByteBuffer data = gray.getData();
+            while (data.hasRemaining()) {
+                int n = Math.min(buf.length, data.remaining());
+                data.get(buf, 0, n);
+                for (int i = 0; i < n; i++) {
+                    int v = buf[i] & 0xff;
+                    if (!used[v]) {
+                        used[v] = true;
+                        if (++count > MAX_PALETTE) {
+                            return GRAY8;
+                        }
+                    }
+                }
+            }
+        }
+
+        int grayDepth = 8;
+        for (int depth = 4; depth >= 1; depth >>= 1) {
+            int step = 255 / ((1 << depth) - 1);
+            boolean fits = true;
+            for (int v = 0; v < 256 && fits; v++) {
+                fits = !used[v] || v % step == 0;
+            }
+            if (fits) {
+                grayDepth = depth;
+            }
+        }
+        int paletteDepth = count <= 2 ? 1 : count <= 4 ? 2 : 4;
+
+        int[] samples = new int[256];
+        Arrays.fill(samples, -1);
+        if (grayDepth <= paletteDepth) {
+            int step = 255 / ((1 << grayDepth) - 1);
+            for (int v = 0; v < 256; v += step) {
+                samples[v] = v / step;
+            }
+            return new PixelFormat(grayDepth, COLOR_GRAY, null, samples);
+        }
+        byte[] palette = new byte[count];
+        int index = 0;
+        for (int v = 0; v < 256; v++) {
+            if (used[v]) {
+                palette[index] = (byte) v;
+                samples[v] = index++;
+            }
+        }
+        return new PixelFormat(paletteDepth, COLOR_PALETTE, palette, samples);
+    }
+
+    boolean isGray8() {
+        return samples == null;
+    }
+
+    /**
+     * @param width the number of pixels in a row
+     * @return the number of bytes of a packed row, without the filter type byte
+     */
+    int rowBytes(int width) {
+        return (width * bitDepth + 7) >> 3;
+    }
+
+    /**
+     * Pack a rectangle of a frame, most significant bits first as PNG requires, with every row padded to a byte.
+     * @param out receives {@code rowBytes(r.width) * r.height} bytes
+     * @throws IllegalArgumentException if the frame uses a gray level the format can not hold
+     */
+    void pack(Gray gray, Rectangle r, byte[] out) {
+        ByteBuffer src = gray.getData();
+        int perByte = 8 / bitDepth;
+        int o = 0;
+        for (int y = 0; y < r.height; y++) {
+            int base = (r.y + y) * gray.width + r.x;
+            int acc = 0;
+            int n = 0;
+            for (int x = 0; x < r.width; x++) {
+                int s = samples[src.get(base + x) & 0xff];
+                if (s < 0) {
+                    throw new IllegalArgumentException("gray level " + (src.get(base + x) & 0xff)
+                            + " does not fit the " + this);
+                }
+                acc = acc << bitDepth | s;
+                if (++n == perByte) {
+                    out[o++] = (byte) acc;
+                    acc = 0;
+                    n = 0;
+                }
+            }
+            if (n > 0) {
+                out[o++] = (byte) (acc << (8 - n * bitDepth));
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return bitDepth + " bit " + (colorType == COLOR_PALETTE ? "palette" : "grayscale");
+    }
+}
@@ -0,0 +1,377 @@
+package com.vg.apng;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * A chain of point operations on {@link Gray} images. Operations are only recorded when added; {@link #apply(Gray,
+ * Gray)} composes them into a single 256 entry lookup table and maps every pixel once, however long the chain is.
+ * <p>
+ * Operations that depend on the image content, such as {@link #stretch(int)} and {@link #equalize()}, are computed
+ * from one histogram of the source: the histogram seen by a later operation is derived by pushing the source
+ * histogram through the table composed so far, so the image is never scanned more than twice. Large images are
+ * scanned in stripes on a fork-join pool, each stripe counting into its own histogram before they are merged.
+ * <p>
+ * A chain without content dependent operations caches its table and can be applied to any number of images.
+ * Not thread-safe.
+ */
+public class PointOps {
+    private static final int STRIPE_PIXELS = 1 << 16;
+
+    private final List<Op> ops = new ArrayList<Op>();
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
+    int parallelThreshold = 1 << 18;
+    private byte[] cached;
+
+    /**
+     * Scan and map images of a quarter megapixel and more in stripes on the given pool.
+     * @param pool the pool to run stripes on, the common pool by default; null to always run on the caller's thread
+     */
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Map pixels through a caller supplied table.
+     * @param table 256 output values indexed by the unsigned input value
+     * @return this
+     */
+    public PointOps lut(byte[] table) {
+        if (table.length != 256) {
+            throw new IllegalArgumentException("table must have 256 entries, got " + table.length);
+        }
+        final byte[] copy = table.clone();
+        return add(new Op(false) {
+            @Override
+            byte[] table(int[] hist) {
+                return copy;
+            }
+        });
+    }
+
+    /**
+     * Map values linearly from {@code [lo, hi]} onto {@code [0, 255]}, clipping values outside the range.
+     * @return this
+     */
+    public PointOps stretch(final int lo, final int hi) {
+        if (lo < 0 || hi > 255 || lo >= hi) {
+            throw new IllegalArgumentException("bad range " + lo + ".." + hi);
+        }
+        return add(new Op(false) {
+            @Override
+            byte[] table(int[] hist) {
+                return stretchTable(lo, hi);
+            }
+        });
+    }
+
+    /**
+     * Stretch contrast so that the darkest and the brightest {@code clipPercent} percent of the pixels saturate to
+     * black and white. This is what {@link Gray#equalizeHist()} does with 2 percent.
+     * @param clipPercent the share of pixels to clip on either side, 0 to 49
+     * @return this
+     */
+    public PointOps stretch(final int clipPercent) {
+        if (clipPercent < 0 || clipPercent >= 50) {
+            throw new IllegalArgumentException("clip percent must be 0..49, got " + clipPercent);
+        }
+        return add(new Op(true) {
+            @Override
+            byte[] table(int[] hist) {
+                return autoStretchTable(hist, clipPercent);
+            }
+        });
+    }
+
+    /**
+     * Apply a power curve, {@code 255 * (v / 255)^gamma}. Values below 1 brighten the image.
+     * @return this
+     */
+    public PointOps gamma(final double gamma) {
+        if (!(gamma > 0) || Double.isInfinite(gamma)) {
+            throw new IllegalArgumentException("gamma must be positive, got " + gamma);
+        }
+        return add(new Op(false) {
+            @Override
+            byte[] table(int[] hist) {
+                byte[] t = new byte[256];
+                for (int i = 0; i < 256; i++) {
+                    t[i] = (byte) Math.round(255 * Math.pow(i / 255.0, gamma));
+                }
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Map values of at least {@code level} to white and the rest to black.
+     * @return this
+     */
+    public PointOps threshold(final int level) {
+        if (level < 0 || level > 256) {
+            throw new IllegalArgumentException("level must be 0..256, got " + level);
+        }
+        return add(new Op(false) {
+            @Override
+            byte[] table(int[] hist) {
+                byte[] t = new byte[256];
+                for (int i = level; i < 256; i++) {
+                    t[i] = (byte) 255;
+                }
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Histogram equalization: map every value to its cumulative share of the pixels. This is what
+     * {@link Gray#equalizeHist1()} does.
+     * @return this
+     */
+    public PointOps equalize() {
+        return add(new Op(true) {
+            @Override
+            byte[] table(int[] hist) {
+                return equalizeTable(hist);
+            }
+        });
+    }
+
+    /**
+     * Compose the chain into one table for the given source image.
+     * @return 256 output values indexed by the unsigned input value
+     */
+    public byte[] table(Gray src) {
+        if (cached != null) {
+            return cached.clone();
+        }
+        return compose(src).clone();
+    }
+
+    /**
+     * Apply the chain to an image in place.
+     * @return {@code gray}
+     */
+    public Gray apply(Gray gray) {
+        return apply(gray, gray);
+    }
+
+    /**
+     * Apply the chain into an existing image, so that a frame buffer can be reused for every frame.
+     * @param src the image to map
+     * @param dst the image receiving the result, of the same size as {@code src}; may be {@code src} itself
+     * @return {@code dst}
+     */
+    public Gray apply(Gray src, Gray dst) {
+        if (dst.width != src.width || dst.height != src.height) {
+            throw new IllegalArgumentException(
+                    "dst is " + dst.width + "x" + dst.height + ", expected " + src.width + "x" + src.height);
+        }
+        if (dst.data.isReadOnly()) {
+            throw new IllegalArgumentException("dst is read-only");
+        }
+        final byte[] table = compose(src);
+        if (src == dst && isIdentity(table)) {
+            return dst;
+        }
+        final ByteBuffer in = src.getData();
+        final ByteBuffer out = dst.getData();
+        Stripes.run(poolFor(src), src.width * src.height, STRIPE_PIXELS, new Stripes.Body() {
+            @Override
+            public void run(int stripe, int from, int to) {
+                map(table, in, out, from, to);
+            }
+        });
+        return dst;
+    }
+
+    /**
+     * Count the values of an image, in stripes on the pool for large images.
+     * @return 256 counts indexed by the unsigned value
+     */
+    public int[] histogram(Gray src) {
+        final ByteBuffer in = src.getData();
+        int n = src.width * src.height;
+        final int[][] stripes = new int[Stripes.count(n, STRIPE_PIXELS)][];
+        Stripes.run(poolFor(src), n, STRIPE_PIXELS, new Stripes.Body() {
+            @Override
+            public void run(int stripe, int from, int to) {
+                stripes[stripe] = count(in, from, to);
+            }
+        });
+        int[] hist = stripes[0];
+        for (int s = 1; s < stripes.length; s++) {
+            int[] h = stripes[s];
+            for (int i = 0; i < 256; i++) {
+                hist[i] += h[i];
+            }
+        }
+        return hist;
+    }
+
+    private PointOps add(Op op) {
+        ops.add(op);
+        cached = null;
+        return this;
+    }
+
+    private ForkJoinPool poolFor(Gray src) {
+        return (long) src.width * src.height >= parallelThreshold ? pool : null;
+    }
+
+    private byte[] compose(Gray src) {
+        if (cached != null) {
+            return cached;
+        }
+        boolean dependent = false;
+        for (Op op : ops) {
+            dependent |= op.needsHistogram;
+        }
+        int[] hist = dependent ? histogram(src) : null;
+
+        byte[] table = identity();
+        for (Op op : ops) {
+            byte[] t = op.table(op.needsHistogram ? mapHistogram(hist, table) : null);
+            for (int i = 0; i < 256; i++) {
+                table[i] = t[table[i] & 0xff];
+            }
+        }
+        if (!dependent) {
+            cached = table;
+        }
+        return table;
+    }
+
+    private static int[] mapHistogram(int[] hist, byte[] table) {
+        int[] mapped = new int[256];
+        for (int i = 0; i < 256; i++) {
+            mapped[table[i] & 0xff] += hist[i];
+        }
+        return mapped;
+    }
+
+    private static int[] count(ByteBuffer in, int from, int to) {
+        int[] hist = new int[256];
+        if (in.hasArray()) {
+            byte[] a = in.array();
+            int off = in.arrayOffset();
+            for (int i = from + off, end = to + off; i < end; i++) {
+                hist[a[i] & 0xff]++;
+            }
+        } else {
+            for (int i = from; i < to; i++) {
+                hist[in.get(i) & 0xff]++;
+            }
+        }
+        return hist;
+    }
+
+    private static void map(byte[] table, ByteBuffer in, ByteBuffer out, int from, int to) {
+        if (in.hasArray() && out.hasArray()) {
+            byte[] a = in.array();
+            byte[] b = out.array();
+            int d = out.arrayOffset() - in.arrayOffset();
+            for (int i = from + in.arrayOffset(), end = to + in.arrayOffset(); i < end; i++) {
+                b[i + d] = table[a[i] & 0xff];
+            }
+        } else {
+            for (int i = from; i < to; i++) {
+                out.put(i, table[in.get(i) & 0xff]);
+            }
+        }
+    }
+
+    private static byte[] identity() {
+        byte[] t = new byte[256];
+        for (int i = 0; i < 256; i++) {
+            t[i] = (byte) i;
+        }
+        return t;
+    }
+
+    private static boolean isIdentity(byte[] table) {
+        for (int i = 0; i < 256; i++) {
+            if ((table[i] & 0xff) != i) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] stretchTable(int lo, int hi) {
+        byte[] t = new byte[256];
+        int range = hi - lo;
+        for (int i = 0; i < 256; i++) {
+            int v = Math.min(Math.max(i, lo), hi) - lo;
+            t[i] = (byte) ((v * 255 + range / 2) / range);
+        }
+        return t;
+    }
+
+    static byte[] autoStretchTable(int[] hist, int clipPercent) {
+        long total = 0;
+        for (int h : hist) {
+            total += h;
+        }
+        long maxCount = total * clipPercent / 100;
+        int black = 0;
+        long counter = 0;
+
+        // count up to maxCount values from the black side of the histogram to find the black point
+        while ((counter < maxCount) && (black < 256)) {
+            counter += hist[black];
+            black++;
+        }
+
+        int white = 255;
+        counter = 0;
+
+        // count up to maxCount values from the white side of the histogram to find the white point
+        while ((counter < maxCount) && (white > 0)) {
+            counter += hist[white];
+            white--;
+        }
+        byte[] lut = new byte[256];
+        int range = white - black;
+        float mult = 255f / range;
+        for (int i = 0; i < lut.length; i++) {
+            int val = i - black;
+            val = Math.max(0, val);
+            val *= mult;
+            val = Math.min(255, val);
+            lut[i] = (byte) val;
+        }
+        return lut;
+    }
+
+    static byte[] equalizeTable(int[] hist) {
+        long total = 0;
+        for (int h : hist) {
+            total += h;
+        }
+        float scale = 255.f / total;
+        int sum = 0;
+        byte[] lut = new byte[256];
+        for (int i = 0; i < 256; i++) {
+            sum += hist[i];
+            lut[i] = (byte) Math.round(sum * scale);
+        }
+        lut[0] = 0;
+        return lut;
+    }
+
+    private abstract static class Op {
+        final boolean needsHistogram;
+
+        Op(boolean needsHistogram) {
+            this.needsHistogram = needsHistogram;
+        }
+
+        /**
+         * @param hist the histogram of the image as this operation sees it, or null if it does not need one
+         */
+        abstract byte[] table(int[] hist);
+    }
+}
@@ -0,0 +1,50 @@
+package com.vg.apng;
+
+/**
+ * The kernels a {@link Resampler} can resize with, from fastest to sharpest.
+ */
+public enum ResampleFilter {
+    /** The closest source pixel, no interpolation. */
+    NEAREST(0),
+    /** The exact average of the source pixels a destination pixel covers; the right choice for downscaling. */
+    BOX(0.5),
+    /** Linear interpolation between the two nearest pixels on each axis, averaging wider when downscaling. */
+    BILINEAR(1),
+    /** Catmull-Rom cubic, sharper than bilinear with slight overshoot at edges. */
+    BICUBIC(2),
+    /** Windowed sinc over three lobes, the sharpest and slowest. */
+    LANCZOS3(3);
+
+    /** Kernel radius in source pixels at scale 1. */
+    final double radius;
+
+    ResampleFilter(double radius) {
+        this.radius = radius;
+    }
+
+    /**
+     * @param x the distance from the sample center
+     * @return the kernel weight at that distance
+     */
+    double weight(double x) {
+        x = Math.abs(x);
+        switch (this) {
+        case BOX:
+            return x <= 0.5 ? 1 : 0;
+        case BILINEAR:
+            return x < 1 ? 1 - x : 0;
+        case BICUBIC:
+            if (x < 1) {
+                return (1.5 * x - 2.5) * x * x + 1;
+            }
+            return x < 2 ? ((-0.5 * x + 2.5) * x - 4) * x + 2 : 0;
+        case LANCZOS3:
+            if (x == 0) {
+                return 1;
+            }
+            return x < 3 ? 3 * Math.sin(Math.PI * x) * Math.sin(Math.PI * x / 3) / (Math.PI * Math.PI * x * x) : 0;
+        default:
+            throw new IllegalStateException(name() + " has no kernel");
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package com.vg.apng;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Resize {@link Gray} images with a separable kernel in fixed point. Per column and per row tap tables are computed
+ * once per size pair and reused while the sizes do not change, so resizing every frame of an animation only pays
+ * for the arithmetic. Rows are first resampled horizontally into an intermediate image, which is then resampled
+ * vertically; nearest neighbour picks pixels in a single pass without one. Large images are split into row stripes
+ * that run on a fork-join pool, each stripe with row buffers kept from one call to the next.
+ * <p>
+ * When downscaling, the kernel is widened to cover every source pixel that falls into a destination pixel, so
+ * large reductions average instead of aliasing. Not thread-safe.
+ */
+public class Resampler {
+    /** Weight precision in bits; weights of a tap table sum to {@code 1 << PRECISION}. */
+    static final int PRECISION = 14;
+    private static final int ROUND = 1 << (PRECISION - 1);
+    private static final int STRIPE_ROWS = 32;
+
+    private final ResampleFilter filter;
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
+    int parallelThreshold = 1 << 18;
+
+    private Taps columns;
+    private Taps rows;
+    private byte[] tmp = new byte[0];
+    /** Per stripe: a source row, a destination row and the accumulators of the vertical pass. */
+    private byte[][] srcRows = new byte[0][];
+    private byte[][] dstRows = new byte[0][];
+    private int[][] accs = new int[0][];
+
+    /**
+     * @param filter the kernel to resample with
+     */
+    public Resampler(ResampleFilter filter) {
+        this.filter = filter;
+    }
+
+    public ResampleFilter getFilter() {
+        return filter;
+    }
+
+    /**
+     * Resample images of a quarter megapixel and more in row stripes on the given pool.
+     * @param pool the pool to run stripes on, the common pool by default; null to always run on the caller's thread
+     */
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * @param src the image to resize
+     * @param width the new width
+     * @param height the new height
+     * @return a new image of the given size, from the pool of {@code src} if it has one
+     */
+    public Gray resize(Gray src, int width, int height) {
+        return resize(src, src.newImage(width, height, src.getDelay()));
+    }
+
+    /**
+     * Resize into an existing image, so that a frame buffer can be reused for every frame.
+     * @param src the image to resize
+     * @param dst the image receiving the result, its size is the target size
+     * @return {@code dst}
+     */
+    public Gray resize(final Gray src, final Gray dst) {
+        if (dst.data.isReadOnly()) {
+            throw new IllegalArgumentException("dst is read-only");
+        }
+        columns = Taps.of(columns, filter, src.width, dst.width);
+        rows = Taps.of(rows, filter, src.height, dst.height);
+        int stripes = Math.max(Stripes.count(src.height, STRIPE_ROWS), Stripes.count(dst.height, STRIPE_ROWS));
+        if (srcRows.length < stripes) {
+            srcRows = Arrays.copyOf(srcRows, stripes);
+            dstRows = Arrays.copyOf(dstRows, stripes);
+            accs = Arrays.copyOf(accs, stripes);
+        }
+
+        ForkJoinPool stripePool = (long) dst.width * dst.height >= parallelThreshold ? pool : null;
+        if (filter == ResampleFilter.NEAREST) {
+            Stripes.run(stripePool, dst.height, STRIPE_ROWS, new Stripes.Body() {
+                @Override
+                public void run(int stripe, int from, int to) {
+                    nearest(src, dst, stripe, from, to);
+                }
+            });
+            return dst;
+        }
+
+        final int tmpSize = src.height * dst.width;
+        if (tmp.length < tmpSize) {
+            tmp = new byte[tmpSize];
+        }
+        // the horizontal pass covers every source row, the vertical pass every destination row
+        Stripes.run(stripePool, src.height, STRIPE_ROWS, new Stripes.Body() {
+            @Override
+            public void run(int stripe, int from, int to) {
+                horizontal(src, dst.width, stripe, from, to);
+            }
+        });
+        Stripes.run(stripePool, dst.height, STRIPE_ROWS, new Stripes.Body() {
+            @Override
+            public void run(int stripe, int from, int to) {
+                vertical(dst, stripe, from, to);
+            }
+        });
+        return dst;
+    }
+
+    private void nearest(Gray src, Gray dst, int stripe, int from, int to) {
+        ByteBuffer in = src.getData();
+        ByteBuffer out = dst.getData();
+        byte[] row = srcRows[stripe] = grow(srcRows[stripe], src.width);
+        byte[] line = dstRows[stripe] = grow(dstRows[stripe], dst.width);
+        int[] start = columns.start;
+        int last = -1;
+        for (int y = from; y < to; y++) {
+            int sy = rows.start[y];
+            if (sy != last) {
+                in.position(sy * src.width);
+                in.get(row, 0, src.width);
+                for (int x = 0; x < dst.width; x++) {
+                    line[x] = row[start[x]];
+                }
+                last = sy;
+            }
+            out.position(y * dst.width);
+            out.put(line, 0, dst.width);
+        }
+    }
+
+    private void horizontal(Gray src, int dstWidth, int stripe, int from, int to) {
+        ByteBuffer in = src.getData();
+        byte[] row = srcRows[stripe] = grow(srcRows[stripe], src.width);
+        Taps t = columns;
+        for (int y = from; y < to; y++) {
+            in.position(y * src.width);
+            in.get(row, 0, src.width);
+            int o = y * dstWidth;
+            for (int x = 0, w = 0; x < dstWidth; x++, w += t.stride) {
+                int s = t.start[x];
+                int sum = ROUND;
+                for (int k = 0, n = t.count[x]; k < n; k++) {
+                    sum += (row[s + k] & 0xff) * t.weights[w + k];
+                }
+                tmp[o + x] = clamp(sum);
+            }
+        }
+    }
+
+    private void vertical(Gray dst, int stripe, int from, int to) {
+        int width = dst.width;
+        ByteBuffer out = dst.getData();
+        byte[] row = dstRows[stripe] = grow(dstRows[stripe], width);
+        int[] acc = accs[stripe];
+        if (acc == null || acc.length < width) {
+            acc = accs[stripe] = new int[width];
+        }
+        Taps t = rows;
+        for (int y = from; y < to; y++) {
+            Arrays.fill(acc, 0, width, ROUND);
+            int w = y * t.stride;
+            for (int k = 0, n = t.count[y]; k < n; k++) {
+                int weight = t.weights[w + k];
+                int o = (t.start[y] + k) * width;
+                for (int x = 0; x < width; x++) {
+                    acc[x] += (tmp[o + x] & 0xff) * weight;
+                }
+            }
+            for (int x = 0; x < width; x++) {
+                row[x] = clamp(acc[x]);
+            }
+            out.position(y * width);
+            out.put(row, 0, width);
+        }
+    }
+
+    /**
+     * @return {@code buf}, or a new array if it is null or shorter than {@code length}
+     */
+    private static byte[] grow(byte[] buf, int length) {
+        return buf != null && buf.length >= length ? buf : new byte[length];
+    }
+
+    private static byte clamp(int sum) {
+        int v = sum >> PRECISION;
+        return (byte) (v < 0 ? 0 : v > 255 ? 255 : v);
+    }
+
+    /**
+     * Source taps and fixed point weights of every destination pixel along one axis.
+     */
+    static class Taps {
+        final ResampleFilter filter;
+        final int srcSize;
+        final int dstSize;
+        final int[] start;
+        final int[] count;
+        /** {@code stride} weights per destination pixel, null for nearest neighbour. */
+        final int[] weights;
+        final int stride;
+
+        private Taps(ResampleFilter filter, int srcSize, int dstSize, int[] start, int[] count, int[] weights,
+                int stride) {
+            this.filter = filter;
+            this.srcSize = srcSize;
+            this.dstSize = dstSize;
+            this.start = start;
+            this.count = count;
+            this.weights = weights;
+            this.stride = stride;
+        }
+
+        /**
+         * @param cached the previous table, returned again if it fits
+         */
+        static Taps of(Taps cached, ResampleFilter filter, int srcSize, int dstSize) {
+            if (cached != null && cached.filter == filter && cached.srcSize == srcSize
+                    && cached.dstSize == dstSize) {
+                return cached;
+            }
+            int[] start = new int[dstSize];
+            int[] count = new int[dstSize];
+            if (filter == ResampleFilter.NEAREST) {
+                // the mapping of Gray.scaleNN, kept exactly
+                float r = (float) (1f / ((double) dstSize / srcSize));
+                for (int i = 0; i < dstSize; i++) {
+                    start[i] = Math.min(srcSize - 1, (int) (i * r));
+                    count[i] = 1;
+                }
+                return new Taps(filter, srcSize, dstSize, start, count, null, 1);
+            }
+
+            double scale = (double) dstSize / srcSize;
+            double stretch = Math.max(1, 1 / scale);
+            double support = filter.radius * stretch;
+            int stride = (int) Math.ceil(2 * support) + 3;
+            int[] weights = new int[dstSize * stride];
+            double[] w = new double[stride];
+            for (int i = 0; i < dstSize; i++) {
+                double center = (i + 0.5) / scale;
+                int lo;
+                int hi;
+                if (filter == ResampleFilter.BOX) {
+                    // exact coverage of [i, i + 1) in source coordinates
+                    double a = i / scale;
+                    double b = Math.min(srcSize, (i + 1) / scale);
+                    lo = Math.min(srcSize - 1, (int) Math.floor(a));
+                    hi = Math.max(lo + 1, Math.min(srcSize, (int) Math.ceil(b)));
+                    for (int j = lo; j < hi; j++) {
+                        w[j - lo] = Math.max(0, Math.min(b, j + 1) - Math.max(a, j));
+                    }
+                    if (hi - lo == 1) {
+                        w[0] = 1;
+                    }
+                } else {
+                    int first = (int) Math.floor(center - support);
+                    int last = (int) Math.ceil(center + support);
+                    lo = Math.max(0, first);
+                    hi = Math.min(srcSize, last + 1);
+                    Arrays.fill(w, 0);
+                    for (int j = first; j <= last; j++) {
+                        double weight = filter.weight((j + 0.5 - center) / stretch);
+                        // taps past the edge repeat the edge pixel
+                        int k = Math.min(hi - 1, Math.max(lo, j)) - lo;
+                        w[k] += weight;
+                    }
+                }
+                start[i] = lo;
+                count[i] = hi - lo;
+                normalize(w, count[i], weights, i * stride);
+            }
+            return new Taps(filter, srcSize, dstSize, start, count, weights, stride);
+        }
+
+        /**
+         * Scale weights to sum exactly to {@code 1 << PRECISION}, putting the rounding error on the largest one.
+         */
+        private static void normalize(double[] w, int n, int[] out, int offset) {
+            double total = 0;
+            for (int k = 0; k < n; k++) {
+                total += w[k];
+            }
+            int sum = 0;
+            int largest = 0;
+            for (int k = 0; k < n; k++) {
+                int v = (int) Math.round(w[k] / total * (1 << PRECISION));
+                out[offset + k] = v;
+                sum += v;
+                if (v > out[offset + largest]) {
+                    largest = k;
+                }
+            }
+            out[offset + largest] += (1 << PRECISION) - sum;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.vg.apng;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Apply a {@link FilterStrategy} to whole frames. Raw rows and candidate filtered rows live in scratch buffers that
+ * are kept across rows and frames, so filtering allocates nothing. Not thread-safe.
+ */
+class ScanlineFilter {
+    private static final int FILTER_COUNT = 5;
+    private static final int TRIAL_DICTIONARY_ROWS = 4;
+
+    private final FilterStrategy strategy;
+    private final int level;
+
+    private byte[] prev = new byte[0];
+    private byte[] cur = new byte[0];
+    private final byte[][] candidates = new byte[FILTER_COUNT][];
+    private Deflater trial;
+    private byte[] trialOut;
+
+    /**
+     * @param strategy how to pick the filter of each row
+     * @param level the deflate level used to score rows in {@link FilterStrategy#BRUTE_FORCE} mode
+     */
+    ScanlineFilter(FilterStrategy strategy, int level) {
+        this.strategy = strategy;
+        this.level = level;
+    }
+
+    /**
+     * Filter a frame, or a rectangle of a larger image.
+     * @param width the width of the rectangle
+     * @param height the height of the rectangle
+     * @param in the raw pixels
+     * @param offset the index of the top left pixel of the rectangle in {@code in}
+     * @param stride the distance between two rows in {@code in}
+     * @param out the array receiving the filtered scanlines, at least {@code (width + 1) * height} bytes
+     * @return the filtered scanlines, each prefixed with its filter type byte
+     */
+    ByteBuffer filter(int width, int height, ByteBuffer in, int offset, int stride, byte[] out) {
+        ensureCapacity(width);
+        Arrays.fill(prev, 0, width, (byte) 0);
+
+        ByteBuffer src = in.duplicate();
+        src.clear();
+        for (int y = 0; y < height; y++) {
+            src.position(offset + y * stride);
+            src.get(cur, 0, width);
+            int off = y * (width + 1);
+            int type = fixedType();
+            if (type < 0) {
+                type = strategy == FilterStrategy.MIN_SUM ? minSum(width) : bruteForce(width, out, off);
+                out[off] = (byte) type;
+                System.arraycopy(candidates[type], 0, out, off + 1, width);
+            } else {
+                out[off] = (byte) type;
+                PNGFilter.filter(type, cur, 0, prev, 0, out, off + 1, width, 1);
+            }
+
+            byte[] tmp = prev;
+            prev = cur;
+            cur = tmp;
+        }
+
+        return ByteBuffer.wrap(out, 0, (width + 1) * height);
+    }
+
+    boolean matches(FilterStrategy strategy, int level) {
+        return this.strategy == strategy && this.level == level;
+    }
+
+    /**
+     * Release the native resources of the trial deflater.
+     */
+    void end() {
+        if (trial != null) {
+            trial.end();
+            trial = null;
+        }
+    }
+
+    private int fixedType() {
+        switch (strategy) {
+        case NONE:
+            return PNGFilter.NONE;
+        case SUB:
+            return PNGFilter.SUB;
+        case UP:
+            return PNGFilter.UP;
+        case AVERAGE:
+            return PNGFilter.AVERAGE;
+        case PAETH:
+            return PNGFilter.PAETH;
+        default:
+            return -1;
+        }
+    }
+
+    private int minSum(int width) {
+        int best = 0;
+        long bestSum = Long.MAX_VALUE;
+        for (int type = 0; type < FILTER_COUNT; type++) {
+            byte[] c = candidates[type];
+            PNGFilter.filter(type, cur, 0, prev, 0, c, 0, width, 1);
+            long sum = 0;
+            for (int i = 0; i < width && sum < bestSum; i++) {
+                int v = c[i];
+                sum += v < 0 ? -v : v;
+            }
+            if (sum < bestSum) {
+                bestSum = sum;
+                best = type;
+            }
+        }
+        return best;
+    }
+
+    private int bruteForce(int width, byte[] out, int rowOff) {
+        if (trial == null) {
+            trial = new Deflater(level, true);
+        }
+        int dictLen = Math.min(rowOff, Math.min(32 * 1024, TRIAL_DICTIONARY_ROWS * (width + 1)));
+
+        int best = 0;
+        long bestSize = Long.MAX_VALUE;
+        for (int type = 0; type < FILTER_COUNT; type++) {
+            byte[] c = candidates[type];
+            PNGFilter.filter(type, cur, 0, prev, 0, c, 0, width, 1);
+
+            trial.reset();
+            if (dictLen > 0) {
+                trial.setDictionary(out, rowOff - dictLen, dictLen);
+            }
+            trial.setInput(c, 0, width);
+            trial.finish();
+            long size = 0;
+            while (!trial.finished() && size < bestSize) {
+                size += trial.deflate(trialOut);
+            }
+            if (size < bestSize) {
+                bestSize = size;
+                best = type;
+            }
+        }
+        return best;
+    }
+
+    private void ensureCapacity(int width) {
+        if (cur.length >= width) {
+            return;
+        }
+        prev = new byte[width];
+        cur = new byte[width];
+        if (strategy == FilterStrategy.MIN_SUM || strategy == FilterStrategy.BRUTE_FORCE) {
+            for (int i = 0; i < FILTER_COUNT; i++) {
+                candidates[i] = new byte[width];
+            }
+            trialOut = new byte[width + 64];
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.vg.apng;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Run a loop over {@code [0, n)} in fixed size stripes on a fork-join pool.
+ */
+class Stripes {
+    interface Body {
+        /**
+         * @param stripe the stripe number, {@code from / stripeSize}
+         */
+        void run(int stripe, int from, int to);
+    }
+
+    /**
+     * @return the number of stripes {@link #run} splits {@code n} into
+     */
+    static int count(int n, int stripeSize) {
+        return Math.max(1, (n + stripeSize - 1) / stripeSize);
+    }
+
+    /**
+     * @param pool the pool to run stripes on, also when called from a task of another pool; or null to run every
+     *             stripe on the caller's thread
+     */
+    static void run(ForkJoinPool pool, int n, int stripeSize, final Body body) {
+        if (pool == null || n <= stripeSize) {
+            for (int from = 0, stripe = 0; from < n || stripe == 0; from += stripeSize, stripe++) {
+                body.run(stripe, from, Math.min(n, from + stripeSize));
+            }
+            return;
+        }
+        final List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+        for (int from = 0, stripe = 0; from < n; from += stripeSize, stripe++) {
+            final int s = stripe;
+            final int start = from;
+            final int end = Math.min(n, from + stripeSize);
+            tasks.add(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    body.run(s, start, end);
+                }
+            });
+        }
+        if (ForkJoinTask.getPool() == pool) {
+            ForkJoinTask.invokeAll(tasks);
+        } else {
+            pool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(tasks);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.vg.apng;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of auto-tuning: the settings chosen and every trial they were chosen from.
+ *
+ * @see APNGWriter#setAutoTune(boolean)
+ * @see APNGWriterSession#getTuneResult()
+ */
+public final class TuneResult {
+    public final CompressionSettings chosen;
+    public final List<Trial> trials;
+    /** The number of pixels every trial compressed. */
+    public final int samplePixels;
+
+    TuneResult(CompressionSettings chosen, List<Trial> trials, int samplePixels) {
+        this.chosen = chosen;
+        this.trials = Collections.unmodifiableList(trials);
+        this.samplePixels = samplePixels;
+    }
+
+    /**
+     * @return the trial of the chosen settings
+     */
+    public Trial getChosenTrial() {
+        for (Trial trial : trials) {
+            if (trial.settings == chosen) {
+                return trial;
+            }
+        }
+        throw new IllegalStateException();
+    }
+
+    /**
+     * @return a table of all trials, the chosen one marked with a star
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("sample ").append(samplePixels).append(" pixels\n");
+        for (Trial trial : trials) {
+            sb.append(trial.settings == chosen ? "* " : "  ").append(trial).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Compressed size and time of one combination of settings on the sample.
+     */
+    public static final class Trial {
+        public final CompressionSettings settings;
+        public final int compressedBytes;
+        public final long nanos;
+
+        Trial(CompressionSettings settings, int compressedBytes, long nanos) {
+            this.settings = settings;
+            this.compressedBytes = compressedBytes;
+            this.nanos = nanos;
+        }
+
+        public double getNanosPerPixel(int pixels) {
+            return (double) nanos / pixels;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-50s %9d bytes %9.1f us", settings, compressedBytes, nanos / 1000.0);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.vg.apng;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * Positioned big-endian reads over a whole file. The file is either held in a single heap buffer or exposed through
+ * read-only {@link FileChannel#map} windows that are remapped as the position moves, so files past 2 GB can be
+ * read without ever copying them. Positions are tracked as {@code long}.
+ */
+class WindowedInput implements Closeable {
+    public static final int DEFAULT_WINDOW_SIZE = 1 << 28;
+
+    private final FileChannel ch;
+    private final long size;
+    private final int windowSize;
+
+    private ByteBuffer window;
+    private long windowStart;
+    private long position;
+
+    /**
+     * @param whole the complete file content
+     */
+    WindowedInput(ByteBuffer whole) {
+        this.ch = null;
+        this.size = whole.remaining();
+        this.windowSize = whole.remaining();
+        this.window = whole.slice();
+        this.windowStart = 0;
+    }
+
+    /**
+     * @param ch the file to map
+     * @param windowSize the preferred size of a single mapping
+     */
+    WindowedInput(FileChannel ch, int windowSize) throws IOException {
+        this.ch = ch;
+        this.size = ch.size();
+        this.windowSize = windowSize;
+        this.window = ByteBuffer.allocate(0);
+        this.windowStart = 0;
+    }
+
+    long size() {
+        return size;
+    }
+
+    long position() {
+        return position;
+    }
+
+    void position(long position) {
+        this.position = position;
+    }
+
+    void skip(long n) {
+        position += n;
+    }
+
+    int getInt() throws IOException {
+        int v = window(4).getInt((int) (position - windowStart));
+        position += 4;
+        return v;
+    }
+
+    /**
+     * @param length the number of bytes to expose
+     * @return a view of the next {@code length} bytes, the position is advanced past them
+     */
+    ByteBuffer slice(int length) throws IOException {
+        ByteBuffer w = window(length).duplicate();
+        int off = (int) (position - windowStart);
+        w.limit(off + length);
+        w.position(off);
+        position += length;
+        return w.slice();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (ch != null) {
+            ch.close();
+        }
+    }
+
+    /**
+     * @return a window that covers {@code [position, position + length)}
+     */
+    private ByteBuffer window(int length) throws IOException {
+        long end = position + length;
+        if (position < 0 || end > size) {
+            throw new EOFException("read past the end of file at " + position);
+        }
+        if (position >= windowStart && end <= windowStart + window.capacity()) {
+            return window;
+        }
+        if (ch == null) {
+            throw new IllegalStateException();
+        }
+        long mapSize = Math.min(size - position, Math.max(windowSize, length));
+        window = ch.map(MapMode.READ_ONLY, position, mapSize);
+        windowStart = position;
+        return window;
+    }
+}
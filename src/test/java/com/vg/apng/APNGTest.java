@@ -1,7 +1,38 @@
 package com.vg.apng;
 
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import javax.imageio.ImageIO;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -39,4 +70,1401 @@ public class APNGTest {
         Assert.assertArrayEquals(a1, gr[1].data.array());
         Assert.assertArrayEquals(a2, gr[2].data.array());
     }
+
+    @Test
+    public void testStreamingSession() throws IOException {
+        byte x = (byte) 255;
+        byte[] a0 = { 0, x, 0, x };
+        byte[] a1 = { x, 0, x, 0 };
+
+        File file = new File("session.png");
+        file.deleteOnExit();
+        APNGWriterSession session = APNG.open(file, APNG.INFINITE_LOOP);
+        for (int i = 0; i < 5; i++) {
+            session.addFrame(new Gray(2, 2, i % 2 == 0 ? a0 : a1, APNG.DELAY_100MS));
+        }
+        session.close();
+
+        Gray[] gr = APNG.read(file);
+        Assert.assertEquals(5, gr.length);
+        for (int i = 0; i < 5; i++) {
+            Assert.assertArrayEquals(i % 2 == 0 ? a0 : a1, gr[i].data.array());
+        }
+
+        File declared = new File("session-declared.png");
+        declared.deleteOnExit();
+        session = APNG.open(new FileOutputStream(declared), 2, APNG.INFINITE_LOOP);
+        session.addFrame(new Gray(2, 2, a0));
+        session.addFrame(new Gray(2, 2, a1));
+        session.close();
+
+        gr = APNG.read(declared);
+        Assert.assertEquals(2, gr.length);
+        Assert.assertArrayEquals(a1, gr[1].data.array());
+    }
+
+    @Test
+    public void testFrameIterator() throws IOException {
+        byte x = (byte) 255;
+        byte[] a0 = { 0, x, 0, x, 0, x };
+        byte[] a1 = { x, 0, x, 0, x, 0 };
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        APNG.write(new Gray[] {
+                new Gray(3, 2, a0, APNG.DELAY_250MS),
+                new Gray(3, 2, a1, APNG.DELAY_500MS) }, bytes, APNG.INFINITE_LOOP);
+
+        APNGFrameIterator frames = APNG.frames(new ByteArrayInputStream(bytes.toByteArray()));
+        try {
+            Assert.assertEquals(2, frames.getFrameCount());
+            Assert.assertTrue(frames.hasNext());
+            Gray g0 = frames.next();
+            Assert.assertArrayEquals(a0, g0.data.array());
+            Assert.assertEquals(APNG.DELAY_250MS, g0.getDelay());
+            Gray g1 = frames.next();
+            Assert.assertArrayEquals(a1, g1.data.array());
+            Assert.assertEquals(APNG.DELAY_500MS, g1.getDelay());
+            Assert.assertFalse(frames.hasNext());
+        } finally {
+            frames.close();
+        }
+    }
+
+    @Test
+    public void testMemoryMapped() throws IOException {
+        Random random = new Random(42);
+        Gray[] g = new Gray[3];
+        for (int i = 0; i < g.length; i++) {
+            byte[] pixels = new byte[64 * 48];
+            random.nextBytes(pixels);
+            g[i] = new Gray(64, 48, pixels);
+        }
+
+        File file = new File("mapped.png");
+        file.deleteOnExit();
+        APNG.write(g, file, APNG.INFINITE_LOOP);
+
+        APNGReader reader = new APNGReader();
+        reader.setMemoryMapped(true);
+        reader.windowSize = 1024; // force remapping between and inside frames
+        Gray[] gr = reader.read(file);
+
+        Assert.assertEquals(3, gr.length);
+        for (int i = 0; i < g.length; i++) {
+            Assert.assertArrayEquals(g[i].data.array(), gr[i].data.array());
+        }
+    }
+
+    @Test
+    public void testParallelEncode() throws IOException {
+        Gray[] g = new Gray[10];
+        for (int i = 0; i < g.length; i++) {
+            g[i] = TestFrames.frame(i).getSubimage(new Rectangle(0, 0, 40, 30));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            APNGWriter writer = new APNGWriter();
+            writer.setExecutor(executor);
+            writer.setMaxFramesInFlight(2);
+            File file = new File("parallel.png");
+            file.deleteOnExit();
+            writer.write(g, file, APNG.INFINITE_LOOP);
+
+            Gray[] gr = APNG.read(file);
+            Assert.assertEquals(g.length, gr.length);
+            for (int i = 0; i < g.length; i++) {
+                Assert.assertArrayEquals(g[i].data.array(), gr[i].data.array());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testParallelDeflate() throws Exception {
+        Gray[] g = { TestFrames.frame(0), TestFrames.frame(1) };
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            APNGWriter writer = new APNGWriter();
+            writer.setParallelDeflate(pool, 10000);
+            File file = new File("pigz.png");
+            file.deleteOnExit();
+            writer.write(g, file, APNG.INFINITE_LOOP);
+
+            Gray[] gr = APNG.read(file);
+            Assert.assertArrayEquals(g[0].data.array(), gr[0].data.array());
+            Assert.assertArrayEquals(g[1].data.array(), gr[1].data.array());
+
+            // the default image must pass a standard decoder, including the Adler-32 check
+            BufferedImage png = ImageIO.read(file);
+            Assert.assertArrayEquals(g[0].data.array(), Gray.fromBufferedImage(png).data.array());
+        } finally {
+            pool.shutdown();
+        }
+
+        // called from a task of another pool, the blocks still go to the configured pool
+        final ForkJoinPool deflatePool = new ForkJoinPool(4);
+        ForkJoinPool caller = new ForkJoinPool(1);
+        try {
+            final ByteBuffer data = ByteBuffer.wrap(TestFrames.frame(0).data.array());
+            caller.submit(new Runnable() {
+                @Override
+                public void run() {
+                    ParallelDeflate.compress(data, 6, Deflater.DEFAULT_STRATEGY, 10000, deflatePool);
+                }
+            }).get();
+            Assert.assertTrue(deflatePool.getPoolSize() > 0);
+        } finally {
+            deflatePool.shutdown();
+            caller.shutdown();
+        }
+    }
+
+    @Test
+    public void testForeignFilters() throws IOException {
+        // ImageIO picks a filter per scanline, so a gradient with noise exercises Sub, Up, Average and Paeth
+        Gray gray = TestFrames.frame(3).getSubimage(new Rectangle(0, 0, 97, 61));
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(gray.toBufferedImage(), "png", png);
+
+        File file = new File("foreign.png");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(toAPNG(png.toByteArray(), gray.width, gray.height));
+        } finally {
+            out.close();
+        }
+
+        Gray[] gr = APNG.read(file);
+        Assert.assertEquals(1, gr.length);
+        Assert.assertArrayEquals(gray.data.array(), gr[0].data.array());
+    }
+
+    /**
+     * Turn a single image PNG into a one frame APNG by adding acTL and fcTL in front of the first IDAT.
+     */
+    private static byte[] toAPNG(byte[] png, int width, int height) {
+        ByteBuffer in = ByteBuffer.wrap(png);
+        ByteBuffer out = ByteBuffer.allocate(png.length + 100);
+        out.put(APNG.PNG_SIG);
+        in.position(APNG.PNG_SIG.length);
+        boolean first = true;
+        while (in.hasRemaining()) {
+            int len = in.getInt();
+            int sig = in.getInt(in.position());
+            if (sig == APNG.IDAT_SIG && first) {
+                first = false;
+                putChunk(out, ByteBuffer.allocate(12).putInt(APNG.acTL_SIG).putInt(1).putInt(0));
+                putChunk(out, ByteBuffer.allocate(30).putInt(APNG.fcTL_SIG).putInt(0).putInt(width).putInt(height)
+                        .putInt(0).putInt(0).putShort((short) 1).putShort((short) 1).put((byte) 0).put((byte) 0));
+            }
+            out.putInt(len);
+            out.put(png, in.position(), len + 8);
+            in.position(in.position() + len + 8);
+        }
+        return Arrays.copyOf(out.array(), out.position());
+    }
+
+    private static void putChunk(ByteBuffer out, ByteBuffer typeAndBody) {
+        CRC32 crc = new CRC32();
+        crc.update(typeAndBody.array());
+        out.putInt(typeAndBody.capacity() - 4);
+        out.put(typeAndBody.array());
+        out.putInt((int) crc.getValue());
+    }
+
+    @Test
+    public void testCodecContextTrim() {
+        CodecContext ctx = new CodecContext();
+        byte[] small = ctx.filteredBuffer(1000);
+        ctx.compressedBuffer(CodecContext.MAX_RETAINED_BYTES + 1);
+        ctx.chunkBuffer(CodecContext.MAX_RETAINED_BYTES + 1);
+        ctx.trim();
+        // small buffers are kept, oversized ones are dropped before the context goes back to the pool
+        Assert.assertSame(small, ctx.filteredBuffer(1));
+        Assert.assertTrue(ctx.compressedBuffer(1).length < CodecContext.MAX_RETAINED_BYTES);
+        Assert.assertTrue(ctx.chunkBuffer(1).capacity() < CodecContext.MAX_RETAINED_BYTES);
+        ctx.end();
+    }
+
+    @Test
+    public void testFilterStrategies() throws IOException {
+        Gray[] g = new Gray[3];
+        for (int i = 0; i < g.length; i++) {
+            g[i] = TestFrames.frame(i).getSubimage(new Rectangle(0, 0, 120, 90));
+        }
+
+        long noneSize = 0;
+        for (FilterStrategy strategy : FilterStrategy.values()) {
+            APNGWriter writer = new APNGWriter();
+            writer.setFilterStrategy(strategy);
+            File file = new File("filter-" + strategy + ".png");
+            file.deleteOnExit();
+            writer.write(g, file, APNG.INFINITE_LOOP);
+
+            Gray[] gr = APNG.read(file);
+            for (int i = 0; i < g.length; i++) {
+                Assert.assertArrayEquals(strategy.toString(), g[i].data.array(), gr[i].data.array());
+            }
+            if (strategy == FilterStrategy.NONE) {
+                noneSize = file.length();
+            } else if (strategy == FilterStrategy.MIN_SUM || strategy == FilterStrategy.BRUTE_FORCE) {
+                Assert.assertTrue(strategy + " " + file.length() + " vs " + noneSize, file.length() < noneSize);
+            }
+        }
+    }
+
+    @Test
+    public void testAutoTune() throws IOException {
+        Gray[] g = new Gray[3];
+        for (int i = 0; i < g.length; i++) {
+            g[i] = TestFrames.frame(i).getSubimage(new Rectangle(0, 0, 200, 150));
+        }
+
+        APNGWriter writer = new APNGWriter();
+        writer.setAutoTune(true);
+        File file = new File("autotune.png");
+        file.deleteOnExit();
+        APNGWriterSession session = writer.open(file, APNG.INFINITE_LOOP);
+        for (Gray gray : g) {
+            session.addFrame(gray);
+        }
+        session.close();
+
+        TuneResult result = session.getTuneResult();
+        Assert.assertSame(result.chosen, session.getCompressionSettings());
+        Assert.assertEquals(45, result.trials.size());
+        for (TuneResult.Trial trial : result.trials) {
+            Assert.assertTrue(trial.toString(), result.getChosenTrial().compressedBytes
+                    <= trial.compressedBytes * (1 + AutoTuner.SIZE_TOLERANCE));
+        }
+        Gray[] gr = APNG.read(file);
+        for (int i = 0; i < g.length; i++) {
+            Assert.assertArrayEquals(g[i].data.array(), gr[i].data.array());
+        }
+
+        // a budget nothing fits in falls back to the fastest trial
+        writer.setAutoTuneBudget(1e-9);
+        session = writer.open(new ByteArrayOutputStream(), 1, APNG.INFINITE_LOOP);
+        session.addFrame(g[0]);
+        session.close();
+        result = session.getTuneResult();
+        for (TuneResult.Trial trial : result.trials) {
+            Assert.assertTrue(result.getChosenTrial().nanos <= trial.nanos);
+        }
+
+        // with a reduced bit depth the trials compress the packed rows the encoder writes
+        Gray bilevel = new Gray(200, AutoTuner.BAND_ROWS);
+        Random random = new Random(7);
+        for (int p = 0; p < bilevel.width * bilevel.height; p++) {
+            bilevel.data.put(p, (byte) (random.nextInt(3) == 0 ? 255 : 0));
+        }
+        PixelFormat format = PixelFormat.choose(new Gray[] { bilevel });
+        Assert.assertEquals(1, format.bitDepth);
+        int rowBytes = format.rowBytes(bilevel.width);
+        byte[] packed = new byte[rowBytes * bilevel.height];
+        format.pack(bilevel, bilevel.getBounds(), packed);
+        byte[] unfiltered = new byte[(rowBytes + 1) * bilevel.height];
+        for (int y = 0; y < bilevel.height; y++) {
+            System.arraycopy(packed, y * rowBytes, unfiltered, y * (rowBytes + 1) + 1, rowBytes);
+        }
+        Deflater deflater = new Deflater(9);
+        deflater.setInput(unfiltered);
+        deflater.finish();
+        int expected = deflater.deflate(new byte[unfiltered.length * 2]);
+        deflater.end();
+        result = AutoTuner.tune(bilevel, format, 1e9, null);
+        boolean found = false;
+        for (TuneResult.Trial trial : result.trials) {
+            CompressionSettings settings = trial.settings;
+            if (settings.filter == FilterStrategy.NONE && settings.level == 9
+                    && settings.strategy == Deflater.DEFAULT_STRATEGY) {
+                Assert.assertEquals(expected, trial.compressedBytes);
+                found = true;
+            }
+        }
+        Assert.assertTrue(found);
+    }
+
+    @Test
+    public void testInstrumentation() throws IOException {
+        Gray[] g = new Gray[4];
+        for (int i = 0; i < g.length; i++) {
+            g[i] = TestFrames.frame(i).getSubimage(new Rectangle(0, 0, 160, 120));
+        }
+        final List<FrameStats> stats = new ArrayList<FrameStats>();
+        FrameListener listener = new FrameListener() {
+            @Override
+            public void frame(FrameStats s) {
+                stats.add(s);
+            }
+        };
+
+        Recording recording = new Recording();
+        recording.enable("com.vg.apng.Frame");
+        recording.start();
+
+        APNGWriter writer = new APNGWriter();
+        writer.setListener(listener);
+        File file = new File("instrumented.png");
+        file.deleteOnExit();
+        writer.write(g, file, APNG.INFINITE_LOOP);
+
+        APNGReader reader = new APNGReader();
+        reader.setListener(listener);
+        reader.read(file);
+        APNGFrameIterator frames = reader.frames(new FileInputStream(file).getChannel());
+        while (frames.hasNext()) {
+            frames.next();
+        }
+        frames.close();
+
+        recording.stop();
+        File jfr = File.createTempFile("apng", ".jfr");
+        jfr.deleteOnExit();
+        recording.dump(jfr.toPath());
+        recording.close();
+
+        Assert.assertEquals(3 * g.length, stats.size());
+        long compressed = 0;
+        for (int i = 0; i < stats.size(); i++) {
+            FrameStats s = stats.get(i);
+            Assert.assertEquals(i < g.length, s.encode);
+            Assert.assertEquals(i % g.length, s.frameIndex);
+            Assert.assertEquals(160 * 120, s.getRawBytes());
+            Assert.assertTrue(s.toString(), s.getCompressionRatio() > 1);
+            if (s.encode) {
+                Assert.assertTrue(s.toString(), s.getNanos(FrameStats.Stage.DEFLATE) > 0);
+                compressed += s.getCompressedBytes();
+            } else {
+                Assert.assertEquals(stats.get(i % g.length).getCompressedBytes(), s.getCompressedBytes());
+                Assert.assertTrue(s.toString(), s.getNanos(FrameStats.Stage.INFLATE) > 0);
+            }
+        }
+        Assert.assertTrue(compressed < file.length());
+
+        int events = 0;
+        for (RecordedEvent event : RecordingFile.readAllEvents(jfr.toPath())) {
+            if (event.getEventType().getName().equals("com.vg.apng.Frame")) {
+                events++;
+            }
+        }
+        Assert.assertEquals(stats.size(), events);
+    }
+
+    @Test
+    public void testReducedBitDepth() throws IOException {
+        int[][] levels = {
+                { 0, 255 },
+                { 0, 85, 170, 255 },
+                { 0, 17, 34, 51, 68, 85, 102, 119, 136, 153, 170, 187, 204, 221, 238, 255 },
+                { 10, 20, 30 },
+                { 1, 2, 3, 5, 8, 13, 21, 34, 55, 89 },
+                { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16 } };
+        int[][] expected = { { 1, 0 }, { 2, 0 }, { 4, 0 }, { 2, 3 }, { 4, 3 }, { 8, 0 } };
+
+        Random random = new Random(7);
+        for (int t = 0; t < levels.length; t++) {
+            Gray[] g = new Gray[3];
+            for (int i = 0; i < g.length; i++) {
+                g[i] = new Gray(13, 7);
+                for (int y = 0; y < 7; y++) {
+                    for (int x = 0; x < 13; x++) {
+                        g[i].putPixel(x, y, levels[t][random.nextInt(levels[t].length)]);
+                    }
+                }
+            }
+            g[2] = new Gray(13, 7, g[1].data.array().clone());
+            g[2].putPixel(5, 3, levels[t][0]);
+
+            APNGWriter writer = new APNGWriter();
+            writer.setDeltaFrames(true);
+            writer.setFilterStrategy(FilterStrategy.MIN_SUM);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            writer.write(g, out, APNG.INFINITE_LOOP);
+            byte[] bytes = out.toByteArray();
+            Assert.assertEquals("bit depth", expected[t][0], bytes[24]);
+            Assert.assertEquals("color type", expected[t][1], bytes[25]);
+
+            File file = File.createTempFile("reduced", ".png");
+            file.deleteOnExit();
+            FileOutputStream fos = new FileOutputStream(file);
+            fos.write(bytes);
+            fos.close();
+            APNGReader reader = new APNGReader();
+            reader.setComposite(true);
+            Gray[] gr = reader.read(file);
+            try (FileInputStream in = new FileInputStream(file)) {
+                APNGFrameIterator frames = reader.frames(in.getChannel());
+                for (int i = 0; i < g.length; i++) {
+                    Assert.assertArrayEquals(g[i].data.array(), gr[i].data.array());
+                    Assert.assertArrayEquals(g[i].data.array(), frames.next().data.array());
+                }
+                frames.close();
+            }
+
+            // the default image must decode the same with a standard decoder
+            BufferedImage png = ImageIO.read(file);
+            boolean indexed = png.getColorModel() instanceof IndexColorModel;
+            for (int y = 0; y < 7; y++) {
+                for (int x = 0; x < 13; x++) {
+                    int v = indexed ? png.getRGB(x, y) & 0xff : png.getRaster().getSample(x, y, 0);
+                    Assert.assertEquals(g[0].getPixel(x, y) & 0xff, v);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testResample() {
+        Gray src = TestFrames.frame(2).getSubimage(new Rectangle(0, 0, 101, 77));
+
+        // nearest neighbour keeps the scaleNN mapping
+        Gray nn = src.scaleNN(40, 90);
+        float rw = (float) (1f / (40.0 / src.width));
+        float rh = (float) (1f / (90.0 / src.height));
+        for (int y = 0; y < 90; y++) {
+            for (int x = 0; x < 40; x++) {
+                Assert.assertEquals(src.getPixel((int) (x * rw), (int) (y * rh)), nn.getPixel(x, y));
+            }
+        }
+
+        // flat images stay flat with every kernel, up and down
+        Gray flat = new Gray(37, 23, filled(37 * 23, 200));
+        for (ResampleFilter filter : ResampleFilter.values()) {
+            Resampler resampler = new Resampler(filter);
+            Assert.assertArrayEquals(filter.toString(), filled(11 * 5, 200),
+                    resampler.resize(flat, 11, 5).data.array());
+            Assert.assertArrayEquals(filter.toString(), filled(90 * 61, 200),
+                    resampler.resize(flat, 90, 61).data.array());
+        }
+
+        // halving with the box filter averages 2x2 blocks
+        Gray half = new Resampler(ResampleFilter.BOX).resize(src.getSubimage(new Rectangle(0, 0, 100, 76)), 50, 38);
+        for (int y = 0; y < 38; y++) {
+            for (int x = 0; x < 50; x++) {
+                int sum = (src.getPixel(2 * x, 2 * y) & 0xff) + (src.getPixel(2 * x + 1, 2 * y) & 0xff)
+                        + (src.getPixel(2 * x, 2 * y + 1) & 0xff) + (src.getPixel(2 * x + 1, 2 * y + 1) & 0xff);
+                Assert.assertEquals(sum / 4.0, half.getPixel(x, y) & 0xff, 1.0);
+            }
+        }
+
+        // stripes on a pool give the same result, written into the caller's image
+        for (ResampleFilter filter : ResampleFilter.values()) {
+            Resampler serial = new Resampler(filter);
+            serial.setPool(null);
+            Resampler parallel = new Resampler(filter);
+            ForkJoinPool pool = new ForkJoinPool(3);
+            parallel.setPool(pool);
+            parallel.parallelThreshold = 0;
+            Gray dst = new Gray(150, 60);
+            Assert.assertSame(dst, parallel.resize(src, dst));
+            Assert.assertArrayEquals(filter.toString(), serial.resize(src, 150, 60).data.array(), dst.data.array());
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testPointOps() throws Exception {
+        Gray src = TestFrames.frame(3);
+        byte[] pixels = src.data.array().clone();
+
+        // a fused chain maps like applying its operations one after another
+        Gray stepwise = new PointOps().gamma(0.5).apply(src, new Gray(src.width, src.height));
+        new PointOps().stretch(2).apply(stepwise);
+        new PointOps().equalize().apply(stepwise);
+        new PointOps().threshold(100).apply(stepwise);
+        PointOps chain = new PointOps().gamma(0.5).stretch(2).equalize().threshold(100);
+        Gray fused = chain.apply(src, new Gray(src.width, src.height));
+        Assert.assertArrayEquals(stepwise.data.array(), fused.data.array());
+        Assert.assertArrayEquals(pixels, src.data.array());
+
+        // histograms counted in stripes on a pool add up to a serial count
+        PointOps serial = new PointOps();
+        serial.setPool(null);
+        PointOps parallel = new PointOps();
+        ForkJoinPool pool = new ForkJoinPool(3);
+        parallel.setPool(pool);
+        parallel.parallelThreshold = 0;
+        int[] hist = new int[256];
+        for (byte b : pixels) {
+            hist[b & 0xff]++;
+        }
+        Assert.assertArrayEquals(hist, serial.histogram(src));
+        Assert.assertArrayEquals(hist, parallel.histogram(src));
+
+        // in place on a pool, on a direct buffer
+        ByteBuffer direct = ByteBuffer.allocateDirect(pixels.length);
+        direct.put(pixels).flip();
+        Gray inPlace = new Gray(src.width, src.height, direct);
+        Assert.assertSame(inPlace, parallel.equalize().stretch(2).apply(inPlace));
+        byte[] expected = src.equalizeHist1().equalizeHist().data.array();
+        byte[] actual = new byte[pixels.length];
+        inPlace.getData().get(actual);
+        Assert.assertArrayEquals(expected, actual);
+        pool.shutdown();
+
+        // called from a task of another pool, stripes still go to the configured pool
+        final ForkJoinPool stripePool = new ForkJoinPool(3);
+        final PointOps pooled = new PointOps();
+        pooled.setPool(stripePool);
+        pooled.parallelThreshold = 0;
+        final Gray frame = src;
+        ForkJoinPool caller = new ForkJoinPool(1);
+        try {
+            caller.submit(new Runnable() {
+                @Override
+                public void run() {
+                    pooled.histogram(frame);
+                }
+            }).get();
+            Assert.assertTrue(stripePool.getPoolSize() > 0);
+        } finally {
+            stripePool.shutdown();
+            caller.shutdown();
+        }
+
+        // fixed tables
+        Assert.assertArrayEquals(new byte[] { 0, 0, (byte) 255, (byte) 255 },
+                Arrays.copyOf(new PointOps().threshold(2).table(src), 4));
+        byte[] stretch = new PointOps().stretch(10, 20).table(src);
+        Assert.assertEquals(0, stretch[10]);
+        Assert.assertEquals(128, stretch[15] & 0xff);
+        Assert.assertEquals(255, stretch[20] & 0xff);
+    }
+
+    @Test
+    public void testFramePool() throws IOException {
+        Assert.assertEquals(4096, FramePool.sizeClass(1));
+        Assert.assertEquals(5120, FramePool.sizeClass(4097));
+        Assert.assertEquals(327680, FramePool.sizeClass(640 * 480));
+
+        // released buffers are reused across sizes of one class
+        FramePool heap = new FramePool();
+        try (Gray a = heap.allocate(640, 480)) {
+            Assert.assertSame(heap, a.getPool());
+            Assert.assertEquals(640 * 480, a.getData().remaining());
+        }
+        Assert.assertEquals(327680, heap.getPooledBytes());
+        Gray b = heap.allocate(600, 500, 40);
+        Assert.assertEquals(40, b.getDelay());
+        Assert.assertEquals(1, heap.getAllocations());
+        b.close();
+        b.close();
+        Assert.assertEquals(327680, heap.getPooledBytes());
+
+        // operations on pooled frames take their result from the pool, off-heap here
+        FramePool direct = new FramePool(true, 64L << 20);
+        Gray[] frames = new Gray[4];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = direct.allocate(320, 240, 100);
+            frames[i].getData().put(TestFrames.frame(i).scaleNN(320, 240).getData());
+        }
+        Gray half = frames[0].scaleBilinear(160, 120);
+        Assert.assertSame(direct, half.getPool());
+        Assert.assertTrue(half.data.isDirect());
+        Assert.assertSame(direct, frames[0].getSubimage(new Rectangle(10, 10, 50, 50)).getPool());
+        Assert.assertSame(direct, frames[0].equalizeHist().getPool());
+
+        // an unchanged result of a pooled frame does not own the frame's buffer
+        long pooled = direct.getPooledBytes();
+        try (Gray same = frames[1].getSubimage(frames[1].getBounds())) {
+            Assert.assertNotSame(frames[1], same);
+            Assert.assertNull(same.getPool());
+            Assert.assertEquals(frames[1].getData(), same.getData());
+        }
+        frames[1].scaleNN(320, 240).close();
+        frames[1].scale(320).close();
+        Assert.assertEquals(pooled, direct.getPooledBytes());
+        Gray heapFrame = TestFrames.frame(0);
+        Assert.assertSame(heapFrame, heapFrame.getSubimage(heapFrame.getBounds()));
+
+        // a decode loop closing its frames allocates one buffer
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new APNGWriter().write(frames, out, 0);
+        FramePool decodePool = new FramePool(true, 64L << 20);
+        APNGReader reader = new APNGReader();
+        reader.setFramePool(decodePool);
+        for (int pass = 0; pass < 3; pass++) {
+            APNGFrameIterator it = reader.frames(Channels.newChannel(new ByteArrayInputStream(out.toByteArray())));
+            try {
+                for (int i = 0; it.hasNext(); i++) {
+                    try (Gray gray = it.next()) {
+                        Assert.assertSame(decodePool, gray.getPool());
+                        Assert.assertEquals(frames[i].getData(), gray.getData());
+                    }
+                }
+            } finally {
+                it.close();
+            }
+        }
+        Assert.assertEquals(1, decodePool.getAllocations());
+
+        // a pool that keeps nothing drops released buffers
+        FramePool none = new FramePool(false, 0);
+        none.allocate(10, 10).close();
+        none.allocate(10, 10).close();
+        Assert.assertEquals(0, none.getPooledBytes());
+        Assert.assertEquals(2, none.getAllocations());
+    }
+
+    @Test
+    public void testBufferedImageConversion() {
+        Random random = new Random(7);
+        int w = 61, h = 37;
+        int[] argb = new int[w * h];
+        for (int i = 0; i < argb.length; i++) {
+            argb[i] = random.nextInt();
+        }
+        ForkJoinPool pool = new ForkJoinPool(3);
+        int[] types = { BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_3BYTE_BGR,
+                BufferedImage.TYPE_4BYTE_ABGR };
+        for (int type : types) {
+            BufferedImage image = new BufferedImage(w, h, type);
+            image.setRGB(0, 0, w, h, argb, 0, w);
+            // a subimage shares the parent raster at an offset
+            BufferedImage sub = image.getSubimage(3, 5, 40, 30);
+            // drawn by Java2D, then converted on the raster in stripes
+            for (int threshold : new int[] { 1 << 18, 0 }) {
+                Gray gray = threshold == 0 ? ImageConverter.toGray(sub, pool, threshold)
+                        : Gray.fromBufferedImage(sub);
+                Assert.assertEquals(40, gray.width);
+                Assert.assertEquals(30, gray.height);
+                for (int y = 0; y < 30; y++) {
+                    for (int x = 0; x < 40; x++) {
+                        int p = sub.getRGB(x, y);
+                        int luma = (77 * ((p >> 16) & 0xff) + 150 * ((p >> 8) & 0xff) + 29 * (p & 0xff) + 128) >> 8;
+                        if (sub.getColorModel().hasAlpha()) {
+                            luma = Math.round(luma * (p >>> 24) / 255f);
+                        }
+                        Assert.assertEquals("type " + type, luma, gray.getPixel(x, y) & 0xff);
+                    }
+                }
+            }
+        }
+        pool.shutdown();
+
+        // gray images are wrapped, gray subimages copied
+        Gray src = TestFrames.frame(1).getSubimage(new Rectangle(0, 0, w, h));
+        BufferedImage grayImage = src.toBufferedImage();
+        Gray wrapped = Gray.fromBufferedImage(grayImage);
+        Assert.assertSame(((DataBufferByte) grayImage.getRaster().getDataBuffer()).getData(), wrapped.data.array());
+        Assert.assertEquals(src.getSubimage(new Rectangle(2, 4, 20, 10)).getData(),
+                Gray.fromBufferedImage(grayImage.getSubimage(2, 4, 20, 10)).getData());
+
+        // the view shares the pixels, including at an array offset
+        byte[] backing = new byte[w * h + 5];
+        Gray offset = new Gray(w, h, ByteBuffer.wrap(backing, 5, w * h).slice());
+        offset.getData().put(src.getData());
+        BufferedImage view = offset.asBufferedImage();
+        Assert.assertEquals(BufferedImage.TYPE_BYTE_GRAY, view.getType());
+        Assert.assertEquals(src.getData(), Gray.fromBufferedImage(view).getData());
+        view.getRaster().setSample(3, 2, 0, 42);
+        Assert.assertEquals(42, offset.getPixel(3, 2));
+        Assert.assertEquals(42, backing[5 + 2 * w + 3]);
+    }
+
+    @Test
+    public void testAsyncSession() throws Exception {
+        Gray a = TestFrames.frame(0).getSubimage(new Rectangle(0, 0, 64, 48));
+        Gray b = TestFrames.frame(1).getSubimage(new Rectangle(0, 0, 64, 48));
+        a.setDelay(APNG.DELAY_100MS);
+        b.setDelay(APNG.DELAY_100MS);
+
+        // blocking, on the default stage executors
+        APNGWriter writer = new APNGWriter();
+        writer.setQueueCapacity(2);
+        File file = File.createTempFile("async", ".png");
+        file.deleteOnExit();
+        APNGAsyncSession session = writer.openAsync(file, APNG.INFINITE_LOOP);
+        for (int i = 0; i < 10; i++) {
+            Assert.assertTrue(session.addFrame(i % 3 == 0 ? a : b));
+        }
+        session.finish().get();
+        Gray[] gr = APNG.read(file);
+        Assert.assertEquals(10, gr.length);
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals((i % 3 == 0 ? a : b).getData(), gr[i].getData());
+        }
+
+        // duplicates extend the delay of the frame before them
+        writer.setBackPressure(BackPressure.COALESCE);
+        session = writer.openAsync(file, APNG.INFINITE_LOOP);
+        for (Gray g : new Gray[] { a, a, a, b, b, a }) {
+            session.addFrame(g);
+        }
+        session.close();
+        Assert.assertEquals(3, session.getFramesCoalesced());
+        gr = APNG.read(file);
+        Assert.assertEquals(3, gr.length);
+        Assert.assertEquals(300, gr[0].getDelay());
+        Assert.assertEquals(200, gr[1].getDelay());
+        Assert.assertEquals(100, gr[2].getDelay());
+
+        // frames are dropped while the write stage is held up, and the animation keeps its length
+        final CountDownLatch go = new CountDownLatch(1);
+        Executor gated = new Executor() {
+            @Override
+            public void execute(final Runnable task) {
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            go.await();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        task.run();
+                    }
+                }).start();
+            }
+        };
+        writer.setBackPressure(BackPressure.DROP);
+        writer.setMaxFramesInFlight(1);
+        writer.setStageExecutors(null, null, gated);
+        session = writer.openAsync(file, APNG.INFINITE_LOOP);
+        List<Gray> kept = new ArrayList<Gray>();
+        for (int i = 0; i < 20; i++) {
+            Gray g = i % 2 == 0 ? a : b;
+            if (session.addFrame(g)) {
+                kept.add(g);
+            }
+        }
+        Assert.assertTrue(session.getFramesDropped() > 0);
+        Assert.assertEquals(20, kept.size() + session.getFramesDropped());
+        go.countDown();
+        session.close();
+        gr = APNG.read(file);
+        Assert.assertEquals(kept.size(), gr.length);
+        int total = 0;
+        for (int i = 0; i < gr.length; i++) {
+            Assert.assertEquals(kept.get(i).getData(), gr[i].getData());
+            total += gr[i].getDelay();
+        }
+        Assert.assertEquals(20 * APNG.DELAY_100MS, total);
+
+        // an interrupted write stage fails the session instead of leaving the producer and filter stage blocked
+        final CountDownLatch release = new CountDownLatch(1);
+        Executor interrupted = new Executor() {
+            @Override
+            public void execute(final Runnable task) {
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        Thread.currentThread().interrupt();
+                        task.run();
+                    }
+                }).start();
+            }
+        };
+        ExecutorService filter = Executors.newSingleThreadExecutor();
+        writer = new APNGWriter();
+        writer.setQueueCapacity(1);
+        writer.setMaxFramesInFlight(1);
+        writer.setStageExecutors(filter, null, interrupted);
+        session = writer.openAsync(new ByteArrayOutputStream(), 20, 0);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    // release right away
+                }
+                release.countDown();
+            }
+        }).start();
+        try {
+            for (int i = 0; i < 20; i++) {
+                session.addFrame(i % 2 == 0 ? a : b);
+            }
+            Assert.fail();
+        } catch (IOException e) {
+            // expected
+        }
+        try {
+            session.finish().get();
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof InterruptedException);
+        }
+        filter.shutdown();
+        Assert.assertTrue(filter.awaitTermination(10, TimeUnit.SECONDS));
+
+        // a failing output completes the future exceptionally
+        writer = new APNGWriter();
+        APNGWriter dropping = new APNGWriter();
+        dropping.setBackPressure(BackPressure.DROP);
+        try {
+            dropping.openAsync(new ByteArrayOutputStream(), 2, 0);
+            Assert.fail();
+        } catch (IllegalStateException expected) {
+            // dropping needs a seekable output
+        }
+        session = writer.openAsync(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("disk full");
+            }
+        }, 2, 0);
+        try {
+            // reported by whichever call follows the failure
+            session.addFrame(a);
+            session.addFrame(b);
+            session.close();
+            Assert.fail();
+        } catch (IOException e) {
+            // expected
+        }
+        try {
+            session.finish().get();
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertEquals("disk full", e.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void testParallelDecode() throws IOException {
+        Gray[] g = new Gray[12];
+        for (int i = 0; i < g.length; i++) {
+            g[i] = TestFrames.frame(i / 3).getSubimage(new Rectangle(0, 0, 120, 90));
+        }
+        APNGWriter writer = new APNGWriter();
+        writer.setDeltaFrames(true);
+        writer.setFilterStrategy(FilterStrategy.MIN_SUM);
+        File file = File.createTempFile("parallel-decode", ".png");
+        file.deleteOnExit();
+        writer.write(g, file, APNG.INFINITE_LOOP);
+
+        ForkJoinPool pool = new ForkJoinPool(3);
+        try {
+            for (boolean composite : new boolean[] { false, true }) {
+                for (boolean mapped : new boolean[] { false, true }) {
+                    APNGReader serial = new APNGReader();
+                    serial.setComposite(composite);
+                    Gray[] expected = serial.read(file);
+
+                    APNGReader parallel = new APNGReader();
+                    parallel.setComposite(composite);
+                    parallel.setExecutor(pool);
+                    parallel.setMemoryMapped(mapped);
+                    parallel.windowSize = 4096;
+                    final List<Integer> reported = new ArrayList<Integer>();
+                    parallel.setListener(new FrameListener() {
+                        @Override
+                        public void frame(FrameStats stats) {
+                            reported.add(stats.frameIndex);
+                        }
+                    });
+                    Gray[] actual = parallel.read(file);
+
+                    Assert.assertEquals(expected.length, actual.length);
+                    for (int i = 0; i < expected.length; i++) {
+                        Assert.assertEquals(expected[i].getBounds(), actual[i].getBounds());
+                        Assert.assertEquals(expected[i].getDelay(), actual[i].getDelay());
+                        Assert.assertEquals(expected[i].getData(), actual[i].getData());
+                        Assert.assertEquals(i, reported.get(i).intValue());
+                    }
+                    if (composite) {
+                        Assert.assertEquals(g[11].getData(), actual[11].getData());
+                    }
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testRandomAccess() throws IOException {
+        Gray[] g = new Gray[10];
+        g[0] = TestFrames.frame(0).getSubimage(new Rectangle(0, 0, 40, 30));
+        for (int i = 1; i < g.length; i++) {
+            g[i] = new Gray(40, 30, g[i - 1].data.array().clone(), 40 + 10 * i);
+            for (int y = 2 * i; y < 2 * i + 5; y++) {
+                for (int x = 3 * i; x < 3 * i + 4; x++) {
+                    g[i].putPixel(x, y, 23 * i);
+                }
+            }
+        }
+        APNGWriter writer = new APNGWriter();
+        writer.setDeltaFrames(true);
+        File file = File.createTempFile("random-access", ".png");
+        file.deleteOnExit();
+        writer.write(g, file, APNG.INFINITE_LOOP);
+        File sidecar = new File(file.getPath() + ".idx");
+        sidecar.deleteOnExit();
+
+        APNGReader reader = new APNGReader();
+        reader.setComposite(true);
+        Gray[] expected = reader.read(file);
+
+        APNGRandomAccess ra = new APNGRandomAccess(file, sidecar);
+        try {
+            Assert.assertTrue(sidecar.isFile());
+            Assert.assertEquals(10, ra.getFrameCount());
+            Assert.assertEquals(40, ra.getWidth());
+            Assert.assertEquals(30, ra.getHeight());
+
+            // frames depend on all the ones before them, so a cold seek replays from the first frame
+            Gray f7 = ra.frame(7);
+            Assert.assertEquals(expected[7].getData(), f7.getData());
+            Assert.assertEquals(expected[7].getDelay(), f7.getDelay());
+            Assert.assertTrue(f7.getData().isReadOnly());
+            Assert.assertEquals(8, ra.getDecodedFrames());
+
+            Assert.assertEquals(expected[7].getData(), ra.frame(7).getData());
+            Assert.assertEquals(expected[3].getData(), ra.frame(3).getData());
+            Assert.assertEquals(8, ra.getDecodedFrames());
+            Assert.assertEquals(expected[9].getData(), ra.frame(9).getData());
+            Assert.assertEquals(10, ra.getDecodedFrames());
+
+            // a cache holding two frames
+            ra.setCacheSize(2 * 40 * 30);
+            Assert.assertEquals(2 * 40 * 30, ra.getCachedBytes());
+            Random r = new Random(5);
+            for (int k = 0; k < 30; k++) {
+                int i = r.nextInt(10);
+                Assert.assertEquals(expected[i].getData(), ra.frame(i).getData());
+            }
+            Assert.assertTrue(ra.getCachedBytes() <= 2 * 40 * 30);
+
+            long start = 0;
+            for (int i = 0; i < 10; i++) {
+                Assert.assertEquals(start, ra.getStartTime(i));
+                Assert.assertEquals(i, ra.frameAt(start));
+                Assert.assertEquals(i, ra.frameAt(start + ra.getDelay(i) - 1));
+                start += ra.getDelay(i);
+            }
+            Assert.assertEquals(start, ra.getDuration());
+            Assert.assertEquals(2, ra.frameAt(2 * start + ra.getStartTime(2)));
+        } finally {
+            ra.close();
+        }
+
+        // a second open reads the index from the sidecar, a stale sidecar is rebuilt
+        long written = sidecar.lastModified();
+        ra = new APNGRandomAccess(file, sidecar);
+        try {
+            Assert.assertEquals(written, sidecar.lastModified());
+            Assert.assertEquals(expected[5].getData(), ra.frame(5).getData());
+        } finally {
+            ra.close();
+        }
+        Assert.assertTrue(file.setLastModified(file.lastModified() - 10000));
+        ra = new APNGRandomAccess(file, sidecar);
+        try {
+            Assert.assertEquals(expected[4].getData(), ra.frame(4).getData());
+            Assert.assertNotNull(FrameIndex.load(sidecar, file));
+        } finally {
+            ra.close();
+        }
+    }
+
+    @Test
+    public void testMergeDuplicates() throws IOException {
+        Gray a = TestFrames.frame(0).getSubimage(new Rectangle(0, 0, 40, 30));
+        Gray b = TestFrames.frame(1).getSubimage(new Rectangle(0, 0, 40, 30));
+        Gray[] g = new Gray[6];
+        int[] pattern = { 0, 0, 0, 1, 1, 0 };
+        for (int i = 0; i < g.length; i++) {
+            Gray src = pattern[i] == 0 ? a : b;
+            g[i] = new Gray(40, 30, src.data.array().clone(), APNG.DELAY_100MS);
+        }
+
+        APNGWriter writer = new APNGWriter();
+        writer.setMergeDuplicates(true);
+        File file = File.createTempFile("merge", ".png");
+        file.deleteOnExit();
+        writer.write(g, file, APNG.INFINITE_LOOP);
+        Gray[] gr = APNG.read(file);
+        Assert.assertEquals(3, gr.length);
+        Assert.assertEquals(300, gr[0].getDelay());
+        Assert.assertEquals(200, gr[1].getDelay());
+        Assert.assertEquals(100, gr[2].getDelay());
+        Assert.assertEquals(a.getData(), gr[0].getData());
+        Assert.assertEquals(b.getData(), gr[1].getData());
+        Assert.assertEquals(APNG.DELAY_100MS, g[0].getDelay());
+
+        // streaming sessions merge into the frame waiting to be written, or rewrite the fcTL of the written one
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            for (ExecutorService e : new ExecutorService[] { null, executor }) {
+                writer.setExecutor(e);
+                APNGWriterSession session = writer.open(file, APNG.INFINITE_LOOP);
+                for (Gray gray : g) {
+                    session.addFrame(gray);
+                }
+                session.close();
+                Assert.assertEquals(3, session.getFrameCount());
+                Assert.assertEquals(3, session.getFramesMerged());
+                gr = APNG.read(file);
+                Assert.assertEquals(3, gr.length);
+                Assert.assertEquals(300, gr[0].getDelay());
+                Assert.assertEquals(200, gr[1].getDelay());
+                Assert.assertEquals(100, gr[2].getDelay());
+                Assert.assertEquals(a.getData(), gr[2].getData());
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        try {
+            writer.openAsync(new ByteArrayOutputStream(), 6, APNG.INFINITE_LOOP);
+            Assert.fail();
+        } catch (IllegalStateException expected) {
+        }
+
+        // merged delays past what a 16 bit numerator holds in seconds are clamped
+        short[] f = APNGWriter.getFractionFromDelay(40000 * 1000);
+        Assert.assertEquals(40000, f[0] & 0xffff);
+        Assert.assertEquals(1, f[1]);
+        f = APNGWriter.getFractionFromDelay(100000 * 1000);
+        Assert.assertEquals(0xffff, f[0] & 0xffff);
+        f = APNGWriter.getFractionFromDelay(40000 * 1000 + 250);
+        Assert.assertEquals(40000, f[0] & 0xffff); // 160001/4 does not fit
+        f = APNGWriter.getFractionFromDelay(300250);
+        Assert.assertEquals(1201, f[0]);
+        Assert.assertEquals(4, f[1]);
+    }
+
+    @Test
+    public void testPreviewDecode() throws IOException {
+        Gray[] natural = new Gray[3];
+        Gray[] levels = new Gray[3];
+        for (int i = 0; i < natural.length; i++) {
+            natural[i] = TestFrames.frame(i).getSubimage(new Rectangle(0, 0, 66, 50));
+            levels[i] = new Gray(66, 50);
+            for (int p = 0; p < 66 * 50; p++) {
+                levels[i].data.put(p, (byte) (85 * ((p / 7 + i) % 4))); // four levels, written as 2 bit
+            }
+        }
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            for (Gray[] g : new Gray[][] { natural, levels }) {
+                File file = File.createTempFile("preview", ".png");
+                file.deleteOnExit();
+                new APNGWriter().write(g, file, APNG.INFINITE_LOOP);
+
+                APNGReader reader = new APNGReader();
+                reader.setPreviewFactor(4);
+                Gray[] serial = reader.read(file);
+                reader.setExecutor(pool);
+                Gray[] parallel = reader.read(file);
+                reader.setExecutor(null);
+                reader.setComposite(true);
+                APNGFrameIterator it = reader.frames(new FileInputStream(file).getChannel());
+                try {
+                    for (int i = 0; i < g.length; i++) {
+                        Gray expected = boxAverage(g[i], 4);
+                        Assert.assertEquals(new Rectangle(0, 0, 17, 13), serial[i].getBounds());
+                        Assert.assertEquals(expected.getData(), serial[i].getData());
+                        Assert.assertEquals(expected.getData(), parallel[i].getData());
+                        Assert.assertEquals(expected.getData(), it.next().getData());
+                    }
+                } finally {
+                    it.close();
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        // delta frames at offsets off the block grid are still composited onto the reduced canvas
+        Gray[] delta = new Gray[] { natural[0], new Gray(66, 50, natural[0].data.array().clone()) };
+        for (int y = 9; y < 30; y++) {
+            for (int x = 13; x < 41; x++) {
+                delta[1].putPixel(x, y, 255);
+            }
+        }
+        APNGWriter writer = new APNGWriter();
+        writer.setDeltaFrames(true);
+        File file = File.createTempFile("preview-delta", ".png");
+        file.deleteOnExit();
+        writer.write(delta, file, APNG.INFINITE_LOOP);
+        APNGReader reader = new APNGReader();
+        reader.setComposite(true);
+        reader.setPreviewSize(16, 12);
+        Gray[] gr = reader.read(file);
+        Assert.assertEquals(new Rectangle(0, 0, 17, 13), gr[1].getBounds());
+        Gray expected = boxAverage(delta[1], 4);
+        Assert.assertEquals(255, gr[1].getPixel(5, 4) & 0xff);
+        Assert.assertEquals(expected.getPixel(0, 0), gr[1].getPixel(0, 0));
+        Assert.assertEquals(expected.getPixel(16, 12), gr[1].getPixel(16, 12));
+
+        reader.setPreviewSize(66, 50);
+        Assert.assertEquals(new Rectangle(0, 0, 66, 50), reader.read(file)[1].getBounds());
+        try {
+            reader.setPreviewFactor(3);
+            Assert.fail();
+        } catch (IllegalArgumentException expectedException) {
+        }
+    }
+
+    @Test
+    public void testCompositedPreview() throws IOException {
+        // a repeated frame is stored as 1x1 at (0, 0), a changed region off the block grid as a sub-frame
+        Gray[] g = new Gray[4];
+        g[0] = TestFrames.frame(0).getSubimage(new Rectangle(0, 0, 64, 48));
+        g[1] = new Gray(64, 48, g[0].data.array().clone(), 40);
+        g[2] = new Gray(64, 48, g[0].data.array().clone(), 40);
+        for (int y = 11; y < 21; y++) {
+            for (int x = 5; x < 30; x++) {
+                g[2].putPixel(x, y, 255);
+            }
+        }
+        g[3] = new Gray(64, 48, g[2].data.array().clone(), 40);
+        APNGWriter writer = new APNGWriter();
+        writer.setDeltaFrames(true);
+        File file = File.createTempFile("preview-composite", ".png");
+        file.deleteOnExit();
+        writer.write(g, file, APNG.INFINITE_LOOP);
+
+        APNGReader reader = new APNGReader();
+        reader.setComposite(true);
+        Gray[] full = reader.read(file);
+        reader.setPreviewFactor(8);
+        Gray[] serial = reader.read(file);
+        ForkJoinPool pool = new ForkJoinPool(2);
+        Gray[] parallel;
+        try {
+            reader.setExecutor(pool);
+            parallel = reader.read(file);
+        } finally {
+            pool.shutdown();
+        }
+        reader.setExecutor(null);
+        APNGFrameIterator it = reader.frames(new FileInputStream(file).getChannel());
+        Resampler box = new Resampler(ResampleFilter.BOX);
+        try {
+            for (int i = 0; i < g.length; i++) {
+                Gray expected = box.resize(full[i], 8, 6);
+                Gray streamed = it.next();
+                for (Gray preview : new Gray[] { serial[i], parallel[i], streamed }) {
+                    Assert.assertEquals(new Rectangle(0, 0, 8, 6), preview.getBounds());
+                    for (int p = 0; p < 8 * 6; p++) {
+                        // the resampler rounds after each pass
+                        int d = (expected.data.get(p) & 0xff) - (preview.data.get(p) & 0xff);
+                        Assert.assertTrue("frame " + i + " pixel " + p + " off by " + d, Math.abs(d) <= 1);
+                    }
+                }
+            }
+        } finally {
+            it.close();
+        }
+        Assert.assertEquals(serial[0].getData(), serial[1].getData());
+        Assert.assertEquals(serial[2].getData(), serial[3].getData());
+    }
+
+    private static Gray boxAverage(Gray g, int f) {
+        int w = (g.width + f - 1) / f;
+        int h = (g.height + f - 1) / f;
+        Gray out = new Gray(w, h);
+        for (int by = 0; by < h; by++) {
+            for (int bx = 0; bx < w; bx++) {
+                int sum = 0;
+                int n = 0;
+                for (int y = by * f; y < Math.min(g.height, by * f + f); y++) {
+                    for (int x = bx * f; x < Math.min(g.width, bx * f + f); x++) {
+                        sum += g.getPixel(x, y) & 0xff;
+                        n++;
+                    }
+                }
+                out.putPixel(bx, by, (sum + n / 2) / n);
+            }
+        }
+        return out;
+    }
+
+    @Test
+    public void testFrameSink() throws IOException {
+        Gray[] g = new Gray[3];
+        g[0] = TestFrames.frame(0).getSubimage(new Rectangle(0, 0, 66, 50));
+        g[1] = new Gray(66, 50, g[0].data.array().clone(), 40);
+        for (int y = 9; y < 30; y++) {
+            for (int x = 13; x < 41; x++) {
+                g[1].putPixel(x, y, 255);
+            }
+        }
+        g[2] = TestFrames.frame(1).getSubimage(new Rectangle(0, 0, 66, 50));
+        APNGWriter writer = new APNGWriter();
+        writer.setDeltaFrames(true);
+        File file = File.createTempFile("sink", ".png");
+        file.deleteOnExit();
+        writer.write(g, file, APNG.INFINITE_LOOP);
+
+        for (boolean composite : new boolean[] { false, true }) {
+            APNGReader reader = new APNGReader();
+            reader.setComposite(composite);
+            Gray[] expected = reader.read(file);
+            final List<FrameInfo> infos = new ArrayList<FrameInfo>();
+            final List<byte[]> lent = new ArrayList<byte[]>();
+            reader.read(file, new FrameSink() {
+                @Override
+                public ByteBuffer buffer(FrameInfo info) {
+                    return null;
+                }
+
+                @Override
+                public void frame(FrameInfo info, ByteBuffer pixels) {
+                    Assert.assertTrue(pixels.isReadOnly());
+                    Assert.assertEquals(0, pixels.position());
+                    Assert.assertEquals(info.getWidth() * info.getHeight(), pixels.remaining());
+                    byte[] copy = new byte[pixels.remaining()];
+                    pixels.get(copy);
+                    lent.add(copy);
+                    infos.add(new FrameInfo(info));
+                }
+            });
+            final List<ByteBuffer> owned = new ArrayList<ByteBuffer>();
+            reader.read(file, new FrameSink() {
+                @Override
+                public ByteBuffer buffer(FrameInfo info) {
+                    ByteBuffer buf = ByteBuffer.allocate(1 + info.getWidth() * info.getHeight());
+                    buf.position(1);
+                    owned.add(buf);
+                    return buf;
+                }
+
+                @Override
+                public void frame(FrameInfo info, ByteBuffer pixels) {
+                    Assert.assertSame(owned.get(info.getIndex()), pixels);
+                    Assert.assertFalse(pixels.hasRemaining());
+                }
+            });
+
+            Assert.assertEquals(g.length, infos.size());
+            for (int i = 0; i < g.length; i++) {
+                FrameInfo info = infos.get(i);
+                Assert.assertEquals(i, info.getIndex());
+                Assert.assertEquals(3, info.getFrameCount());
+                Assert.assertEquals(66, info.getCanvasWidth());
+                Assert.assertEquals(50, info.getCanvasHeight());
+                Assert.assertEquals(expected[i].getBounds(), new Rectangle(0, 0, info.getWidth(), info.getHeight()));
+                Assert.assertEquals(expected[i].getDelay(), info.getDelay());
+                Assert.assertEquals(expected[i].getData(), ByteBuffer.wrap(lent.get(i)));
+                ByteBuffer buf = owned.get(i);
+                buf.position(1);
+                Assert.assertEquals(expected[i].getData(), buf);
+            }
+            FrameInfo delta = infos.get(1);
+            if (composite) {
+                Assert.assertEquals(0, delta.getX());
+                Assert.assertEquals(66, delta.getWidth());
+            } else {
+                // only the changed rectangle is stored
+                Assert.assertTrue(delta.getX() > 0 && delta.getX() <= 13 && delta.getX() + delta.getWidth() >= 41);
+                Assert.assertTrue(delta.getY() > 0 && delta.getY() <= 9 && delta.getY() + delta.getHeight() >= 30);
+                Assert.assertTrue(delta.getWidth() < 66);
+            }
+        }
+
+        try {
+            new APNGReader().read(file, new FrameSink() {
+                @Override
+                public ByteBuffer buffer(FrameInfo info) {
+                    return ByteBuffer.allocate(info.getWidth() * info.getHeight() - 1);
+                }
+
+                @Override
+                public void frame(FrameInfo info, ByteBuffer pixels) {
+                    Assert.fail();
+                }
+            });
+            Assert.fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private static byte[] filled(int size, int value) {
+        byte[] b = new byte[size];
+        Arrays.fill(b, (byte) value);
+        return b;
+    }
+
+    @Test
+    public void testDeltaFrames() throws IOException {
+        Gray g0 = TestFrames.frame(0).getSubimage(new Rectangle(0, 0, 50, 40));
+        Gray g1 = new Gray(50, 40, g0.data.array().clone());
+        for (int y = 12; y < 20; y++) {
+            for (int x = 7; x < 30; x++) {
+                g1.putPixel(x, y, 255 - (g0.getPixel(x, y) & 0xff));
+            }
+        }
+        g1.putPixel(41, 15, 0); // single changed pixel widening the box to the right
+
+        APNGWriter writer = new APNGWriter();
+        writer.setDeltaFrames(true);
+        File file = new File("delta.png");
+        file.deleteOnExit();
+        writer.write(new Gray[] { g0, g1, g1 }, file, APNG.INFINITE_LOOP);
+
+        Gray[] gr = APNG.read(file);
+        Assert.assertEquals(3, gr.length);
+        Assert.assertArrayEquals(g0.data.array(), gr[0].data.array());
+        Rectangle box = new Rectangle(7, 12, 35, 8);
+        Assert.assertEquals(box.getSize(), gr[1].getDimension());
+        Assert.assertArrayEquals(g1.getSubimage(box).data.array(), gr[1].data.array());
+        Assert.assertEquals(new Dimension(1, 1), gr[2].getDimension());
+    }
+
+    @Test
+    public void testComposite() throws IOException {
+        Gray[] g = new Gray[4];
+        g[0] = TestFrames.frame(0).getSubimage(new Rectangle(0, 0, 32, 24));
+        for (int i = 1; i < g.length; i++) {
+            g[i] = new Gray(32, 24, g[i - 1].data.array().clone(), APNG.DELAY_100MS);
+            for (int y = 3 * i; y < 3 * i + 4; y++) {
+                for (int x = 5 * i; x < 5 * i + 6; x++) {
+                    g[i].putPixel(x, y, 17 * i);
+                }
+            }
+        }
+
+        APNGWriter writer = new APNGWriter();
+        writer.setDeltaFrames(true);
+        File file = new File("composite.png");
+        file.deleteOnExit();
+        writer.write(g, file, APNG.INFINITE_LOOP);
+
+        APNGReader reader = new APNGReader();
+        reader.setComposite(true);
+        Gray[] gr = reader.read(file);
+        APNGFrameIterator frames = reader.frames(new FileInputStream(file).getChannel());
+        try {
+            for (int i = 0; i < g.length; i++) {
+                Assert.assertArrayEquals(g[i].data.array(), gr[i].data.array());
+                Assert.assertArrayEquals(g[i].data.array(), frames.next().data.array());
+            }
+        } finally {
+            frames.close();
+        }
+    }
+
+    @Test
+    public void testDisposeAndBlend() {
+        byte b = APNG.BLEND_OP_SOURCE;
+        Compositor compositor = new Compositor(3, 1, 9);
+        compositor.compose(fctl(0, 3, APNG.DISPOSE_OP_NONE, b), ByteBuffer.wrap(new byte[] { 1, 2, 3 }));
+        Assert.assertArrayEquals(new byte[] { 1, 2, 3 }, compositor.snapshot(0).data.array());
+        compositor.compose(fctl(1, 1, APNG.DISPOSE_OP_PREVIOUS, b), ByteBuffer.wrap(new byte[] { 7 }));
+        Assert.assertArrayEquals(new byte[] { 1, 7, 3 }, compositor.snapshot(0).data.array());
+        compositor.compose(fctl(0, 2, APNG.DISPOSE_OP_BACKGROUND, APNG.BLEND_OP_OVER), ByteBuffer.wrap(new byte[] { 9, 8 }));
+        Assert.assertArrayEquals(new byte[] { 1, 8, 3 }, compositor.snapshot(0).data.array());
+        compositor.compose(fctl(2, 1, APNG.DISPOSE_OP_NONE, b), ByteBuffer.wrap(new byte[] { 5 }));
+        Assert.assertArrayEquals(new byte[] { 0, 0, 5 }, compositor.snapshot(0).data.array());
+    }
+
+    private static FCTL fctl(int x, int width, byte disposeOp, byte blendOp) {
+        return new FCTL(0, width, 1, x, 0, (short) 1, (short) 10, disposeOp, blendOp);
+    }
 }
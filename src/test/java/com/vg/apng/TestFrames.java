@@ -0,0 +1,25 @@
+package com.vg.apng;
+
+/**
+ * Deterministic frames for the tests.
+ */
+class TestFrames {
+    static final int WIDTH = 640;
+    static final int HEIGHT = 480;
+
+    /**
+     * Smooth moving gradients with some noise, roughly as compressible as camera content.
+     */
+    static Gray frame(int index) {
+        Gray gray = new Gray(WIDTH, HEIGHT);
+        long seed = index * 0x9E3779B97F4A7C15L;
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                seed = seed * 6364136223846793005L + 1442695040888963407L;
+                int noise = (int) (seed >>> 61);
+                gray.putPixel(x, y, ((x + index) ^ (y >> 2)) + noise);
+            }
+        }
+        return gray;
+    }
+}